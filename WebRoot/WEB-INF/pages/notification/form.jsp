@@ -5,6 +5,7 @@
 <head>
     <title>Admin Console</title>
 	<meta name="menu" content="notification" />    
+	<link rel="stylesheet" type="text/css" href="<c:url value='/styles/tablesorter/style.css'/>" />
 </head>
 
 <body>
@@ -26,6 +27,12 @@
 	<td>Username:</td>
 	<td><input type="text" id="username" name="username" value="" style="width:380px;" /></td>
 </tr>
+<tr id="trRate">
+	<td>Pace:</td>
+	<td><input type="text" id="rate" name="rate" value="" style="width:80px;" /> sessions per second
+	    <br/><span style="font-size:0.8em">leave empty to deliver as fast as possible</span>
+	</td>
+</tr>
 <tr>
 	<td>Title:</td>
 	<td><input type="text" id="title" name="title" value="Dokdo Island" style="width:380px;" /></td>
@@ -54,6 +61,55 @@
 </form>
 </div>
 
+<c:if test="${not empty jobList}">
+<h1>Broadcast Jobs</h1>
+
+<table id="tableList" class="tablesorter" cellspacing="1">
+	<thead>
+		<tr>
+			<th>Job</th>
+			<th>Notification</th>
+			<th>Progress</th>
+			<th>Delivered</th>
+			<th>Offline</th>
+			<th>Errors</th>
+			<th>Total</th>
+			<th>Elapsed (ms)</th>
+			<th>Pace</th>
+		</tr>
+	</thead>
+	<tbody>
+		<c:forEach var="job" items="${jobList}">
+			<tr>
+				<td><c:out value="${job.id}" /></td>
+				<td><c:out value="${job.notificationId}" /></td>
+				<td align="right"><fmt:formatNumber type="percent" maxFractionDigits="1" value="${job.progress}" /></td>
+				<td align="right"><c:out value="${job.delivered}" /></td>
+				<td align="right"><c:out value="${job.offline}" /></td>
+				<td align="right"><c:out value="${job.errors}" /></td>
+				<td align="right"><c:out value="${job.total}" /></td>
+				<td align="right"><c:out value="${job.elapsedTime}" /></td>
+				<td>
+					<c:choose>
+					<c:when test="${job.paced and not job.done}">
+						<form action="notification.do?action=rate" method="post" style="margin: 0px;">
+							<input type="hidden" name="id" value="${job.id}" />
+							<input type="text" name="rate" value="<fmt:formatNumber maxFractionDigits="1" groupingUsed="false" value="${job.rate}" />" style="width:60px;" />
+							<input type="submit" value="Set" />
+						</form>
+					</c:when>
+					<c:when test="${job.paced}">
+						<fmt:formatNumber maxFractionDigits="1" value="${job.rate}" />/s
+					</c:when>
+					<c:otherwise>-</c:otherwise>
+					</c:choose>
+				</td>
+			</tr>
+		</c:forEach>
+	</tbody>
+</table>
+</c:if>
+
 <script type="text/javascript"> 
 //<![CDATA[
  
@@ -61,16 +117,21 @@ $(function() {
 	$('input[name=broadcast]').click(function() {
 		if ($('input[name=broadcast]')[0].checked) {
 			$('#trUsername').hide();
+			$('#trRate').show();
 		} else {
 			$('#trUsername').show();
+			$('#trRate').hide();
 		}
 	});
 	
 	if ($('input[name=broadcast]')[0].checked) {
 		$('#trUsername').hide();
+		$('#trRate').show();
 	} else {
 		$('#trUsername').show();
+		$('#trRate').hide();
 	}	
+	$('table tr:nth-child(even)').addClass('even');
 });
  
 //]]>
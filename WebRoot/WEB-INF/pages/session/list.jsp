@@ -30,7 +30,8 @@
 			<th>Status</th>
 			<th>Presence</th>
 			<th>Client IP</th>
-			<th>Created</th>			
+			<th>Created</th>
+			<th>Compression</th>
 		</tr>
 	</thead>
 	<tbody>
@@ -55,6 +56,7 @@
 				</td>
 				<td><c:out value="${sess.clientIP}" /></td>
 				<td align="center"><fmt:formatDate pattern="yyyy-MM-dd HH:mm:ss" value="${sess.createdDate}" /></td>
+				<td><c:out value="${sess.compression}" /></td>
 			</tr>
 		</c:forEach>
 	</tbody>
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.dom4j.Element;
+
+/**
+ * Measures the CPU time per IQ stanza of the {@link StreamParser} building
+ * the whole element of every stanza, and of the lazy parser when the stanza
+ * is only routed on its envelope or when its content is used as well. Each
+ * stanza type is run as its own stream.
+ * <p>
+ * Usage: <tt>LazyStanzaBenchmark [stanzas] [rounds]</tt>
+ */
+public class LazyStanzaBenchmark {
+
+    private static final String[][] STANZAS = {
+            { "ping",
+                    "<iq type=\"get\" id=\"ping-42\" to=\"example.com\"><ping xmlns=\"urn:xmpp:ping\"/></iq>" },
+            { "ack",
+                    "<iq type=\"result\" id=\"n-1a2b3c\" to=\"example.com\"><notification xmlns=\"androidpn:iq:notification\"><id>1a2b3c</id></notification></iq>" },
+            { "unknown iq",
+                    "<iq type=\"get\" id=\"v1\" to=\"example.com\"><query xmlns=\"jabber:iq:version\"><name>client</name><version>1.0</version><os>Android 4.4</os></query></iq>" },
+            { "auth",
+                    "<iq type=\"set\" id=\"auth_1\"><query xmlns=\"jabber:iq:auth\"><username>user1</username><password>secret</password><resource>AndroidpnClient</resource></query></iq>" } };
+
+    private static final int EAGER = 0;
+
+    private static final int ROUTED = 1;
+
+    private static final int USED = 2;
+
+    public static void main(String[] args) throws Exception {
+        int stanzas = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        String header = "<stream:stream to=\"example.com\" xmlns=\"jabber:client\""
+                + " xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">";
+        byte[][] streams = new byte[STANZAS.length][];
+        for (int i = 0; i < STANZAS.length; i++) {
+            StringBuilder sb = new StringBuilder(header);
+            for (int j = 0; j < stanzas; j++) {
+                sb.append(STANZAS[i][1]);
+            }
+            streams[i] = sb.toString().getBytes("UTF-8");
+        }
+
+        for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < STANZAS.length; i++) {
+                double eager = Double.MAX_VALUE;
+                double routed = Double.MAX_VALUE;
+                double used = Double.MAX_VALUE;
+                // The best of three runs, the others being disturbed
+                for (int run = 0; run < 3; run++) {
+                    eager = Math.min(eager, run(streams[i], EAGER));
+                    routed = Math.min(routed, run(streams[i], ROUTED));
+                    used = Math.min(used, run(streams[i], USED));
+                }
+                System.out.println(String.format(
+                        "round %d %-10s eager %7.0f ns  routed %7.0f ns (%+4.0f%%)"
+                                + "  used %7.0f ns (%+4.0f%%)", round,
+                        STANZAS[i][0], eager, routed, (routed - eager) * 100
+                                / eager, used, (used - eager) * 100 / eager));
+            }
+        }
+    }
+
+    /**
+     * Parses the stream in segments of 1460 bytes and returns the CPU time
+     * per stanza in nanoseconds.
+     */
+    private static double run(byte[] stream, int mode) throws Exception {
+        StreamParser parser = new StreamParser(StreamParser.MAX_STANZA_SIZE,
+                mode != EAGER);
+        RoutingOutput out = new RoutingOutput(mode);
+        long start = cpuTime();
+        for (int i = 0; i < stream.length; i += 1460) {
+            parser.parse(IoBuffer.wrap(stream, i, Math.min(1460,
+                    stream.length - i)), out);
+        }
+        return (double) (cpuTime() - start) / out.count;
+    }
+
+    private static long cpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean
+                .getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Reads what the routers read from every stanza, and the whole content
+     * of the stanza in the used mode.
+     */
+    private static class RoutingOutput implements ProtocolDecoderOutput {
+
+        private final int mode;
+
+        private long count;
+
+        private int hash;
+
+        RoutingOutput(int mode) {
+            this.mode = mode;
+        }
+
+        public void write(Object message) {
+            if (!(message instanceof Element)) {
+                return;
+            }
+            count++;
+            Element element = (Element) message;
+            hash += element.getName().hashCode();
+            hash += String.valueOf(element.attributeValue("type")).hashCode();
+            hash += String.valueOf(element.attributeValue("id")).hashCode();
+            hash += String.valueOf(element.attributeValue("to")).hashCode();
+            hash += String.valueOf(LazyElement.childNamespace(element))
+                    .hashCode();
+            if (mode == USED) {
+                hash += element.elements().size();
+            }
+        }
+
+        public void flush(NextFilter nextFilter, IoSession session) {
+        }
+    }
+
+}
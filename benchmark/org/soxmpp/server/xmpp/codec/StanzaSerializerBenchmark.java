@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.util.XMLWriter;
+import org.soxmpp.server.xmpp.net.IoBufferWriter;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Roster;
+
+/**
+ * Compares the {@link StanzaSerializer} with the {@link XMLWriter} writing
+ * through an {@link IoBufferWriter}, the way outbound packets were written
+ * before. Checks that both write the same bytes, then prints the time and
+ * the bytes allocated per stanza of each for a few common stanzas.
+ * <p>
+ * Usage: <tt>StanzaSerializerBenchmark [iterations] [rounds]</tt>
+ */
+public class StanzaSerializerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        String[] names = { "notification", "roster", "message", "ping result" };
+        Element[] stanzas = new Element[names.length];
+
+        IQ notification = new IQ(IQ.Type.set);
+        notification.setTo("user1@example.com/AndroidpnClient");
+        Element child = notification.setChildElement("notification",
+                "androidpn:iq:notification");
+        child.addElement("id").setText("5f2b8c1e");
+        child.addElement("apiKey").setText("1234567890");
+        child.addElement("title").setText("Sale starts today");
+        child.addElement("message").setText(
+                "Up to 50% off & free shipping on \"all\" orders – 在线");
+        child.addElement("uri").setText("http://example.com/sale?from=push&id=1");
+        stanzas[0] = notification.getElement();
+
+        Roster roster = new Roster(IQ.Type.result);
+        roster.setTo("user1@example.com/AndroidpnClient");
+        for (int i = 0; i < 5; i++) {
+            roster.addItem(new JID("friend" + i + "@example.com"), "Friend "
+                    + i, null, Roster.Subscription.both, Arrays
+                    .asList("Friends"));
+        }
+        stanzas[1] = roster.getElement();
+
+        Message message = new Message();
+        message.setTo("user1@example.com/AndroidpnClient");
+        message.setFrom("admin@example.com");
+        message.setType(Message.Type.chat);
+        message.setBody("Café <b>über</b> done");
+        stanzas[2] = message.getElement();
+
+        IQ ping = new IQ(IQ.Type.get);
+        ping.setID("ping-42");
+        stanzas[3] = IQ.createResultIQ(ping).getElement();
+
+        StanzaSerializer serializer = new StanzaSerializer();
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        IoBufferWriter writer = new IoBufferWriter(null, encoder);
+        XMLWriter xmlWriter = new XMLWriter(writer, new OutputFormat());
+        IoBuffer buffer = IoBuffer.allocate(4096).setAutoExpand(true);
+
+        for (int i = 0; i < stanzas.length; i++) {
+            byte[] expected = bytes(xmlWriter, writer, stanzas[i], buffer);
+            buffer.clear();
+            serializer.write(stanzas[i], buffer);
+            buffer.flip();
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            buffer.clear();
+            if (!Arrays.equals(expected, actual)) {
+                throw new IllegalStateException("Different output for "
+                        + names[i]);
+            }
+        }
+
+        for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < stanzas.length; i++) {
+                Element stanza = stanzas[i];
+
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int j = 0; j < iterations; j++) {
+                    buffer.clear();
+                    writer.setIoBuffer(buffer);
+                    xmlWriter.write(stanza);
+                    xmlWriter.flush();
+                }
+                long oldTime = System.nanoTime() - start;
+                long oldAllocated = allocatedBytes() - allocated;
+
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+                for (int j = 0; j < iterations; j++) {
+                    buffer.clear();
+                    serializer.write(stanza, buffer);
+                }
+                long newTime = System.nanoTime() - start;
+                long newAllocated = allocatedBytes() - allocated;
+
+                System.out.println(String.format(
+                        "round %d %-13s XMLWriter %6.0f ns %6.0f B"
+                                + "   StanzaSerializer %6.0f ns %6.0f B",
+                        round, names[i], (double) oldTime / iterations,
+                        (double) oldAllocated / iterations, (double) newTime
+                                / iterations, (double) newAllocated
+                                / iterations));
+            }
+        }
+    }
+
+    private static byte[] bytes(XMLWriter xmlWriter, IoBufferWriter writer,
+            Element stanza, IoBuffer buffer) throws Exception {
+        buffer.clear();
+        writer.setIoBuffer(buffer);
+        xmlWriter.write(stanza);
+        xmlWriter.flush();
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, or -1 if the JVM
+     * does not report it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
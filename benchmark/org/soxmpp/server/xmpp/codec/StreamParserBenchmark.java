@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.net.MXParser;
+import org.soxmpp.server.xmpp.net.ConnectionHandler;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Measures the single pass {@link StreamParser} on a recorded client stream
+ * cut into TCP segments, against the pull parser decoding and building the
+ * elements of the same stanzas already cut out of the stream as bytes, which
+ * is the second pass the parser replaced. Prints the throughput and the bytes allocated per
+ * stanza of each.
+ * <p>
+ * Usage: <tt>StreamParserBenchmark [stanzas] [segmentSize] [rounds]</tt>
+ */
+public class StreamParserBenchmark {
+
+    private static final String[] STANZAS = {
+            "<iq type=\"result\" id=\"1a2b3c\" from=\"user1@example.com/AndroidpnClient\" to=\"example.com\"/>",
+            "<presence from=\"user1@example.com/AndroidpnClient\"><show>away</show><status>在线</status></presence>",
+            "<iq type=\"get\" id=\"ping-42\"><ping xmlns=\"urn:xmpp:ping\"/></iq>",
+            "<message to=\"admin@example.com\" type=\"chat\"><body>Café über <![CDATA[<not a tag>]]> done</body></message>",
+            "<iq type=\"set\" id=\"auth_1\"><query xmlns=\"jabber:iq:auth\"><username>user1</username><password>secret</password><resource>AndroidpnClient</resource></query></iq>" };
+
+    public static void main(String[] args) throws Exception {
+        int stanzas = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int segmentSize = args.length > 1 ? Integer.parseInt(args[1]) : 1460;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<stream:stream to=\"example.com\" xmlns=\"jabber:client\""
+                + " xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">");
+        List<byte[]> framed = new ArrayList<byte[]>(stanzas);
+        for (int i = 0; i < stanzas; i++) {
+            String stanza = STANZAS[i % STANZAS.length];
+            sb.append(stanza);
+            framed.add(stanza.getBytes("UTF-8"));
+            if (i % 16 == 0) {
+                // Whitespace keepalive
+                sb.append(' ');
+            }
+        }
+        byte[] stream = sb.toString().getBytes("UTF-8");
+        List<byte[]> segments = new ArrayList<byte[]>();
+        for (int i = 0; i < stream.length; i += segmentSize) {
+            byte[] segment = new byte[Math.min(segmentSize, stream.length - i)];
+            System.arraycopy(stream, i, segment, 0, segment.length);
+            segments.add(segment);
+        }
+        System.out.println("Stream: " + stream.length + " bytes, "
+                + (stanzas + 1) + " stanzas, " + segments.size()
+                + " segments of " + segmentSize + " bytes");
+
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance(
+                MXParser.class.getName(), null);
+        factory.setNamespaceAware(true);
+        XMPPPacketReader reader = new XMPPPacketReader();
+        reader.setXPPFactory(factory);
+
+        for (int round = 1; round <= rounds; round++) {
+            runPullParser(reader, framed, stream.length, round);
+            runStreamParser(segments, stream.length, round);
+        }
+    }
+
+    private static void runPullParser(XMPPPacketReader reader,
+            List<byte[]> framed, long bytes, int round) throws Exception {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (byte[] stanza : framed) {
+            reader.read(new StringReader(new String(stanza, "UTF-8")));
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        print(round, "pull parser (framed)", bytes, framed.size(), elapsed,
+                allocated);
+    }
+
+    private static void runStreamParser(List<byte[]> segments, long bytes,
+            int round) throws Exception {
+        DummySession session = new DummySession();
+        session.setAttribute(ConnectionHandler.XML_PARSER, new StreamParser());
+        XmppDecoder decoder = new XmppDecoder();
+        CountingOutput out = new CountingOutput();
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (byte[] segment : segments) {
+            decoder.decode(session, IoBuffer.wrap(segment), out);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        print(round, "StreamParser", bytes, out.count, elapsed, allocated);
+    }
+
+    private static void print(int round, String name, long bytes,
+            long stanzas, long elapsed, long allocated) {
+        System.out.println(String.format(
+                "round %d %-22s %8.1f MB/s %10.0f stanzas/s %8.1f bytes/stanza",
+                round, name, bytes / 1048576.0 / (elapsed / 1e9), stanzas
+                        / (elapsed / 1e9), allocated < 0 ? Double.NaN
+                        : (double) allocated / stanzas));
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, or -1 if the JVM
+     * does not report it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the stanzas written by the parser.
+     */
+    private static class CountingOutput implements ProtocolDecoderOutput {
+
+        private long count;
+
+        public void write(Object message) {
+            count++;
+        }
+
+        public void flush(NextFilter nextFilter, IoSession session) {
+        }
+    }
+
+}
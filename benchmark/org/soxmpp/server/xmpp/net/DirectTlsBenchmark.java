@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.soxmpp.server.xmpp.session.ClientSession;
+import org.soxmpp.server.xmpp.ssl.SSLConfig;
+import org.soxmpp.server.xmpp.ssl.SSLHandshakeFilter;
+
+/**
+ * Measures the time a client takes from connecting to receiving the stream
+ * features of a secure stream, with STARTTLS and with direct TLS, over links
+ * of several round trip times. The server side runs the same MINA filters
+ * and SSL context as the server, with a handler answering the stream
+ * negotiation; a proxy in front of it delays every chunk by half the round
+ * trip time in each direction. The TCP handshake is counted as one round
+ * trip in both modes.
+ * <p>
+ * Usage: <tt>DirectTlsBenchmark [runs] [rtt...]</tt>
+ */
+public class DirectTlsBenchmark {
+
+	private static final String HEADER = "<?xml version='1.0'?><stream:stream"
+			+ " to=\"example.com\" xmlns=\"jabber:client\""
+			+ " xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">";
+
+	private static final String STARTTLS = "<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>";
+
+	private static final String FEATURES_END = "</stream:features>";
+
+	public static void main(String[] args) throws Exception {
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int[] rtts = { 0, 50, 150, 300 };
+		if (args.length > 1) {
+			rtts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				rtts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		NioSocketAcceptor startTls = new NioSocketAcceptor();
+		startTls.setHandler(new NegotiationHandler());
+		startTls.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		NioSocketAcceptor directTls = new NioSocketAcceptor();
+		directTls.getFilterChain().addLast("tls",
+				new SSLHandshakeFilter(SSLConfig.getc2sSSLContext()));
+		directTls.setHandler(new NegotiationHandler());
+		directTls.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		SSLContext client = SSLContext.getInstance("TLS");
+		client.init(null, new TrustManager[] { new TrustAll() }, null);
+
+		for (int rtt : rtts) {
+			DelayProxy startTlsProxy = new DelayProxy(startTls
+					.getLocalAddress().getPort(), rtt);
+			DelayProxy directTlsProxy = new DelayProxy(directTls
+					.getLocalAddress().getPort(), rtt);
+			long[] startTlsTimes = new long[runs];
+			long[] directTlsTimes = new long[runs];
+			// One warm-up connection each
+			connect(client, startTlsProxy.getPort(), rtt, false);
+			connect(client, directTlsProxy.getPort(), rtt, true);
+			for (int i = 0; i < runs; i++) {
+				startTlsTimes[i] = connect(client, startTlsProxy.getPort(),
+						rtt, false);
+				directTlsTimes[i] = connect(client, directTlsProxy.getPort(),
+						rtt, true);
+			}
+			startTlsProxy.close();
+			directTlsProxy.close();
+
+			long startTlsTime = median(startTlsTimes);
+			long directTlsTime = median(directTlsTimes);
+			System.out.println(String.format(
+					"rtt %3d ms   STARTTLS %5d ms   direct TLS %5d ms"
+							+ "   saved %5d ms", rtt, startTlsTime,
+					directTlsTime, startTlsTime - directTlsTime));
+		}
+
+		System.out.println("handshakes: " + SSLConfig.getHandshakeStats());
+		startTls.dispose();
+		directTls.dispose();
+	}
+
+	/**
+	 * Opens a secure stream and returns the milliseconds it took.
+	 */
+	private static long connect(SSLContext context, int port, int rtt,
+			boolean direct) throws Exception {
+		long start = System.nanoTime();
+		Socket socket = new Socket("127.0.0.1", port);
+		socket.setTcpNoDelay(true);
+		// The TCP handshake
+		Thread.sleep(rtt);
+		try {
+			if (!direct) {
+				send(socket, HEADER);
+				readUntil(socket, FEATURES_END);
+				send(socket, STARTTLS);
+				readUntil(socket, "/>");
+			}
+			SSLSocket ssl = (SSLSocket) context.getSocketFactory()
+					.createSocket(socket, "127.0.0.1", port, true);
+			// The SslHandler of MINA 2.0.0-RC1 predates TLS 1.3
+			ssl.setEnabledProtocols(new String[] { "TLSv1.2" });
+			ssl.startHandshake();
+			send(ssl, HEADER);
+			readUntil(ssl, FEATURES_END);
+			ssl.close();
+		} finally {
+			socket.close();
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static void send(Socket socket, String text) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(text.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	private static void readUntil(Socket socket, String end)
+			throws IOException {
+		InputStream in = socket.getInputStream();
+		StringBuilder sb = new StringBuilder();
+		byte[] bytes = new byte[4096];
+		while (sb.indexOf(end) < 0) {
+			int n = in.read(bytes);
+			if (n < 0) {
+				throw new IOException("Stream closed before " + end);
+			}
+			sb.append(new String(bytes, 0, n, "UTF-8"));
+		}
+	}
+
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * Answers the stream negotiation the way the stanza handler does: stream
+	 * features on every stream header, with STARTTLS until the connection is
+	 * secure, and <tt>proceed</tt> on STARTTLS.
+	 */
+	private static class NegotiationHandler extends IoHandlerAdapter {
+
+		@Override
+		public void messageReceived(IoSession session, Object message)
+				throws Exception {
+			String text = ((IoBuffer) message).getString(java.nio.charset.Charset
+					.forName("UTF-8").newDecoder());
+			boolean secure = session.getFilterChain().contains("tls");
+			if (text.contains("<stream:stream")) {
+				StringBuilder sb = new StringBuilder();
+				sb.append(new String(ClientSession.STREAM_HEADER.toBytes(
+						"example.com", "abc123", "en"), "UTF-8"));
+				sb.append("<stream:features>");
+				if (!secure) {
+					sb.append("<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+				}
+				sb.append("<auth xmlns=\"http://jabber.org/features/iq-auth\"/>");
+				sb.append(FEATURES_END);
+				session.write(IoBuffer.wrap(sb.toString().getBytes("UTF-8")));
+			} else if (text.contains("<starttls")) {
+				session.getFilterChain().addFirst("tls",
+						new SSLHandshakeFilter(SSLConfig.getc2sSSLContext()));
+				session.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE,
+						Boolean.TRUE);
+				session.write(IoBuffer.wrap("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>"
+						.getBytes("UTF-8")));
+			}
+		}
+	}
+
+	/**
+	 * A TCP proxy delaying the data in each direction by half the round trip
+	 * time.
+	 */
+	private static class DelayProxy implements Runnable {
+
+		private final ServerSocket server;
+
+		private final int targetPort;
+
+		private final int delay;
+
+		DelayProxy(int targetPort, int rtt) throws IOException {
+			this.server = new ServerSocket(0);
+			this.targetPort = targetPort;
+			this.delay = rtt / 2;
+			daemon(this);
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = server.accept();
+					Socket target = new Socket("127.0.0.1", targetPort);
+					client.setTcpNoDelay(true);
+					target.setTcpNoDelay(true);
+					pump(client, target);
+					pump(target, client);
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		private void pump(final Socket from, final Socket to) {
+			final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+			daemon(new Runnable() {
+				public void run() {
+					byte[] bytes = new byte[16384];
+					try {
+						InputStream in = from.getInputStream();
+						int n;
+						while ((n = in.read(bytes)) > 0) {
+							queue.put(new Object[] {
+									System.nanoTime() + delay * 1000000L,
+									Arrays.copyOf(bytes, n) });
+						}
+					} catch (Exception e) {
+						// Closed
+					}
+					queue.add(new Object[0]);
+				}
+			});
+			daemon(new Runnable() {
+				public void run() {
+					try {
+						OutputStream out = to.getOutputStream();
+						while (true) {
+							Object[] chunk = queue.take();
+							if (chunk.length == 0) {
+								break;
+							}
+							long wait = (Long) chunk[0] - System.nanoTime();
+							if (wait > 0) {
+								Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+							}
+							out.write((byte[]) chunk[1]);
+							out.flush();
+						}
+					} catch (Exception e) {
+						// Closed
+					}
+					try {
+						to.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+			});
+		}
+
+		private static void daemon(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private static class TrustAll implements X509TrustManager {
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+
+}
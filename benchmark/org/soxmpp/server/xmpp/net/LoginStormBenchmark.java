@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * Measures the ping latency of a connected client while many clients log in
+ * at once, with the executor on platform threads and on virtual threads. A
+ * login is three requests, each blocking its thread for the time of a
+ * database query, as the authentication, roster and presence handlers do;
+ * a ping is answered at once. The server checks that the requests of every
+ * session are handled in order.
+ * <p>
+ * The last run blocks inside a synchronized block, as the JDBC driver and
+ * the connection pool do. Java 21 pins the virtual thread to its carrier
+ * there, so the logins hold one of the carrier threads each.
+ * <p>
+ * Virtual threads need Java 21 or later; on older runtimes every run uses
+ * platform threads.
+ * <p>
+ * Usage: <tt>LoginStormBenchmark [logins] [query ms]</tt>
+ */
+public class LoginStormBenchmark {
+
+	private static final int REQUESTS_PER_LOGIN = 3;
+
+	public static void main(String[] args) throws Exception {
+		int logins = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int queryTime = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		System.out.println(logins + " logins of " + REQUESTS_PER_LOGIN
+				+ " queries of " + queryTime + " ms");
+		run(false, false, logins, queryTime);
+		run(true, false, logins, queryTime);
+		run(true, true, logins, queryTime);
+	}
+
+	private static void run(boolean virtual, boolean pinned, int logins,
+			int queryTime) throws Exception {
+		NetworkTopology topology = new NetworkTopology();
+		topology.setExecutorThreadName(virtual ? pinned ? "pinned"
+				: "virtual" : "platform");
+		topology.setVirtualThreads(virtual);
+		NioSocketAcceptor acceptor = topology.createAcceptor();
+		acceptor.setBacklog(logins);
+		acceptor.getFilterChain().addLast("executor",
+				topology.getExecutorFilter());
+		StormHandler handler = new StormHandler(queryTime, pinned);
+		acceptor.setHandler(handler);
+		acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+		int port = acceptor.getLocalAddress().getPort();
+
+		Pinger pinger = new Pinger(port);
+		Thread pingThread = new Thread(pinger);
+		pingThread.start();
+		Thread.sleep(200);
+
+		final long[] loginTimes = new long[logins];
+		final CountDownLatch done = new CountDownLatch(logins);
+		final AtomicInteger failed = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < logins; i++) {
+			final int index = i;
+			final int serverPort = port;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						loginTimes[index] = login(serverPort);
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+					done.countDown();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		long stormTime = (System.nanoTime() - start) / 1000000;
+		pinger.stop();
+		pingThread.join();
+
+		System.out.println(topology.getReport());
+		long[] pings = pinger.getTimes();
+		System.out.println(String.format("  storm %d ms, login p50 %d ms"
+				+ " p99 %d ms, failed %d", stormTime, percentile(
+				loginTimes, 50), percentile(loginTimes, 99), failed.get()));
+		System.out.println(String.format("  %d pings, p50 %d ms p99 %d ms"
+				+ " max %d ms, out of order %d", pings.length, percentile(
+				pings, 50), percentile(pings, 99), percentile(pings, 100),
+				handler.disorder.get()));
+		acceptor.unbind();
+		topology.dispose();
+	}
+
+	/**
+	 * Sends the requests of a login at once and returns the milliseconds
+	 * until the last answer.
+	 */
+	private static long login(int port) throws Exception {
+		long start = System.nanoTime();
+		Socket socket = new Socket("127.0.0.1", port);
+		try {
+			socket.setTcpNoDelay(true);
+			IoBuffer request = IoBuffer.allocate(5 * REQUESTS_PER_LOGIN);
+			for (int seq = 0; seq < REQUESTS_PER_LOGIN; seq++) {
+				request.put((byte) 'L').putInt(seq);
+			}
+			socket.getOutputStream().write(request.array());
+			new DataInputStream(socket.getInputStream())
+					.readFully(new byte[5 * REQUESTS_PER_LOGIN]);
+		} finally {
+			socket.close();
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long percentile(long[] times, int percentile) {
+		if (times.length == 0) {
+			return 0;
+		}
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	/**
+	 * Answers 5-byte requests, an operation and a sequence number, after a
+	 * simulated query for a login request.
+	 */
+	private static class StormHandler extends IoHandlerAdapter {
+
+		private final int queryTime;
+
+		private final boolean pinned;
+
+		private final AtomicInteger disorder = new AtomicInteger();
+
+		StormHandler(int queryTime, boolean pinned) {
+			this.queryTime = queryTime;
+			this.pinned = pinned;
+		}
+
+		private void query(IoSession session) throws InterruptedException {
+			if (pinned) {
+				synchronized (session) {
+					Thread.sleep(queryTime);
+				}
+			} else {
+				Thread.sleep(queryTime);
+			}
+		}
+
+		@Override
+		public void messageReceived(IoSession session, Object message)
+				throws Exception {
+			IoBuffer in = (IoBuffer) session.getAttribute("in");
+			if (in == null) {
+				in = IoBuffer.allocate(64).setAutoExpand(true);
+				session.setAttribute("in", in);
+			}
+			in.put((IoBuffer) message);
+			in.flip();
+			while (in.remaining() >= 5) {
+				byte op = in.get();
+				int seq = in.getInt();
+				Integer last = (Integer) session.getAttribute("seq");
+				if (last != null && seq != last + 1) {
+					disorder.incrementAndGet();
+				}
+				session.setAttribute("seq", seq);
+				if (op == 'L') {
+					query(session);
+				}
+				IoBuffer reply = IoBuffer.allocate(5);
+				reply.put(op).putInt(seq).flip();
+				session.write(reply);
+			}
+			in.compact();
+		}
+	}
+
+	/**
+	 * Pings the server every 10 ms from one connection.
+	 */
+	private static class Pinger implements Runnable {
+
+		private final Socket socket;
+
+		private volatile boolean running = true;
+
+		private long[] times = new long[1024];
+
+		private int count;
+
+		Pinger(int port) throws Exception {
+			socket = new Socket("127.0.0.1", port);
+			socket.setTcpNoDelay(true);
+		}
+
+		void stop() {
+			running = false;
+		}
+
+		long[] getTimes() {
+			return Arrays.copyOf(times, count);
+		}
+
+		public void run() {
+			try {
+				OutputStream out = socket.getOutputStream();
+				DataInputStream in = new DataInputStream(socket
+						.getInputStream());
+				byte[] reply = new byte[5];
+				for (int seq = 0; running; seq++) {
+					IoBuffer ping = IoBuffer.allocate(5);
+					ping.put((byte) 'P').putInt(seq);
+					long start = System.nanoTime();
+					out.write(ping.array());
+					in.readFully(reply);
+					if (count == times.length) {
+						times = Arrays.copyOf(times, count * 2);
+					}
+					times[count++] = (System.nanoTime() - start) / 1000000;
+					Thread.sleep(10);
+				}
+				socket.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -8,21 +8,27 @@
 
 package org.soxmpp.server.console.api;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.soxmpp.server.service.ServiceLocator;
 import org.soxmpp.server.util.Config;
+import org.soxmpp.server.xmpp.push.BroadcastJob;
 import org.soxmpp.server.xmpp.push.NotificationManager;
+import org.soxmpp.server.xmpp.push.NotificationScheduler;
 import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
 
 public class NotificationApiController extends MultiActionController {
 
-	private NotificationManager notificationManager;
-
 	public NotificationApiController() {
-		notificationManager = new NotificationManager();
 	}
 
 	public ModelAndView list(HttpServletRequest request,
@@ -43,21 +49,224 @@ public class NotificationApiController extends MultiActionController {
 		String message = ServletRequestUtils.getStringParameter(request,
 				"message");
 		String uri = ServletRequestUtils.getStringParameter(request, "uri");
+		String id = ServletRequestUtils.getStringParameter(request, "id");
+		String collapseKey = ServletRequestUtils.getStringParameter(request,
+				"collapseKey");
+		// Pace a broadcast by a rate in sessions per second or a spread
+		// window in seconds
+		double rate = ServletRequestUtils.getDoubleParameter(request, "rate",
+				0);
+		long spread = ServletRequestUtils.getLongParameter(request, "spread",
+				0);
+		long time = scheduledTime(request);
 
 		String apiKey = Config.getString("apiKey", "");
 		logger.debug("apiKey=" + apiKey);
 
-		if (broadcast.equalsIgnoreCase("Y")) {
-			notificationManager.sendBroadcast(apiKey, title, message, uri);
-		} else {
-			notificationManager.sendNotifcationToUser(apiKey, username, title,
-					message, uri);
+		NotificationManager notificationManager = ServiceLocator
+				.getNotificationManager();
+		try {
+			if (time > 0) {
+				NotificationScheduler scheduler = ServiceLocator
+						.getNotificationScheduler();
+				long scheduleId = broadcast.equalsIgnoreCase("Y") ? scheduler
+						.scheduleBroadcast(time, apiKey, title, message, uri,
+								id, collapseKey, rate, spread * 1000)
+						: scheduler.schedule(time, apiKey,
+								new String[] { username }, title, message,
+								uri, id, collapseKey);
+				printScheduled(response, scheduleId);
+			} else if (broadcast.equalsIgnoreCase("Y")) {
+				BroadcastJob job = notificationManager.sendBroadcast(apiKey,
+						title, message, uri, id, collapseKey, rate,
+						spread * 1000);
+				if (job == null) {
+					response.getWriter().print(
+							"{\"result\":\"0\",\"description\":\"duplicate\"}");
+					return;
+				}
+				response.getWriter().print(
+						"{\"result\":\"0\",\"description\":\"success\",\"jobId\":\""
+								+ job.getId() + "\"}");
+			} else {
+				if (!notificationManager.sendNotifcationToUser(apiKey,
+						username, title, message, uri, id, collapseKey)) {
+					response.getWriter().print(
+							"{\"result\":\"0\",\"description\":\"duplicate\"}");
+					return;
+				}
+				response.getWriter().print("{\"result\":\"0\",\"description\":\"success\"}");
+			}
+		} catch (IllegalArgumentException e) {
+			printInvalid(response, e.getMessage());
+		} catch (RejectedExecutionException e) {
+			// The dispatch queue is full, ask the caller to retry later
+			logger.warn(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", "1");
+			response.getWriter().print(
+					"{\"result\":\"2\",\"description\":\"busy\"}");
 		}
-		
-		response.getWriter().print("{\"result\":\"0\",\"description\":\"success\"}");
 //		ModelAndView mav = new ModelAndView();
 //		mav.setViewName("redirect:notification.do");
 //		return mav;
 	}
 
+	/**
+	 * Sends a notification to a list of users. The usernames are read from
+	 * the request body, separated by new lines, commas or spaces.
+	 */
+	public void multicast(HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		String title = ServletRequestUtils.getStringParameter(request, "title");
+		String message = ServletRequestUtils.getStringParameter(request,
+				"message");
+		String uri = ServletRequestUtils.getStringParameter(request, "uri");
+		String id = ServletRequestUtils.getStringParameter(request, "id");
+		String collapseKey = ServletRequestUtils.getStringParameter(request,
+				"collapseKey");
+
+		Set<String> usernames = new LinkedHashSet<String>();
+		BufferedReader reader = request.getReader();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			for (String username : line.split("[,\\s]+")) {
+				if (username.length() > 0) {
+					usernames.add(username);
+				}
+			}
+		}
+		if (usernames.isEmpty()) {
+			response.getWriter().print(
+					"{\"result\":\"1\",\"description\":\"no recipients\"}");
+			return;
+		}
+
+		String apiKey = Config.getString("apiKey", "");
+		long time = scheduledTime(request);
+		try {
+			if (time > 0) {
+				long scheduleId = ServiceLocator.getNotificationScheduler()
+						.schedule(time, apiKey,
+								usernames.toArray(new String[usernames.size()]),
+								title, message, uri, id, collapseKey);
+				printScheduled(response, scheduleId);
+				return;
+			}
+			BroadcastJob job = ServiceLocator.getNotificationManager()
+					.sendMulticast(apiKey,
+							usernames.toArray(new String[usernames.size()]),
+							title, message, uri, id, collapseKey);
+			if (job == null) {
+				response.getWriter().print(
+						"{\"result\":\"0\",\"description\":\"duplicate\"}");
+				return;
+			}
+			response.getWriter().print(
+					"{\"result\":\"0\",\"description\":\"success\",\"jobId\":\""
+							+ job.getId() + "\",\"recipients\":"
+							+ job.getTotal() + "}");
+		} catch (IllegalArgumentException e) {
+			printInvalid(response, e.getMessage());
+		} catch (RejectedExecutionException e) {
+			logger.warn(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", "1");
+			response.getWriter().print(
+					"{\"result\":\"2\",\"description\":\"busy\"}");
+		}
+	}
+
+	/**
+	 * Cancels a scheduled notification.
+	 */
+	public void cancel(HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		long id = ServletRequestUtils.getLongParameter(request, "id", 0);
+		if (!ServiceLocator.getNotificationScheduler().cancel(id)) {
+			response.getWriter().print(
+					"{\"result\":\"1\",\"description\":\"unknown schedule\"}");
+			return;
+		}
+		response.getWriter().print(
+				"{\"result\":\"0\",\"description\":\"success\"}");
+	}
+
+	/**
+	 * Changes the rate of a paced broadcast while it runs.
+	 */
+	public void rate(HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		long id = ServletRequestUtils.getLongParameter(request, "id", 0);
+		double rate = ServletRequestUtils.getDoubleParameter(request, "rate",
+				0);
+		BroadcastJob job = ServiceLocator.getNotificationManager()
+				.getFanoutEngine().getJob(id);
+		if (job == null || !job.isPaced() || rate <= 0) {
+			response.getWriter().print(
+					"{\"result\":\"1\",\"description\":\"invalid job or rate\"}");
+			return;
+		}
+		job.setRate(rate);
+		response.getWriter().print(
+				"{\"result\":\"0\",\"description\":\"success\",\"job\":"
+						+ job.toJSON() + "}");
+	}
+
+	/**
+	 * Returns the time to send the notification at, given as an absolute
+	 * time in milliseconds or a delay in seconds, or 0 to send it now.
+	 */
+	private long scheduledTime(HttpServletRequest request) {
+		long at = ServletRequestUtils.getLongParameter(request, "at", 0);
+		long delay = ServletRequestUtils.getLongParameter(request, "delay", 0);
+		if (at > 0) {
+			return at;
+		}
+		return delay > 0 ? System.currentTimeMillis() + delay * 1000 : 0;
+	}
+
+	/**
+	 * Prints an invalid request result, escaping the description as a JSON
+	 * string.
+	 */
+	private void printInvalid(HttpServletResponse response, String description)
+			throws IOException {
+		StringBuilder sb = new StringBuilder(
+				"{\"result\":\"1\",\"description\":\"");
+		for (char ch : String.valueOf(description).toCharArray()) {
+			if (ch == '"' || ch == '\\') {
+				sb.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				sb.append(String.format("\\u%04x", (int) ch));
+			} else {
+				sb.append(ch);
+			}
+		}
+		sb.append("\"}");
+		response.getWriter().print(sb);
+	}
+
+	private void printScheduled(HttpServletResponse response, long scheduleId)
+			throws IOException {
+		response.getWriter().print(
+				"{\"result\":\"0\",\"description\":\"scheduled\",\"scheduleId\":\""
+						+ scheduleId + "\"}");
+	}
+
+	public void job(HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		long id = ServletRequestUtils.getLongParameter(request, "id", 0);
+		BroadcastJob job = ServiceLocator.getNotificationManager()
+				.getFanoutEngine().getJob(id);
+		if (job == null) {
+			response.getWriter().print(
+					"{\"result\":\"1\",\"description\":\"unknown job\"}");
+			return;
+		}
+		response.getWriter().print(
+				"{\"result\":\"0\",\"description\":\"success\",\"job\":"
+						+ job.toJSON() + "}");
+	}
+
 }
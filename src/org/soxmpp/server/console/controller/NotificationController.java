@@ -17,10 +17,17 @@
  */
 package org.soxmpp.server.console.controller;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.soxmpp.server.service.ServiceLocator;
 import org.soxmpp.server.util.Config;
+import org.soxmpp.server.xmpp.push.BroadcastJob;
 import org.soxmpp.server.xmpp.push.NotificationManager;
 import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.servlet.ModelAndView;
@@ -33,16 +40,22 @@ import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
  */
 public class NotificationController extends MultiActionController {
 
-    private NotificationManager notificationManager;
-
     public NotificationController() {
-        notificationManager = new NotificationManager();
     }
 
     public ModelAndView list(HttpServletRequest request,
             HttpServletResponse response) throws Exception {
+        List<BroadcastJob> jobList = new ArrayList<BroadcastJob>(
+                ServiceLocator.getNotificationManager().getFanoutEngine()
+                        .getJobs());
+        Collections.sort(jobList, new Comparator<BroadcastJob>() {
+            public int compare(BroadcastJob j1, BroadcastJob j2) {
+                return j1.getId() < j2.getId() ? 1
+                        : (j1.getId() == j2.getId() ? 0 : -1);
+            }
+        });
         ModelAndView mav = new ModelAndView();
-        // mav.addObject("list", null);
+        mav.addObject("jobList", jobList);
         mav.setViewName("notification/form");
         return mav;
     }
@@ -57,12 +70,17 @@ public class NotificationController extends MultiActionController {
         String message = ServletRequestUtils.getStringParameter(request,
                 "message");
         String uri = ServletRequestUtils.getStringParameter(request, "uri");
+        double rate = ServletRequestUtils.getDoubleParameter(request, "rate",
+                0);
 
         String apiKey = Config.getString("apiKey", "");
         logger.debug("apiKey=" + apiKey);
 
+        NotificationManager notificationManager = ServiceLocator
+                .getNotificationManager();
         if (broadcast.equalsIgnoreCase("Y")) {
-            notificationManager.sendBroadcast(apiKey, title, message, uri);
+            notificationManager.sendBroadcast(apiKey, title, message, uri,
+                    null, null, rate, 0);
         } else {
             notificationManager.sendNotifcationToUser(apiKey, username, title,
                     message, uri);
@@ -73,4 +91,20 @@ public class NotificationController extends MultiActionController {
         return mav;
     }
 
+    public ModelAndView rate(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        long id = ServletRequestUtils.getLongParameter(request, "id", 0);
+        double rate = ServletRequestUtils.getDoubleParameter(request, "rate",
+                0);
+        BroadcastJob job = ServiceLocator.getNotificationManager()
+                .getFanoutEngine().getJob(id);
+        if (job != null && job.isPaced() && rate > 0) {
+            job.setRate(rate);
+        }
+
+        ModelAndView mav = new ModelAndView();
+        mav.setViewName("redirect:notification.do");
+        return mav;
+    }
+
 }
@@ -25,9 +25,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.soxmpp.server.console.vo.SessionVO;
 import org.soxmpp.server.xmpp.XmppServer;
+import org.soxmpp.server.xmpp.net.CompressionStats;
+import org.soxmpp.server.xmpp.net.IoBufferPool;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
 import org.soxmpp.server.xmpp.session.SessionManager;
+import org.soxmpp.server.xmpp.ssl.SSLConfig;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
 import org.xmpp.packet.Presence;
@@ -88,6 +91,12 @@ public class SessionController extends MultiActionController {
 			}
 			vo.setClientIP(sess.getHostAddress());
 			vo.setCreatedDate(sess.getCreationDate());
+			// Compression
+			CompressionStats stats = sess.getConnection()
+					.getCompressionStats();
+			if (stats != null) {
+				vo.setCompression(stats.toString());
+			}
 			voList.add(vo);
 		}
 
@@ -97,4 +106,36 @@ public class SessionController extends MultiActionController {
 		return mav;
 	}
 
+	/**
+	 * Prints the TLS handshake counters and latency histogram as JSON.
+	 */
+	public void tls(HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		response.getWriter().print(SSLConfig.getHandshakeStats().toJSON());
+	}
+
+	/**
+	 * Prints the hit, miss and outstanding-buffer counters of the outbound
+	 * buffer pool as JSON.
+	 */
+	public void buffers(HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		response.getWriter().print(IoBufferPool.getInstance().toJSON());
+	}
+
+	/**
+	 * Reloads the TLS keystore and truststore. Established sessions keep
+	 * their keys.
+	 */
+	public void tlsReload(HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		if (SSLConfig.reload()) {
+			response.getWriter().print(
+					"{\"result\":\"0\",\"description\":\"reloaded\"}");
+		} else {
+			response.getWriter().print(
+					"{\"result\":\"1\",\"description\":\"failed, see the server log\"}");
+		}
+	}
+
 }
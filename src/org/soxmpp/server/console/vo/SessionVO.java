@@ -38,6 +38,8 @@ public class SessionVO {
 
     private Date createdDate;
 
+    private String compression;
+
     public String getUsername() {
         return username;
     }
@@ -86,4 +88,12 @@ public class SessionVO {
         this.createdDate = createdDate;
     }
 
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
 }
@@ -19,6 +19,8 @@ package org.soxmpp.server.service;
 
 
 import org.soxmpp.server.xmpp.XmppServer;
+import org.soxmpp.server.xmpp.push.NotificationManager;
+import org.soxmpp.server.xmpp.push.NotificationScheduler;
 
 /** 
  * This is a helper class to look up service objects.
@@ -29,6 +31,10 @@ public class ServiceLocator {
 
     public static String USER_SERVICE = "userService";
 
+    public static String NOTIFICATION_MANAGER = "NotificationManager";
+
+    public static String NOTIFICATION_SCHEDULER = "NotificationScheduler";
+
     /**
      * Generic method to obtain a service object for a given name. 
      * 
@@ -48,4 +54,24 @@ public class ServiceLocator {
         return (UserService) XmppServer.getInstance().getBean(USER_SERVICE);
     }
 
+    /**
+     * Obtains the notification manager.
+     * 
+     * @return the notification manager
+     */
+    public static NotificationManager getNotificationManager() {
+        return (NotificationManager) XmppServer.getInstance().getBean(
+                NOTIFICATION_MANAGER);
+    }
+
+    /**
+     * Obtains the notification scheduler.
+     * 
+     * @return the notification scheduler
+     */
+    public static NotificationScheduler getNotificationScheduler() {
+        return (NotificationScheduler) XmppServer.getInstance().getBean(
+                NOTIFICATION_SCHEDULER);
+    }
+
 }
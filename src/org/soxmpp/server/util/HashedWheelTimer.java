@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A timer that handles a large number of timeouts with a single thread.
+ * <p>
+ * Timeouts are kept in a wheel of buckets; the thread advances one bucket
+ * per tick and runs the timeouts that have expired. Scheduling and
+ * cancelling are O(1), and a timeout fires at most one tick late. Tasks run
+ * on the timer thread, so they must be short and hand longer work to an
+ * executor.
+ */
+public class HashedWheelTimer {
+
+    private static final Log log = LogFactory.getLog(HashedWheelTimer.class);
+
+    private final String name;
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile long startTime;
+
+    private volatile Thread worker;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the timer thread
+     * @param tickDuration the duration of a tick
+     * @param unit the time unit of the tick duration
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit,
+            int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Invalid wheel: tick="
+                    + tickDuration + ", ticksPerWheel=" + ticksPerWheel);
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts the timer thread. The timer is started by the first timeout
+     * if this method was not called.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        startTime = System.nanoTime();
+        Thread thread = new Thread(new Worker(), name);
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts are discarded.
+     */
+    public synchronized void stop() {
+        Thread thread = worker;
+        if (thread == null) {
+            return;
+        }
+        worker = null;
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @param task the task to run
+     * @param delay the delay
+     * @param unit the time unit of the delay
+     * @return the handle of the timeout
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (worker == null) {
+            start();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of timeouts that have neither fired nor been
+     * cancelled.
+     *
+     * @return the number of pending timeouts
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * The handle of a scheduled task.
+     */
+    public final class Timeout {
+
+        private static final int ST_PENDING = 0;
+
+        private static final int ST_CANCELLED = 1;
+
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+        private long remainingRounds;
+
+        private Timeout next;
+
+        private Timeout prev;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout. The task is not run if it has not run yet.
+         *
+         * @return true if the timeout was cancelled, false if it already
+         *         fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Returns true if the timeout was cancelled.
+         *
+         * @return true if cancelled, false otherwise
+         */
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        /**
+         * Returns true if the task of the timeout was run.
+         *
+         * @return true if expired, false otherwise
+         */
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warn("Timer task failed: " + task, t);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, only accessed by the timer thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            return next;
+        }
+
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.remainingRounds <= 0
+                        && timeout.deadline <= now) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private long tick;
+
+        public void run() {
+            while (worker == Thread.currentThread()) {
+                long now = waitForNextTick();
+                if (now < 0) {
+                    break;
+                }
+                transferAdded();
+                wheel[(int) (tick & mask)].expire(now);
+                tick++;
+            }
+        }
+
+        /**
+         * Sleeps until the next tick and returns the current time relative
+         * to the start time, or -1 if the timer was stopped.
+         */
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (;;) {
+                long now = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - now + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return now;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (worker != Thread.currentThread()) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferAdded() {
+            // Bound the transfer so a burst of timeouts can not stall a tick
+            for (int i = 0; i < 100000; i++) {
+                Timeout timeout = added.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long expiryTick = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+                long ticks = Math.max(expiryTick, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.util;
+
+/**
+ * A token bucket that limits the rate of an operation.
+ * <p>
+ * Tokens are added continuously at the configured rate, up to the burst
+ * size, and taken without blocking with {@link #acquire(int)}. Tokens taken
+ * but not used can be given back with {@link #refund(int)}. The rate can be
+ * changed at any time; the change applies to the tokens added from then on.
+ */
+public class TokenBucket {
+
+    private double rate;
+
+    private double burst;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * Constructor.
+     *
+     * @param rate the number of tokens added per second
+     * @param burst the maximum number of tokens kept
+     */
+    public TokenBucket(double rate, double burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid bucket: rate="
+                    + rate + ", burst=" + burst);
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Returns the number of tokens added per second.
+     *
+     * @return the rate
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the number of tokens added per second. The burst size is
+     * scaled by the same factor.
+     *
+     * @param rate the new rate
+     */
+    public synchronized void setRate(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        refill();
+        burst = Math.max(1, burst * rate / this.rate);
+        tokens = Math.min(tokens, burst);
+        this.rate = rate;
+    }
+
+    /**
+     * Takes up to <tt>max</tt> tokens without waiting.
+     *
+     * @param max the maximum number of tokens to take
+     * @return the number of tokens taken, possibly 0
+     */
+    public synchronized int acquire(int max) {
+        refill();
+        int n = (int) Math.min(tokens, max);
+        tokens -= n;
+        return n;
+    }
+
+    /**
+     * Gives back tokens taken with {@link #acquire(int)} but not used, up to
+     * the burst size.
+     *
+     * @param n the number of tokens to give back
+     */
+    public synchronized void refund(int n) {
+        refill();
+        tokens = Math.min(burst, tokens + n);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+}
@@ -85,6 +85,9 @@ public class XmppServer {
                     .toLowerCase();
             context = new ClassPathXmlApplicationContext("xmpp-config.xml");
             log.info("Spring Configuration loaded.");
+            if (context.containsBean("networkTopology")) {
+                log.info(context.getBean("networkTopology"));
+            }
 
             log.info("XmppServer started: " + serverName);
             log.info("Androidpn Server v" + version);
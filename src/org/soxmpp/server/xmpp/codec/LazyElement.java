@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.tree.BaseElement;
+
+/**
+ * The element of a received IQ stanza whose content is parsed on first use.
+ * <p>
+ * The stream parser builds the element with its attributes and keeps the
+ * UTF-8 bytes of its content. The child elements and text are built the
+ * first time the content is accessed, so stanzas routed on their envelope
+ * alone, such as pings and answers, never build them. The name and
+ * namespace of the first child element are known without parsing the
+ * content.
+ */
+public class LazyElement extends BaseElement {
+
+    private static final long serialVersionUID = 1L;
+
+    private byte[] body;
+
+    private String[] prefixes;
+
+    private String[] uris;
+
+    private String childName;
+
+    private String childNamespace;
+
+    /**
+     * Constructor.
+     *
+     * @param qname the qualified name of the element
+     */
+    public LazyElement(QName qname) {
+        super(qname);
+    }
+
+    /**
+     * Sets the content of the element still to be parsed.
+     *
+     * @param body the UTF-8 bytes of the content
+     * @param prefixes the namespace prefixes in scope
+     * @param uris the namespace URIs bound to the prefixes
+     * @param childName the name of the first child element
+     * @param childNamespace the namespace URI of the first child element
+     */
+    void setBody(byte[] body, String[] prefixes, String[] uris,
+            String childName, String childNamespace) {
+        this.body = body;
+        this.prefixes = prefixes;
+        this.uris = uris;
+        this.childName = childName;
+        this.childNamespace = childNamespace;
+    }
+
+    /**
+     * Returns true if the content of the element has been parsed.
+     *
+     * @return true if the content is parsed, false otherwise
+     */
+    public boolean isExpanded() {
+        return body == null;
+    }
+
+    /**
+     * Returns the name of the first child element, or null if the element
+     * has no child element.
+     *
+     * @return the name of the first child element
+     */
+    public String getChildName() {
+        if (body != null) {
+            return childName;
+        }
+        Element child = firstChild(this);
+        return child != null ? child.getName() : null;
+    }
+
+    /**
+     * Returns the namespace URI of the first child element, or null if the
+     * element has no child element.
+     *
+     * @return the namespace URI of the first child element
+     */
+    public String getChildNamespace() {
+        if (body != null) {
+            return childNamespace;
+        }
+        Element child = firstChild(this);
+        return child != null ? child.getNamespaceURI() : null;
+    }
+
+    /**
+     * Returns the name of the first child element of a stanza, without
+     * parsing the content of a lazy element.
+     *
+     * @param stanza the stanza element
+     * @return the name of the first child element, or null if none
+     */
+    public static String childName(Element stanza) {
+        if (stanza instanceof LazyElement) {
+            return ((LazyElement) stanza).getChildName();
+        }
+        Element child = firstChild(stanza);
+        return child != null ? child.getName() : null;
+    }
+
+    /**
+     * Returns the namespace URI of the first child element of a stanza,
+     * without parsing the content of a lazy element.
+     *
+     * @param stanza the stanza element
+     * @return the namespace URI of the first child element, or null if none
+     */
+    public static String childNamespace(Element stanza) {
+        if (stanza instanceof LazyElement) {
+            return ((LazyElement) stanza).getChildNamespace();
+        }
+        Element child = firstChild(stanza);
+        return child != null ? child.getNamespaceURI() : null;
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected List contentList() {
+        if (body != null) {
+            byte[] bytes = body;
+            body = null;
+            try {
+                StreamParser.parseContent(this, bytes, prefixes, uris);
+            } catch (ProtocolDecoderException e) {
+                throw new IllegalStateException("Invalid content of "
+                        + getQualifiedName(), e);
+            } finally {
+                prefixes = null;
+                uris = null;
+            }
+        }
+        return super.contentList();
+    }
+
+    @Override
+    public void clearContent() {
+        body = null;
+        super.clearContent();
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void setContent(List content) {
+        body = null;
+        super.setContent(content);
+    }
+
+    private static Element firstChild(Element element) {
+        Iterator<?> it = element.elementIterator();
+        return it.hasNext() ? (Element) it.next() : null;
+    }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.tree.NamespaceStack;
+
+/**
+ * Serializes stanza elements into UTF-8 bytes.
+ * <p>
+ * The output is the same, byte for byte, as the
+ * {@link org.jivesoftware.util.XMLWriter} with the default output format
+ * encoded in UTF-8: no indentation, empty elements closed with
+ * <tt>/&gt;</tt>, and the namespace declarations written where the writer
+ * writes them. The serializer walks the element tree and encodes the
+ * characters itself, copying the runs of ASCII characters that need no
+ * escaping directly, and the names and namespaces common in stanzas from
+ * bytes encoded once. The bytes are gathered in an array reused by the
+ * serializer and put in the buffer at once.
+ * <p>
+ * A serializer is not thread safe; one instance is kept per thread.
+ */
+public class StanzaSerializer {
+
+    private static final String[] COMMON_NAMES = { "iq", "message",
+            "presence", "query", "error", "body", "subject", "thread", "show",
+            "status", "priority", "notification", "id", "apiKey", "title",
+            "uri", "collapseKey", "item", "group", "username", "password",
+            "digest", "resource", "bind", "jid", "session", "ping", "text",
+            "stream:error", "stream:features" };
+
+    private static final String[] COMMON_ATTRIBUTES = { "id", "to", "from",
+            "type", "xml:lang", "jid", "name", "subscription", "ask", "code" };
+
+    private static final String[] COMMON_NAMESPACES = {
+            "androidpn:iq:notification", "jabber:iq:auth", "jabber:iq:register",
+            "jabber:iq:roster", "urn:xmpp:ping",
+            "urn:ietf:params:xml:ns:xmpp-bind",
+            "urn:ietf:params:xml:ns:xmpp-session",
+            "urn:ietf:params:xml:ns:xmpp-stanzas",
+            "urn:ietf:params:xml:ns:xmpp-streams" };
+
+    // Element names
+    private static final Map<String, byte[]> NAMES = new HashMap<String, byte[]>();
+
+    // The bytes of ' name="' for attribute names
+    private static final Map<String, byte[]> ATTRIBUTES = new HashMap<String, byte[]>();
+
+    // The bytes of ' xmlns="uri"' for default namespaces
+    private static final Map<String, byte[]> NAMESPACES = new HashMap<String, byte[]>();
+
+    // ASCII characters written as they are in text and attribute values
+    private static final boolean[] TEXT_PLAIN = new boolean[128];
+
+    private static final boolean[] ATTRIBUTE_PLAIN = new boolean[128];
+
+    static {
+        for (String name : COMMON_NAMES) {
+            NAMES.put(name, ascii(name));
+        }
+        for (String name : COMMON_ATTRIBUTES) {
+            ATTRIBUTES.put(name, ascii(" " + name + "=\""));
+        }
+        for (String uri : COMMON_NAMESPACES) {
+            NAMESPACES.put(uri, ascii(" xmlns=\"" + uri + "\""));
+        }
+        for (int c = 0; c < 128; c++) {
+            boolean plain = c >= 0x20 || c == '\t' || c == '\n' || c == '\r';
+            TEXT_PLAIN[c] = plain && c != '<' && c != '>' && c != '&';
+            ATTRIBUTE_PLAIN[c] = TEXT_PLAIN[c] && c != '"';
+        }
+    }
+
+    // The largest array kept between two stanzas
+    private static final int MAX_RETAINED = 65536;
+
+    private final NamespaceStack namespaceStack = new NamespaceStack();
+
+    private byte[] bytes = new byte[1024];
+
+    private int length;
+
+    /**
+     * Constructor.
+     */
+    public StanzaSerializer() {
+        namespaceStack.push(Namespace.NO_NAMESPACE);
+    }
+
+    /**
+     * Writes the element and its content into the buffer.
+     *
+     * @param element the element
+     * @param buffer the auto-expanding buffer
+     * @throws IOException if the element holds a character that cannot be
+     *             encoded or a node that cannot be written
+     */
+    public void write(Element element, IoBuffer buffer) throws IOException {
+        serialize(element);
+        buffer.put(bytes, 0, length);
+        release();
+    }
+
+    /**
+     * Returns the bytes of the element and its content.
+     *
+     * @param element the element
+     * @return the UTF-8 bytes
+     * @throws IOException if the element holds a character that cannot be
+     *             encoded or a node that cannot be written
+     */
+    public byte[] toBytes(Element element) throws IOException {
+        serialize(element);
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        release();
+        return copy;
+    }
+
+    private void release() {
+        if (bytes.length > MAX_RETAINED) {
+            bytes = new byte[1024];
+        }
+    }
+
+    private void serialize(Element element) throws IOException {
+        length = 0;
+        int depth = namespaceStack.size();
+        try {
+            writeElement(element);
+        } finally {
+            // Left declared if the element could not be written
+            while (namespaceStack.size() > depth) {
+                namespaceStack.pop();
+            }
+        }
+    }
+
+    private void writeElement(Element element) throws IOException {
+        int size = element.nodeCount();
+        String qualifiedName = element.getQualifiedName();
+
+        put('<');
+        putName(qualifiedName);
+
+        int previouslyDeclaredNamespaces = namespaceStack.size();
+        Namespace ns = element.getNamespace();
+        if (isNamespaceDeclaration(ns)) {
+            namespaceStack.push(ns);
+            writeNamespace(ns.getPrefix(), ns.getURI());
+        }
+        for (int i = 0; i < size; i++) {
+            Node node = element.node(i);
+            if (node instanceof Namespace) {
+                Namespace additional = (Namespace) node;
+                if (isNamespaceDeclaration(additional)) {
+                    namespaceStack.push(additional);
+                    writeNamespace(additional.getPrefix(), additional.getURI());
+                }
+            }
+        }
+
+        writeAttributes(element);
+
+        if (size <= 0) {
+            put('/');
+            put('>');
+        } else {
+            put('>');
+            for (int i = 0; i < size; i++) {
+                writeNode(element.node(i));
+            }
+            put('<');
+            put('/');
+            putName(qualifiedName);
+            put('>');
+        }
+
+        while (namespaceStack.size() > previouslyDeclaredNamespaces) {
+            namespaceStack.pop();
+        }
+    }
+
+    private void writeNode(Node node) throws IOException {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            writeElement((Element) node);
+            break;
+        case Node.ATTRIBUTE_NODE:
+            writeAttribute((Attribute) node);
+            break;
+        case Node.TEXT_NODE:
+            putText(node.getText(), TEXT_PLAIN);
+            break;
+        case Node.CDATA_SECTION_NODE:
+            putAscii("<![CDATA[");
+            putRaw(node.getText());
+            putAscii("]]>");
+            break;
+        case Node.ENTITY_REFERENCE_NODE:
+            // Entity references are resolved
+            putRaw(node.getText());
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            putAscii("<?");
+            putRaw(node.getName());
+            put(' ');
+            putRaw(node.getText());
+            putAscii("?>");
+            break;
+        case Node.COMMENT_NODE:
+            putAscii("<!--");
+            putRaw(node.getText());
+            putAscii("-->");
+            break;
+        case Node.NAMESPACE_NODE:
+            // Written with the attributes
+            break;
+        default:
+            throw new IOException("Invalid node type: " + node);
+        }
+    }
+
+    private void writeAttributes(Element element) throws IOException {
+        for (int i = 0, size = element.attributeCount(); i < size; i++) {
+            Attribute attribute = element.attribute(i);
+            Namespace ns = attribute.getNamespace();
+            if (ns != null && ns != Namespace.NO_NAMESPACE
+                    && ns != Namespace.XML_NAMESPACE) {
+                String prefix = ns.getPrefix();
+                String uri = namespaceStack.getURI(prefix);
+                if (!ns.getURI().equals(uri)) {
+                    writeNamespace(ns.getPrefix(), ns.getURI());
+                    namespaceStack.push(ns);
+                }
+            }
+
+            String attName = attribute.getName();
+            if (attName.startsWith("xmlns:")) {
+                String prefix = attName.substring(6);
+                if (namespaceStack.getNamespaceForPrefix(prefix) == null) {
+                    String uri = attribute.getValue();
+                    namespaceStack.push(prefix, uri);
+                    writeNamespace(prefix, uri);
+                }
+            } else if (attName.equals("xmlns")) {
+                if (namespaceStack.getDefaultNamespace() == null) {
+                    String uri = attribute.getValue();
+                    namespaceStack.push(null, uri);
+                    writeNamespace(null, uri);
+                }
+            } else {
+                writeAttribute(attribute);
+            }
+        }
+    }
+
+    private void writeAttribute(Attribute attribute) throws IOException {
+        String qualifiedName = attribute.getQualifiedName();
+        byte[] encoded = ATTRIBUTES.get(qualifiedName);
+        if (encoded != null) {
+            put(encoded);
+        } else {
+            put(' ');
+            putRaw(qualifiedName);
+            put('=');
+            put('"');
+        }
+        String value = attribute.getValue();
+        if (value != null) {
+            putText(value, ATTRIBUTE_PLAIN);
+        }
+        put('"');
+    }
+
+    private void writeNamespace(String prefix, String uri) throws IOException {
+        if (prefix != null && prefix.length() > 0) {
+            putAscii(" xmlns:");
+            putRaw(prefix);
+            put('=');
+            put('"');
+        } else {
+            byte[] encoded = NAMESPACES.get(uri);
+            if (encoded != null) {
+                put(encoded);
+                return;
+            }
+            putAscii(" xmlns=\"");
+        }
+        putRaw(uri);
+        put('"');
+    }
+
+    private boolean isNamespaceDeclaration(Namespace ns) {
+        return ns != null && ns != Namespace.XML_NAMESPACE
+                && ns.getURI() != null && !namespaceStack.contains(ns);
+    }
+
+    private void putName(String name) throws IOException {
+        byte[] encoded = NAMES.get(name);
+        if (encoded != null) {
+            put(encoded);
+        } else {
+            putRaw(name);
+        }
+    }
+
+    /**
+     * Writes text with the XML special characters escaped. The runs of
+     * ASCII characters that need no escaping are copied without a check.
+     */
+    private void putText(String text, boolean[] plain) throws IOException {
+        int n = text.length();
+        ensure(n);
+        byte[] b = bytes;
+        int pos = length;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80 && plain[c]) {
+                b[pos++] = (byte) c;
+                continue;
+            }
+            length = pos;
+            switch (c) {
+            case '<':
+                putAscii("&lt;");
+                break;
+            case '>':
+                putAscii("&gt;");
+                break;
+            case '&':
+                putAscii("&amp;");
+                break;
+            case '"':
+                putAscii("&quot;");
+                break;
+            default:
+                if (c < 0x20) {
+                    putAscii("&#");
+                    putAscii(Integer.toString(c));
+                    put(';');
+                } else {
+                    i = putChar(text, i);
+                }
+            }
+            ensure(n - i);
+            b = bytes;
+            pos = length;
+        }
+        length = pos;
+    }
+
+    /**
+     * Writes text as it is.
+     */
+    private void putRaw(String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        int n = text.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                i = putChar(text, i);
+                ensure(n - i);
+            }
+        }
+    }
+
+    /**
+     * Encodes the non ASCII character at the index, and returns the index of
+     * its last char.
+     */
+    private int putChar(String text, int i) throws IOException {
+        char c = text.charAt(i);
+        ensure(4);
+        if (c < 0x800) {
+            bytes[length++] = (byte) (0xc0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+            bytes[length++] = (byte) (0xe0 | (c >> 12));
+            bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, text.charAt(i + 1));
+            bytes[length++] = (byte) (0xf0 | (cp >> 18));
+            bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+            return i + 1;
+        } else {
+            // Not encodable, as the UTF-8 charset encoder reports it
+            throw new MalformedInputException(1);
+        }
+        return i;
+    }
+
+    private void putAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            bytes[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+    }
+
+    private void put(char c) {
+        ensure(1);
+        bytes[length++] = (byte) c;
+    }
+
+    /**
+     * Makes room for at least the given number of bytes.
+     */
+    private void ensure(int n) {
+        if (length + n > bytes.length) {
+            byte[] newBytes = new byte[Math.max(bytes.length * 2, length + n)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+}
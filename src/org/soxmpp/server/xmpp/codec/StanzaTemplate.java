@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A constant or nearly constant piece of XML encoded to UTF-8 once. The
+ * template text may hold placeholders written <tt>${name}</tt>; their values
+ * are escaped, encoded and spliced between the pre-encoded bytes when the
+ * template is written.
+ * <p>
+ * A placeholder that makes up a whole attribute value, as in
+ * <tt>to="${to}"</tt>, stands for an optional attribute: when its value is
+ * null the attribute is left out. Other placeholders are written empty when
+ * their value is null. Values inside attributes are escaped like attribute
+ * values, the others like text.
+ * <p>
+ * A template is immutable and may be shared by any number of threads.
+ */
+public class StanzaTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern
+            .compile("\\$\\{([^}]+)\\}");
+
+    private static final Pattern ATTRIBUTE_START = Pattern
+            .compile(" [\\w:.-]+=\"$");
+
+    private static final byte[] QUOTE = { '"' };
+
+    private static final byte[] LT = utf8("&lt;");
+
+    private static final byte[] GT = utf8("&gt;");
+
+    private static final byte[] AMP = utf8("&amp;");
+
+    private static final byte[] QUOT = utf8("&quot;");
+
+    private static final int MIN_SURROGATE = 0xD800;
+
+    private static final int MAX_SURROGATE = 0xDFFF;
+
+    private final String text;
+
+    // The bytes around the placeholders, one more than the placeholders
+    private final byte[][] literals;
+
+    private final String[] names;
+
+    // The bytes of ' name="' for optional attributes, null otherwise
+    private final byte[][] attributes;
+
+    // True for the values escaped as attribute values
+    private final boolean[] quoted;
+
+    private final int literalLength;
+
+    /**
+     * Constructor.
+     *
+     * @param text the template text
+     */
+    public StanzaTemplate(String text) {
+        this.text = text;
+        List<String> parts = new ArrayList<String>();
+        List<String> placeholders = new ArrayList<String>();
+        Matcher matcher = PLACEHOLDER.matcher(text);
+        int start = 0;
+        while (matcher.find()) {
+            parts.add(text.substring(start, matcher.start()));
+            placeholders.add(matcher.group(1));
+            start = matcher.end();
+        }
+        parts.add(text.substring(start));
+
+        int count = placeholders.size();
+        names = placeholders.toArray(new String[count]);
+        literals = new byte[count + 1][];
+        attributes = new byte[count][];
+        quoted = new boolean[count];
+
+        boolean inTag = false;
+        char quote = 0;
+        for (int i = 0; i <= count; i++) {
+            String part = parts.get(i);
+            for (int j = 0; j < part.length(); j++) {
+                char ch = part.charAt(j);
+                if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                } else if (inTag && (ch == '"' || ch == '\'')) {
+                    quote = ch;
+                } else if (ch == '<') {
+                    inTag = true;
+                } else if (ch == '>') {
+                    inTag = false;
+                }
+            }
+            if (i == count) {
+                break;
+            }
+            quoted[i] = quote != 0;
+            Matcher attribute = ATTRIBUTE_START.matcher(part);
+            String next = parts.get(i + 1);
+            if (quote == '"' && attribute.find() && next.startsWith("\"")) {
+                attributes[i] = utf8(attribute.group());
+                parts.set(i, part.substring(0, attribute.start()));
+                parts.set(i + 1, next.substring(1));
+                quote = 0;
+            }
+        }
+
+        int length = 0;
+        for (int i = 0; i <= count; i++) {
+            literals[i] = utf8(parts.get(i));
+            length += literals[i].length;
+        }
+        literalLength = length;
+    }
+
+    /**
+     * Returns the names of the placeholders, in the order their values are
+     * given.
+     *
+     * @return the placeholder names
+     */
+    public String[] getPlaceholders() {
+        return names.clone();
+    }
+
+    /**
+     * Returns the number of bytes the template takes with the given values.
+     *
+     * @param values the placeholder values
+     * @return the encoded length
+     */
+    public int getLength(String... values) {
+        checkValues(values);
+        int length = literalLength;
+        for (int i = 0; i < names.length; i++) {
+            String value = values[i];
+            if (value == null) {
+                continue;
+            }
+            if (attributes[i] != null) {
+                length += attributes[i].length + 1;
+            }
+            for (int j = 0; j < value.length(); j++) {
+                char ch = value.charAt(j);
+                if (ch < 0x80) {
+                    byte[] escape = escape(ch, quoted[i]);
+                    length += escape != null ? escape.length : 1;
+                } else if (ch < 0x800) {
+                    length += 2;
+                } else if (ch < MIN_SURROGATE || ch > MAX_SURROGATE) {
+                    length += 3;
+                } else {
+                    // A surrogate pair takes four bytes in all
+                    length += 2;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the template with the given values into the buffer.
+     *
+     * @param buffer the buffer
+     * @param values the placeholder values
+     * @throws IllegalArgumentException if the number of values does not match
+     *             the placeholders, or a value holds a lone surrogate
+     */
+    public void write(IoBuffer buffer, String... values) {
+        checkValues(values);
+        buffer.put(literals[0]);
+        for (int i = 0; i < names.length; i++) {
+            String value = values[i];
+            if (value != null) {
+                if (attributes[i] != null) {
+                    buffer.put(attributes[i]);
+                }
+                encode(value, quoted[i], buffer);
+                if (attributes[i] != null) {
+                    buffer.put(QUOTE);
+                }
+            }
+            buffer.put(literals[i + 1]);
+        }
+    }
+
+    /**
+     * Returns the bytes of the template with the given values.
+     *
+     * @param values the placeholder values
+     * @return the UTF-8 bytes
+     */
+    public byte[] toBytes(String... values) {
+        IoBuffer buffer = IoBuffer.allocate(getLength(values), false);
+        write(buffer, values);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the template text.
+     */
+    public String toString() {
+        return text;
+    }
+
+    private void checkValues(String[] values) {
+        if (values.length != names.length) {
+            throw new IllegalArgumentException("Expected " + names.length
+                    + " values for " + text + ", got " + values.length);
+        }
+    }
+
+    private static void encode(String value, boolean attribute,
+            IoBuffer buffer) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                byte[] escape = escape(ch, attribute);
+                if (escape != null) {
+                    buffer.put(escape);
+                } else {
+                    buffer.put((byte) ch);
+                }
+            } else if (ch < 0x800) {
+                buffer.put((byte) (0xC0 | (ch >> 6)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            } else if (ch < MIN_SURROGATE || ch > MAX_SURROGATE) {
+                buffer.put((byte) (0xE0 | (ch >> 12)));
+                buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            } else {
+                char low = i + 1 < value.length() ? value.charAt(i + 1) : 0;
+                if (ch > 0xDBFF || low < 0xDC00 || low > MAX_SURROGATE) {
+                    throw new IllegalArgumentException(
+                            "Lone surrogate in value: " + value);
+                }
+                int cp = 0x10000 + ((ch - MIN_SURROGATE) << 10)
+                        + (low - 0xDC00);
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Returns the escaped form of an ASCII character, or null if it is
+     * written as it is.
+     */
+    private static byte[] escape(char ch, boolean attribute) {
+        switch (ch) {
+        case '<':
+            return LT;
+        case '>':
+            return GT;
+        case '&':
+            return AMP;
+        case '"':
+            return attribute ? QUOT : null;
+        case '\t':
+        case '\n':
+        case '\r':
+            return null;
+        default:
+            return ch < 0x20 ? utf8("&#" + (int) ch + ";") : null;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,987 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.codec;
+
+import java.util.ArrayList;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+/**
+ * Parses a stream of UTF-8 bytes into the DOM elements of its stanzas in a
+ * single pass.
+ * <p>
+ * The parser decodes every byte once and builds the element of the current
+ * stanza as its tags, text and CDATA sections arrive. It keeps its whole
+ * state between calls, so the bytes of an incomplete stanza need not be
+ * kept by the caller. The elements are built the way the
+ * {@link org.dom4j.io.XMPPPacketReader} builds them: elements in the
+ * <tt>jabber:client</tt> and related namespaces get no namespace.
+ * <p>
+ * A stanza is written out as its {@link Element} once its closing tag is
+ * reached. A lazy parser only builds the element of an IQ stanza with its
+ * attributes and keeps the bytes of its content in a {@link LazyElement}; the
+ * content is then scanned for the closing tag and the first child element
+ * only, and parsed when it is first used. Messages and presences are always
+ * read by their handlers and are parsed at once. The opening stream tag is
+ * written out as its UTF-8 bytes, which the session creation reads with a
+ * pull parser, and the closing stream tag as the bytes of
+ * <tt>&lt;/stream:stream&gt;</tt>. XML declarations and processing
+ * instructions are skipped.
+ * <p>
+ * A parser keeps the state of one connection and is not thread safe.
+ */
+public class StreamParser {
+
+    /**
+     * The maximum size of a stanza. The connection is closed if a stanza
+     * grows larger.
+     */
+    public static final int MAX_STANZA_SIZE = 1048576;
+
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+    private static final String COMMENT_START = "<!--";
+
+    private static final String CDATA_START = "<![CDATA[";
+
+    private static final int TEXT = 0;
+
+    private static final int TAG_OPEN = 1;
+
+    private static final int START_NAME = 2;
+
+    private static final int TAG_SPACE = 3;
+
+    private static final int ATTR_NAME = 4;
+
+    private static final int ATTR_EQ = 5;
+
+    private static final int ATTR_QUOTE = 6;
+
+    private static final int ATTR_VALUE = 7;
+
+    private static final int EMPTY_TAG = 8;
+
+    private static final int END_NAME = 9;
+
+    private static final int END_SPACE = 10;
+
+    private static final int MARKUP = 11;
+
+    private static final int COMMENT = 12;
+
+    private static final int CDATA = 13;
+
+    private static final int PI = 14;
+
+    private static final int ENTITY = 15;
+
+    private final DocumentFactory factory = DocumentFactory.getInstance();
+
+    private static final ThreadLocal<StreamParser> CONTENT_PARSER = new ThreadLocal<StreamParser>() {
+        @Override
+        protected StreamParser initialValue() {
+            StreamParser parser = new StreamParser(MAX_STANZA_SIZE, false);
+            parser.content = true;
+            return parser;
+        }
+    };
+
+    private final int maxStanzaSize;
+
+    private final boolean lazy;
+
+    // True if the parser parses the content of a lazy element
+    private boolean content;
+
+    private int state = TEXT;
+
+    // The state to return to at the end of an entity reference
+    private int entityReturn;
+
+    // The markup start being matched after <!
+    private String markup;
+
+    private int matched;
+
+    private char quote;
+
+    private final StringBuilder token = new StringBuilder(64);
+
+    private final StringBuilder text = new StringBuilder(256);
+
+    private final StringBuilder entity = new StringBuilder(8);
+
+    private String tagName;
+
+    private String attributeName;
+
+    private String[] attributeNames = new String[8];
+
+    private String[] attributeValues = new String[8];
+
+    private int attributeCount;
+
+    // The open elements of the current stanza and their qualified names
+    private final ArrayList<Element> elements = new ArrayList<Element>();
+
+    private final ArrayList<String> elementNames = new ArrayList<String>();
+
+    // The namespace declarations in scope, and how many were in scope before
+    // each open element
+    private String[] prefixes = new String[8];
+
+    private String[] uris = new String[8];
+
+    private int namespaceCount;
+
+    private int[] namespaceMarks = new int[8];
+
+    // The namespaces in scope of the stream, shared by the lazy elements
+    private String[] streamPrefixes;
+
+    private String[] streamUris;
+
+    // True while the content of a lazy stanza is scanned
+    private boolean skipping;
+
+    // The elements open in the content being scanned
+    private int skipDepth;
+
+    private byte[] body = new byte[256];
+
+    private int bodyLength;
+
+    // The length of the content before the last tag read
+    private int bodyMark;
+
+    private String[] bodyPrefixes;
+
+    private String[] bodyUris;
+
+    private String childName;
+
+    private String childNamespace;
+
+    private String streamName;
+
+    // The raw bytes of a tag at the top level, kept in case it opens the
+    // stream
+    private byte[] head = new byte[256];
+
+    private int headLength = -1;
+
+    // Bytes read since the last stanza was written out
+    private int stanzaSize;
+
+    private int codePoint;
+
+    // Continuation bytes expected to complete the current UTF-8 sequence
+    private int utf8Remaining;
+
+    private int utf8Lower = 0x80;
+
+    private int utf8Upper = 0xbf;
+
+    /**
+     * Constructor.
+     */
+    public StreamParser() {
+        this(MAX_STANZA_SIZE, true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxStanzaSize the maximum size of a stanza in bytes
+     * @param lazy true to parse the content of the IQ stanzas on first use
+     */
+    public StreamParser(int maxStanzaSize, boolean lazy) {
+        this.maxStanzaSize = maxStanzaSize;
+        this.lazy = lazy;
+    }
+
+    /**
+     * Parses the content of a lazy element into its child nodes.
+     *
+     * @param element the element
+     * @param bytes the UTF-8 bytes of the content
+     * @param prefixes the namespace prefixes in scope
+     * @param uris the namespace URIs bound to the prefixes
+     * @throws ProtocolDecoderException if the content is not valid
+     */
+    static void parseContent(Element element, byte[] bytes,
+            String[] prefixes, String[] uris) throws ProtocolDecoderException {
+        CONTENT_PARSER.get().parse(element, bytes, prefixes, uris);
+    }
+
+    private void parse(Element element, byte[] bytes, String[] prefixes,
+            String[] uris) throws ProtocolDecoderException {
+        state = TEXT;
+        stanzaSize = 0;
+        utf8Remaining = 0;
+        utf8Lower = 0x80;
+        utf8Upper = 0xbf;
+        text.setLength(0);
+        namespaceCount = 0;
+        for (int i = 0; i < prefixes.length; i++) {
+            declare(prefixes[i], uris[i]);
+        }
+        namespaceMarks[0] = namespaceCount;
+        elements.add(element);
+        elementNames.add(element.getQualifiedName());
+        try {
+            parse(IoBuffer.wrap(bytes), null);
+            if (state != TEXT || utf8Remaining > 0 || elements.size() > 1) {
+                throw new ProtocolDecoderException("Incomplete content");
+            }
+            flushText();
+        } finally {
+            elements.clear();
+            elementNames.clear();
+        }
+    }
+
+    /**
+     * Parses all the bytes remaining in the buffer and writes out the
+     * stanzas they complete.
+     *
+     * @param in the received bytes
+     * @param out the output of the stanza elements and stream tags
+     * @throws ProtocolDecoderException if the bytes are not a valid XML
+     *             stream
+     */
+    public void parse(IoBuffer in, ProtocolDecoderOutput out)
+            throws ProtocolDecoderException {
+        int limit = in.limit();
+        byte[] array = in.hasArray() ? in.array() : null;
+        int arrayOffset = array != null ? in.arrayOffset() : 0;
+        for (int i = in.position(); i < limit; i++) {
+            if (skipping && state == TEXT && array != null) {
+                // Copy the ASCII text of a lazy stanza in bulk
+                int end = i;
+                while (end < limit && array[arrayOffset + end] >= 0x20
+                        && array[arrayOffset + end] != '<') {
+                    end++;
+                }
+                if (end > i) {
+                    appendBody(array, arrayOffset + i, end - i);
+                    stanzaSize += end - i;
+                    i = end;
+                    if (i == limit) {
+                        break;
+                    }
+                }
+            }
+            int b = (array != null ? array[arrayOffset + i] : in.get(i)) & 0xff;
+            if (headLength >= 0) {
+                appendHead(b);
+            } else if (skipping) {
+                appendBody(b);
+            }
+            if (++stanzaSize > maxStanzaSize) {
+                throw new ProtocolDecoderException(
+                        "Stopped parsing never ending stanza");
+            }
+            if (utf8Remaining > 0) {
+                if (b < utf8Lower || b > utf8Upper) {
+                    throw new ProtocolDecoderException("Invalid UTF-8 sequence");
+                }
+                codePoint = (codePoint << 6) | (b & 0x3f);
+                utf8Lower = 0x80;
+                utf8Upper = 0xbf;
+                if (--utf8Remaining == 0) {
+                    parse(codePoint, out);
+                }
+            } else if (b < 0x80) {
+                // Characters below 0x20 other than 9, A and D are not allowed
+                // in XML. NUL is skipped for Flash XMLSocket clients.
+                if (b < 0x20 && b != 0x9 && b != 0xa && b != 0xd) {
+                    if (b != 0x0) {
+                        throw new ProtocolDecoderException(
+                                "Disallowed character");
+                    }
+                } else {
+                    parse(b, out);
+                }
+            } else if (b >= 0xc2 && b <= 0xdf) {
+                utf8Remaining = 1;
+                codePoint = b & 0x1f;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                utf8Remaining = 2;
+                codePoint = b & 0x0f;
+                if (b == 0xe0) {
+                    // Overlong encoding
+                    utf8Lower = 0xa0;
+                } else if (b == 0xed) {
+                    // Surrogate code point
+                    utf8Upper = 0x9f;
+                }
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                utf8Remaining = 3;
+                codePoint = b & 0x07;
+                if (b == 0xf0) {
+                    utf8Lower = 0x90;
+                } else if (b == 0xf4) {
+                    // Above U+10FFFF
+                    utf8Upper = 0x8f;
+                }
+            } else {
+                throw new ProtocolDecoderException("Invalid UTF-8 sequence");
+            }
+        }
+        in.position(limit);
+    }
+
+    /**
+     * Runs a decoded character through the state machine.
+     */
+    private void parse(int c, ProtocolDecoderOutput out)
+            throws ProtocolDecoderException {
+        switch (state) {
+        case TEXT:
+            if (c == '<') {
+                state = TAG_OPEN;
+                if (elements.isEmpty()) {
+                    headLength = 0;
+                    appendHead('<');
+                } else if (skipping && skipDepth == 0) {
+                    bodyMark = bodyLength - 1;
+                }
+            } else if (elements.isEmpty()) {
+                // Skip the whitespace between stanzas
+                stanzaSize = 0;
+            } else if (skipping) {
+                // The text is parsed with the content
+            } else if (c == '&') {
+                entity.setLength(0);
+                entityReturn = TEXT;
+                state = ENTITY;
+            } else {
+                append(text, c);
+            }
+            break;
+        case TAG_OPEN:
+            if (c == '/') {
+                headLength = -1;
+                token.setLength(0);
+                state = END_NAME;
+            } else if (c == '!') {
+                headLength = -1;
+                markup = null;
+                matched = 2;
+                state = MARKUP;
+            } else if (c == '?') {
+                headLength = -1;
+                matched = 0;
+                state = PI;
+            } else if (isNameChar(c)) {
+                token.setLength(0);
+                append(token, c);
+                state = START_NAME;
+            } else {
+                throw new ProtocolDecoderException("Invalid tag");
+            }
+            break;
+        case START_NAME:
+            if (isNameChar(c)) {
+                append(token, c);
+            } else {
+                // Only the first child element of a lazy stanza is read
+                tagName = skipping && (skipDepth > 0 || childName != null) ? null
+                        : token.toString();
+                attributeCount = 0;
+                state = TAG_SPACE;
+                parse(c, out);
+            }
+            break;
+        case TAG_SPACE:
+            if (c == '>') {
+                startElement(false, out);
+            } else if (c == '/') {
+                state = EMPTY_TAG;
+            } else if (isNameChar(c)) {
+                token.setLength(0);
+                append(token, c);
+                state = ATTR_NAME;
+            } else if (!isWhitespace(c)) {
+                throw new ProtocolDecoderException("Invalid tag " + tagName);
+            }
+            break;
+        case ATTR_NAME:
+            if (isNameChar(c)) {
+                append(token, c);
+            } else {
+                attributeName = tagName != null ? token.toString() : null;
+                state = ATTR_EQ;
+                parse(c, out);
+            }
+            break;
+        case ATTR_EQ:
+            if (c == '=') {
+                state = ATTR_QUOTE;
+            } else if (!isWhitespace(c)) {
+                throw new ProtocolDecoderException("Invalid attribute "
+                        + attributeName);
+            }
+            break;
+        case ATTR_QUOTE:
+            if (c == '"' || c == '\'') {
+                quote = (char) c;
+                token.setLength(0);
+                state = ATTR_VALUE;
+            } else if (!isWhitespace(c)) {
+                throw new ProtocolDecoderException("Invalid attribute "
+                        + attributeName);
+            }
+            break;
+        case ATTR_VALUE:
+            if (c == quote) {
+                if (tagName != null) {
+                    addAttribute(attributeName, token.toString());
+                }
+                state = TAG_SPACE;
+            } else if (c == '&') {
+                entity.setLength(0);
+                entityReturn = ATTR_VALUE;
+                state = ENTITY;
+            } else if (c == '<') {
+                throw new ProtocolDecoderException("Invalid attribute "
+                        + attributeName);
+            } else {
+                append(token, c);
+            }
+            break;
+        case EMPTY_TAG:
+            if (c != '>') {
+                throw new ProtocolDecoderException("Invalid tag " + tagName);
+            }
+            startElement(true, out);
+            break;
+        case END_NAME:
+            if (isNameChar(c)) {
+                append(token, c);
+            } else if (c == '>') {
+                endElement(null, out);
+            } else if (isWhitespace(c)) {
+                state = END_SPACE;
+            } else {
+                throw new ProtocolDecoderException("Invalid end tag");
+            }
+            break;
+        case END_SPACE:
+            if (c == '>') {
+                endElement(null, out);
+            } else if (!isWhitespace(c)) {
+                throw new ProtocolDecoderException("Invalid end tag");
+            }
+            break;
+        case MARKUP:
+            if (markup == null) {
+                markup = c == '-' ? COMMENT_START : CDATA_START;
+            }
+            if (c != markup.charAt(matched)) {
+                throw new ProtocolDecoderException("Invalid markup");
+            }
+            if (++matched == markup.length()) {
+                token.setLength(0);
+                matched = 0;
+                state = markup == COMMENT_START ? COMMENT : CDATA;
+            }
+            break;
+        case COMMENT:
+            if (c == '>' && matched >= 2) {
+                if (!skipping && !elements.isEmpty()) {
+                    token.setLength(token.length() - 2);
+                    flushText();
+                    current().addComment(token.toString());
+                }
+                state = TEXT;
+            } else {
+                matched = c == '-' ? matched + 1 : 0;
+                if (!skipping) {
+                    append(token, c);
+                }
+            }
+            break;
+        case CDATA:
+            if (c == '>' && matched >= 2) {
+                if (!skipping && !elements.isEmpty()) {
+                    token.setLength(token.length() - 2);
+                    flushText();
+                    current().addCDATA(token.toString());
+                }
+                state = TEXT;
+            } else {
+                matched = c == ']' ? matched + 1 : 0;
+                if (!skipping) {
+                    append(token, c);
+                }
+            }
+            break;
+        case PI:
+            if (c == '>' && matched == '?') {
+                state = TEXT;
+            }
+            matched = c;
+            break;
+        case ENTITY:
+            if (c == ';') {
+                if (entityReturn == TEXT) {
+                    resolveEntity(text);
+                } else if (tagName != null) {
+                    resolveEntity(token);
+                }
+                state = entityReturn;
+            } else if (entity.length() < 8) {
+                append(entity, c);
+            } else {
+                throw new ProtocolDecoderException("Invalid entity reference");
+            }
+            break;
+        }
+    }
+
+    /**
+     * Opens the element of the tag just read, or the stream if the tag is
+     * the opening stream tag.
+     */
+    private void startElement(boolean empty, ProtocolDecoderOutput out)
+            throws ProtocolDecoderException {
+        state = TEXT;
+        if (skipping) {
+            if (tagName != null) {
+                readChild();
+            }
+            if (!empty) {
+                skipDepth++;
+            }
+            return;
+        }
+        if (elements.isEmpty()
+                && ("stream:stream".equals(tagName) || "flash:stream"
+                        .equals(tagName))) {
+            // A new stream, which also restarts the stream after TLS
+            byte[] header = new byte[headLength];
+            System.arraycopy(head, 0, header, 0, headLength);
+            headLength = -1;
+            namespaceCount = 0;
+            declareNamespaces();
+            streamPrefixes = null;
+            streamUris = null;
+            streamName = tagName;
+            stanzaSize = 0;
+            out.write(header);
+            return;
+        }
+        headLength = -1;
+        flushText();
+        int mark = namespaceCount;
+        declareNamespaces();
+
+        Element element;
+        int colon = tagName.indexOf(':');
+        String prefix = colon > 0 ? tagName.substring(0, colon) : "";
+        String name = colon > 0 ? tagName.substring(colon + 1) : tagName;
+        String uri = resolve(prefix);
+        QName qname = isStanzaNamespace(uri) ? factory.createQName(name)
+                : factory.createQName(name, prefix, uri);
+        if (lazy && elements.isEmpty() && "iq".equals(tagName)) {
+            element = new LazyElement(qname);
+        } else {
+            element = factory.createElement(qname);
+        }
+        for (int i = mark; i < namespaceCount; i++) {
+            if (prefixes[i].length() > 0) {
+                element.addNamespace(prefixes[i], uris[i]);
+            }
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            String attribute = attributeNames[i];
+            if (isNamespaceDeclaration(attribute)) {
+                continue;
+            }
+            colon = attribute.indexOf(':');
+            if (colon > 0) {
+                String attributePrefix = attribute.substring(0, colon);
+                qname = factory.createQName(attribute.substring(colon + 1),
+                        attributePrefix, resolve(attributePrefix));
+            } else {
+                qname = factory.createQName(attribute);
+            }
+            element.addAttribute(qname, attributeValues[i]);
+        }
+
+        if (elements.isEmpty()) {
+            Document document = factory.createDocument();
+            document.add(element);
+        } else {
+            current().add(element);
+        }
+        if (elements.size() == namespaceMarks.length) {
+            int[] newMarks = new int[namespaceMarks.length * 2];
+            System.arraycopy(namespaceMarks, 0, newMarks, 0,
+                    namespaceMarks.length);
+            namespaceMarks = newMarks;
+        }
+        namespaceMarks[elements.size()] = mark;
+        elements.add(element);
+        elementNames.add(tagName);
+        if (empty) {
+            endElement(tagName, out);
+        } else if (element instanceof LazyElement) {
+            skip(mark);
+        }
+    }
+
+    /**
+     * Starts scanning the content of a lazy stanza.
+     */
+    private void skip(int mark) {
+        skipping = true;
+        skipDepth = 0;
+        bodyLength = 0;
+        childName = null;
+        childNamespace = null;
+        if (mark < namespaceCount) {
+            // The stanza declares namespaces of its own
+            bodyPrefixes = copy(prefixes, namespaceCount);
+            bodyUris = copy(uris, namespaceCount);
+        } else {
+            if (streamPrefixes == null) {
+                streamPrefixes = copy(prefixes, namespaceCount);
+                streamUris = copy(uris, namespaceCount);
+            }
+            bodyPrefixes = streamPrefixes;
+            bodyUris = streamUris;
+        }
+    }
+
+    /**
+     * Reads the name and namespace of the first child element of a lazy
+     * stanza, which route the stanza.
+     */
+    private void readChild() throws ProtocolDecoderException {
+        int colon = tagName.indexOf(':');
+        String prefix = colon > 0 ? tagName.substring(0, colon) : "";
+        String uri = null;
+        for (int i = 0; i < attributeCount; i++) {
+            String attribute = attributeNames[i];
+            if (isNamespaceDeclaration(attribute)
+                    && prefix.equals(attribute.length() == 5 ? ""
+                            : attribute.substring(6))) {
+                uri = attributeValues[i];
+            }
+        }
+        if (uri == null) {
+            uri = resolve(prefix);
+        }
+        childName = colon > 0 ? tagName.substring(colon + 1) : tagName;
+        childNamespace = isStanzaNamespace(uri) ? "" : uri;
+    }
+
+    /**
+     * Closes the open element matching the end tag just read, and writes out
+     * the stanza once its root element is closed.
+     */
+    private void endElement(String name, ProtocolDecoderOutput out)
+            throws ProtocolDecoderException {
+        state = TEXT;
+        if (skipping) {
+            if (skipDepth > 0) {
+                skipDepth--;
+                return;
+            }
+            if (!equals(token, elementNames.get(0))) {
+                throw new ProtocolDecoderException("Expected end tag "
+                        + elementNames.get(0) + " but found " + token);
+            }
+            skipping = false;
+            LazyElement element = (LazyElement) elements.remove(0);
+            elementNames.remove(0);
+            namespaceCount = namespaceMarks[0];
+            element.setBody(copy(body, bodyMark), bodyPrefixes, bodyUris,
+                    childName, childNamespace);
+            bodyPrefixes = null;
+            bodyUris = null;
+            stanzaSize = 0;
+            out.write(element);
+            return;
+        }
+        if (name == null) {
+            name = token.toString();
+        }
+        if (elements.isEmpty()) {
+            if (streamName != null && name.equals(streamName)) {
+                streamName = null;
+                stanzaSize = 0;
+                out.write(new byte[] { '<', '/', 's', 't', 'r', 'e', 'a', 'm',
+                        ':', 's', 't', 'r', 'e', 'a', 'm', '>' });
+                return;
+            }
+            throw new ProtocolDecoderException("Unexpected end tag " + name);
+        }
+        flushText();
+        int last = elements.size() - 1;
+        if (content && last == 0 || !name.equals(elementNames.get(last))) {
+            throw new ProtocolDecoderException("Expected end tag "
+                    + elementNames.get(last) + " but found " + name);
+        }
+        Element element = elements.remove(last);
+        elementNames.remove(last);
+        namespaceCount = namespaceMarks[last];
+        if (last == 0) {
+            stanzaSize = 0;
+            out.write(element);
+        }
+    }
+
+    private Element current() {
+        return elements.get(elements.size() - 1);
+    }
+
+    private void flushText() {
+        if (text.length() > 0) {
+            current().addText(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private void addAttribute(String name, String value) {
+        if (attributeCount == attributeNames.length) {
+            String[] newNames = new String[attributeCount * 2];
+            String[] newValues = new String[attributeCount * 2];
+            System.arraycopy(attributeNames, 0, newNames, 0, attributeCount);
+            System.arraycopy(attributeValues, 0, newValues, 0, attributeCount);
+            attributeNames = newNames;
+            attributeValues = newValues;
+        }
+        attributeNames[attributeCount] = name;
+        attributeValues[attributeCount] = value;
+        attributeCount++;
+    }
+
+    private static boolean isNamespaceDeclaration(String attribute) {
+        return attribute.startsWith("xmlns")
+                && (attribute.length() == 5 || attribute.charAt(5) == ':');
+    }
+
+    /**
+     * Puts the namespaces declared by the attributes of the tag in scope.
+     */
+    private void declareNamespaces() {
+        for (int i = 0; i < attributeCount; i++) {
+            String attribute = attributeNames[i];
+            if (isNamespaceDeclaration(attribute)) {
+                declare(attribute.length() == 5 ? "" : attribute.substring(6),
+                        attributeValues[i]);
+            }
+        }
+    }
+
+    private void declare(String prefix, String uri) {
+        if (namespaceCount == prefixes.length) {
+            String[] newPrefixes = new String[namespaceCount * 2];
+            String[] newUris = new String[namespaceCount * 2];
+            System.arraycopy(prefixes, 0, newPrefixes, 0, namespaceCount);
+            System.arraycopy(uris, 0, newUris, 0, namespaceCount);
+            prefixes = newPrefixes;
+            uris = newUris;
+        }
+        prefixes[namespaceCount] = prefix;
+        uris[namespaceCount] = uri;
+        namespaceCount++;
+    }
+
+    /**
+     * Returns true if the elements of the namespace are built without a
+     * namespace, as the XMPPPacketReader does.
+     */
+    private static boolean isStanzaNamespace(String uri) {
+        return "jabber:client".equals(uri) || "jabber:server".equals(uri)
+                || "jabber:connectionmanager".equals(uri)
+                || "jabber:component:accept".equals(uri)
+                || "http://jabber.org/protocol/httpbind".equals(uri);
+    }
+
+    /**
+     * Returns the namespace URI bound to a prefix, or the default namespace
+     * for the empty prefix.
+     */
+    private String resolve(String prefix) throws ProtocolDecoderException {
+        for (int i = namespaceCount - 1; i >= 0; i--) {
+            if (prefixes[i].equals(prefix)) {
+                return uris[i];
+            }
+        }
+        if (prefix.length() == 0) {
+            return "";
+        }
+        if ("xml".equals(prefix)) {
+            return XML_NAMESPACE;
+        }
+        throw new ProtocolDecoderException("Undeclared prefix " + prefix);
+    }
+
+    /**
+     * Appends the character of the entity reference just read.
+     */
+    private void resolveEntity(StringBuilder sb)
+            throws ProtocolDecoderException {
+        String name = entity.toString();
+        if ("lt".equals(name)) {
+            sb.append('<');
+        } else if ("gt".equals(name)) {
+            sb.append('>');
+        } else if ("amp".equals(name)) {
+            sb.append('&');
+        } else if ("quot".equals(name)) {
+            sb.append('"');
+        } else if ("apos".equals(name)) {
+            sb.append('\'');
+        } else if (name.length() > 1 && name.charAt(0) == '#') {
+            int c;
+            try {
+                if (name.charAt(1) == 'x') {
+                    c = Integer.parseInt(name.substring(2), 16);
+                } else {
+                    c = Integer.parseInt(name.substring(1));
+                }
+            } catch (NumberFormatException e) {
+                throw new ProtocolDecoderException("Invalid character reference "
+                        + name);
+            }
+            if (c < 0x20 && c != 0x9 && c != 0xa && c != 0xd || c > 0x10ffff
+                    || c >= 0xd800 && c <= 0xdfff) {
+                throw new ProtocolDecoderException("Invalid character reference "
+                        + name);
+            }
+            append(sb, c);
+        } else {
+            throw new ProtocolDecoderException("Unknown entity " + name);
+        }
+    }
+
+    private void appendHead(int b) {
+        if (headLength == head.length) {
+            byte[] newHead = new byte[head.length * 2];
+            System.arraycopy(head, 0, newHead, 0, headLength);
+            head = newHead;
+        }
+        head[headLength++] = (byte) b;
+    }
+
+    private void appendBody(int b) {
+        if (bodyLength == body.length) {
+            byte[] newBody = new byte[body.length * 2];
+            System.arraycopy(body, 0, newBody, 0, bodyLength);
+            body = newBody;
+        }
+        body[bodyLength++] = (byte) b;
+    }
+
+    private void appendBody(byte[] bytes, int offset, int length) {
+        if (bodyLength + length > body.length) {
+            byte[] newBody = new byte[Math.max(body.length * 2, bodyLength
+                    + length)];
+            System.arraycopy(body, 0, newBody, 0, bodyLength);
+            body = newBody;
+        }
+        System.arraycopy(bytes, offset, body, bodyLength, length);
+        bodyLength += length;
+    }
+
+    /**
+     * Returns true if the bytes written out are the closing stream tag.
+     *
+     * @param stanza the stanza bytes
+     * @return true if the stanza ends the stream
+     */
+    public static boolean isStreamEnd(byte[] stanza) {
+        // Only the closing stream tag is written out without its opening tag
+        return stanza.length > 1 && stanza[1] == '/';
+    }
+
+    /**
+     * Returns true if the bytes start with the given ASCII prefix.
+     *
+     * @param bytes the bytes
+     * @param prefix the prefix
+     * @return true if the bytes start with the prefix
+     */
+    public static boolean startsWith(byte[] bytes, String prefix) {
+        if (bytes.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(byte[] bytes, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static String[] copy(String[] strings, int length) {
+        String[] copy = new String[length];
+        System.arraycopy(strings, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static boolean equals(StringBuilder sb, String s) {
+        if (sb.length() != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (sb.charAt(i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void append(StringBuilder sb, int c) {
+        if (c < 0x10000) {
+            sb.append((char) c);
+        } else {
+            sb.appendCodePoint(c);
+        }
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static boolean isNameChar(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0'
+                && c <= '9' || c == ':' || c == '_' || c == '-' || c == '.'
+                || c >= 0x80;
+    }
+
+}
@@ -19,35 +19,30 @@ package org.soxmpp.server.xmpp.codec;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
-import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderAdapter;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
-import org.jivesoftware.openfire.nio.XMLLightweightParser;
 import org.soxmpp.server.xmpp.net.ConnectionHandler;
 
 /** 
- * Decoder class that parses ByteBuffers and generates XML stanzas.
+ * Decoder class that parses ByteBuffers and generates XML stanzas. Every
+ * stanza is written out as its DOM element, and the opening and closing
+ * stream tags as the array of their UTF-8 bytes.
  *
  * @author Sehwan Noh (devnoh@gmail.com)
  */
-public class XmppDecoder extends CumulativeProtocolDecoder {
+public class XmppDecoder extends ProtocolDecoderAdapter {
 
     // private final Log log = LogFactory.getLog(XmppDecoder.class);
 
-    @Override
-    public boolean doDecode(IoSession session, IoBuffer in,
+    public void decode(IoSession session, IoBuffer in,
             ProtocolDecoderOutput out) throws Exception {
-        // log.debug("doDecode(...)...");
+        // log.debug("decode(...)...");
 
-        XMLLightweightParser parser = (XMLLightweightParser) session
+        StreamParser parser = (StreamParser) session
                 .getAttribute(ConnectionHandler.XML_PARSER);
-        parser.read(in);
-
-        if (parser.areThereMsgs()) {
-            for (String stanza : parser.getMsgs()) {
-                out.write(stanza);
-            }
-        }
-        return !in.hasRemaining();
+        // The parser keeps the state of an incomplete stanza, so every byte
+        // is consumed
+        parser.parse(in, out);
     }
 
 }
@@ -27,6 +27,7 @@ import org.soxmpp.server.xmpp.UnauthenticatedException;
 import org.soxmpp.server.xmpp.UnauthorizedException;
 import org.soxmpp.server.xmpp.auth.AuthManager;
 import org.soxmpp.server.xmpp.auth.AuthToken;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
 import org.xmpp.packet.IQ;
@@ -42,14 +43,16 @@ public class IQAuthHandler extends IQHandler {
 
 	private static final String NAMESPACE = "jabber:iq:auth";
 
-	private Element probeResponse;
+	private final StanzaTemplate probeResponse;
+
+	private final StanzaTemplate usernameProbeResponse;
 
 	/**
 	 * Constructor.
 	 */
 	public IQAuthHandler() {
 
-		probeResponse = DocumentHelper.createElement(QName.get("query",
+		Element probeResponse = DocumentHelper.createElement(QName.get("query",
 				NAMESPACE));
 		probeResponse.addElement("username");
 		if (AuthManager.isPlainSupported()) {
@@ -59,6 +62,9 @@ public class IQAuthHandler extends IQHandler {
 			probeResponse.addElement("digest");
 		}
 		probeResponse.addElement("resource");
+		this.probeResponse = resultTemplate(probeResponse);
+		probeResponse.element("username").setText("${username}");
+		this.usernameProbeResponse = resultTemplate(probeResponse);
 	}
 
 	/**
@@ -92,17 +98,19 @@ public class IQAuthHandler extends IQHandler {
         try {
             Element iq = packet.getElement();
             Element query = iq.element("query");
-            Element queryResponse = probeResponse.createCopy();
 
             if (IQ.Type.get == packet.getType()) { // get query
                 String username = query.elementText("username");
-                if (username != null) {
-                    queryResponse.element("username").setText(username);
+                String to = null;
+                if (session.getStatus() == Session.STATUS_AUTHENTICATED) {
+                    to = toString(packet.getFrom());
                 }
-                reply = IQ.createResultIQ(packet);
-                reply.setChildElement(queryResponse);
-                if (session.getStatus() != Session.STATUS_AUTHENTICATED) {
-                    reply.setTo((JID) null);
+                if (username != null) {
+                    session.deliverTemplate(usernameProbeResponse, packet
+                            .getID(), toString(packet.getTo()), to, username);
+                } else {
+                    session.deliverTemplate(probeResponse, packet.getID(),
+                            toString(packet.getTo()), to);
                 }
             } else { // set query
                 String resource = query.elementText("resource");
@@ -19,10 +19,13 @@ package org.soxmpp.server.xmpp.handler;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.dom4j.Element;
 import org.soxmpp.server.xmpp.UnauthorizedException;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.router.PacketDeliverer;
 import org.soxmpp.server.xmpp.session.SessionManager;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 
@@ -86,6 +89,32 @@ public abstract class IQHandler {
 		}
 	}
 
+	/**
+	 * Encodes a result IQ holding the given child element as a template. Its
+	 * placeholders are the id, from and to attributes of the result, followed
+	 * by the placeholders written in the child element.
+	 * 
+	 * @param child
+	 *            the child element of the result
+	 * @return the result template
+	 */
+	protected static StanzaTemplate resultTemplate(Element child) {
+		return new StanzaTemplate(
+				"<iq type=\"result\" id=\"${id}\" from=\"${from}\" to=\"${to}\">"
+						+ child.asXML() + "</iq>");
+	}
+
+	/**
+	 * Returns the address as a string, or null.
+	 * 
+	 * @param address
+	 *            the address, or null
+	 * @return the address string
+	 */
+	protected static String toString(JID address) {
+		return address == null ? null : address.toString();
+	}
+
 	/**
 	 * Handles the received IQ packet.
 	 * 
@@ -28,10 +28,10 @@ import org.soxmpp.server.service.UserExistsException;
 import org.soxmpp.server.service.UserNotFoundException;
 import org.soxmpp.server.service.UserService;
 import org.soxmpp.server.xmpp.UnauthorizedException;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
 import org.xmpp.packet.IQ;
-import org.xmpp.packet.JID;
 import org.xmpp.packet.PacketError;
 
 /** 
@@ -45,18 +45,19 @@ public class IQRegisterHandler extends IQHandler {
 
     private UserService userService;
 
-    private Element probeResponse;
+    private final StanzaTemplate probeResponse;
 
     /**
      * Constructor.
      */
     public IQRegisterHandler() {
-        probeResponse = DocumentHelper.createElement(QName.get("query",
-                NAMESPACE));
+        Element probeResponse = DocumentHelper.createElement(QName.get(
+                "query", NAMESPACE));
         probeResponse.addElement("username");
         probeResponse.addElement("password");
         probeResponse.addElement("email");
         probeResponse.addElement("name");
+        this.probeResponse = resultTemplate(probeResponse);
     }
     
 
@@ -85,12 +86,12 @@ public class IQRegisterHandler extends IQHandler {
         }
 
         if (IQ.Type.get.equals(packet.getType())) {
-            reply = IQ.createResultIQ(packet);
             if (session.getStatus() == Session.STATUS_AUTHENTICATED) {
                 // TODO
+                reply = IQ.createResultIQ(packet);
             } else {
-                reply.setTo((JID) null);
-                reply.setChildElement(probeResponse.createCopy());
+                session.deliverTemplate(probeResponse, packet.getID(),
+                        toString(packet.getTo()), null);
             }
         } else if (IQ.Type.set.equals(packet.getType())) {
             try {
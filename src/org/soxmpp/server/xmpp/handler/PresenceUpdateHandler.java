@@ -20,6 +20,7 @@ package org.soxmpp.server.xmpp.handler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.soxmpp.server.xmpp.UnauthorizedException;
+import org.soxmpp.server.xmpp.push.NotificationManager;
 import org.soxmpp.server.xmpp.router.PacketDeliverer;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
@@ -36,11 +37,17 @@ public class PresenceUpdateHandler extends PresenceHandler {
 
 	protected final Log log = LogFactory.getLog(getClass());
 
+	private NotificationManager notificationManager;
+
 	/**
 	 * Constructor.
 	 */
 	public PresenceUpdateHandler() {}
 
+	public void setNotificationManager(NotificationManager notificationManager) {
+		this.notificationManager = notificationManager;
+	}
+
 	@Override
 	public Presence handleIQ(Presence packet) throws UnauthorizedException {
 		ClientSession session = sessionManager.getSession(packet.getFrom());
@@ -60,7 +67,7 @@ public class PresenceUpdateHandler extends PresenceHandler {
 				if (session != null) {
 					session.setPresence(presence);
 					if (!session.isInitialized()) {
-						// initSession(session);
+						initSession(session);
 						session.setInitialized(true);
 					}
 				}
@@ -93,6 +100,16 @@ public class PresenceUpdateHandler extends PresenceHandler {
 		return null;
 	}
 
+	/**
+	 * Initializes a session that became available by replaying the
+	 * notifications kept while the user was offline.
+	 */
+	private void initSession(ClientSession session) {
+		if (notificationManager != null) {
+			notificationManager.sendOfflineNotifications(session);
+		}
+	}
+
 	@Override
 	public String getNamespace() {
 		// TODO Auto-generated method stub
@@ -23,10 +23,10 @@ import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.soxmpp.server.xmpp.handler.IQPingHandler;
+import org.soxmpp.server.xmpp.push.NotificationManager;
 import org.soxmpp.server.xmpp.router.PacketRouter;
-import org.xmpp.packet.IQ;
-import org.xmpp.packet.IQ.Type;
+import org.soxmpp.server.xmpp.session.ClientSession;
+import org.soxmpp.server.xmpp.session.LocalSession;
 import org.xmpp.packet.JID;
 
 /**
@@ -38,8 +38,10 @@ import org.xmpp.packet.JID;
 public class ClientConnectionHandler extends ConnectionHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(ClientConnectionHandler.class);
-	
+
 	private  PacketRouter packetRouter;
+
+	private NotificationManager notificationManager;
 	
     public ClientConnectionHandler() {
         super();
@@ -50,6 +52,10 @@ public class ClientConnectionHandler extends ConnectionHandler {
 		this.packetRouter = packetRouter;
 	}
 
+    public void setNotificationManager(NotificationManager notificationManager) {
+		this.notificationManager = notificationManager;
+	}
+
 
 	@Override
 	NIOConnection createNIOConnection(IoSession session) {
@@ -61,6 +67,18 @@ public class ClientConnectionHandler extends ConnectionHandler {
         return new StanzaHandler(packetRouter,serverName, connection);
     }
 
+    /**
+     * Replays the notifications held in the offline store while the
+     * connection was congested.
+     */
+    @Override
+    void connectionDrained(NIOConnection connection) {
+        LocalSession session = connection.getSession();
+        if (notificationManager != null && session instanceof ClientSession) {
+            notificationManager.sendOfflineNotifications((ClientSession) session);
+        }
+    }
+
     @Override
 	int getMaxIdleTime() {
         return  (6 * 60 * 1000)/ 1000;
@@ -84,34 +102,32 @@ public class ClientConnectionHandler extends ConnectionHandler {
 	 * Note that whitespace pings that are sent by XMPP entities will also cause
 	 * the connection idle count to be reset.
 	 * 
+	 * This method is only invoked when no {@link KeepAliveService} is set.
+	 * 
 	 * @see ConnectionHandler#sessionIdle(IoSession, IdleStatus)
 	 */
     @Override
     public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
-    	super.sessionIdle(session, status);
-    	
-    	final boolean doPing = true;
-        if (doPing && session.getIdleCount(status) == 1) {
-            final StanzaHandler handler = (StanzaHandler) session.getAttribute(STANZA_HANDLER);
-            final JID entity = handler.getAddress();
-            
-            if (entity != null) {
-		    	// Ping the connection to see if it is alive.
-				final IQ pingRequest = new IQ(Type.get);
-				pingRequest.setChildElement("ping",
-						IQPingHandler.NAMESPACE);
-				pingRequest.setFrom(serverName);
-				pingRequest.setTo(entity); 
-				
-	            // Get the connection for this session
-	            final Connection connection = (Connection) session.getAttribute(CONNECTION);
-
-		        if (Log.isDebugEnabled()) {
-		            Log.debug("ConnectionHandler: Pinging connection that has been idle: " + connection);
-		        }
-
-		        connection.deliver(pingRequest);
+        if (session.getIdleCount(status) > 1) {
+            super.sessionIdle(session, status);
+            return;
+        }
+
+        final StanzaHandler handler = (StanzaHandler) session.getAttribute(STANZA_HANDLER);
+        final JID entity = handler.getAddress();
+
+        if (entity != null) {
+            // Get the connection for this session
+            final Connection connection = (Connection) session.getAttribute(CONNECTION);
+
+            if (Log.isDebugEnabled()) {
+                Log.debug("ConnectionHandler: Pinging connection that has been idle: " + connection);
             }
+
+            // Ping the connection to see if it is alive.
+            connection.deliverTemplate(KeepAliveService.PING,
+                    KeepAliveService.nextPingId(), serverName, entity
+                    .toString());
         }
     }
 }
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteException;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteRequestWrapper;
+
+/**
+ * A filter compressing the stream of a connection with zlib once stream
+ * compression (XEP-0138) has been negotiated. The filter sits in every
+ * filter chain, between the executor and the codec, and lets the data of a
+ * connection through unchanged until {@link #startCompression} is called.
+ * <p>
+ * Each outbound buffer is compressed and sync-flushed on its own, so a
+ * stanza, or a batch of stanzas written together, reaches the client at once.
+ * The zlib contexts are taken from a bounded pool: a compression request
+ * beyond the limit is refused, since every context holds about 300 KB of
+ * native memory.
+ */
+public class CompressionFilter extends IoFilterAdapter {
+
+	private static final Log log = LogFactory.getLog(CompressionFilter.class);
+
+	private static final String CONTEXT = CompressionFilter.class.getName()
+			+ ".context";
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private static final ThreadMXBean threads = ManagementFactory
+			.getThreadMXBean();
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private int maxContexts = 1024;
+
+	private int maxIdleContexts = 256;
+
+	private final Queue<Streams> idle = new ConcurrentLinkedQueue<Streams>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicLong refused = new AtomicLong();
+
+	private final AtomicLong rawBytesWritten = new AtomicLong();
+
+	private final AtomicLong compressedBytesWritten = new AtomicLong();
+
+	private final AtomicLong deflateTime = new AtomicLong();
+
+	/**
+	 * Sets the zlib compression level, from 1 (fastest) to 9 (smallest), or
+	 * -1 for the zlib default.
+	 *
+	 * @param compressionLevel
+	 *            the compression level
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION
+				|| compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: "
+					+ compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the maximum number of connections compressed at the same time.
+	 *
+	 * @param maxContexts
+	 *            the maximum number of zlib contexts in use
+	 */
+	public void setMaxContexts(int maxContexts) {
+		this.maxContexts = maxContexts;
+	}
+
+	public int getMaxContexts() {
+		return maxContexts;
+	}
+
+	/**
+	 * Sets the maximum number of zlib contexts kept for reuse once their
+	 * connection is closed.
+	 *
+	 * @param maxIdleContexts
+	 *            the maximum number of idle contexts
+	 */
+	public void setMaxIdleContexts(int maxIdleContexts) {
+		this.maxIdleContexts = maxIdleContexts;
+	}
+
+	public int getMaxIdleContexts() {
+		return maxIdleContexts;
+	}
+
+	/**
+	 * Starts compressing the stream of a session. Data read from now on is
+	 * decompressed; data written is compressed once the given message, the
+	 * last one sent in clear, has gone through the filter.
+	 *
+	 * @param session
+	 *            the session
+	 * @param lastPlainMessage
+	 *            the last message written without compression
+	 * @return true if compression started, false if no zlib context is
+	 *         available
+	 */
+	public boolean startCompression(IoSession session, Object lastPlainMessage) {
+		if (session.containsAttribute(CONTEXT)) {
+			return false;
+		}
+		Streams streams = acquire();
+		if (streams == null) {
+			refused.incrementAndGet();
+			log.warn("No zlib context available to compress " + session);
+			return false;
+		}
+		session.setAttribute(CONTEXT, new Context(streams, lastPlainMessage));
+		return true;
+	}
+
+	/**
+	 * Returns true if the stream of the session is compressed.
+	 *
+	 * @param session
+	 *            the session
+	 * @return true if compression has started, false otherwise
+	 */
+	public static boolean isCompressed(IoSession session) {
+		return session.containsAttribute(CONTEXT);
+	}
+
+	/**
+	 * Returns the compression counters of a session, or null if its stream is
+	 * not compressed.
+	 *
+	 * @param session
+	 *            the session
+	 * @return the compression counters
+	 */
+	public static CompressionStats getStats(IoSession session) {
+		Context context = (Context) session.getAttribute(CONTEXT);
+		return context == null ? null : context.stats;
+	}
+
+	/**
+	 * Returns the number of connections being compressed.
+	 *
+	 * @return the number of zlib contexts in use
+	 */
+	public int getActiveContexts() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of compression requests refused because every zlib
+	 * context was in use.
+	 *
+	 * @return the number of refused requests
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+
+	/**
+	 * Returns how many times smaller the outbound data of every connection is
+	 * once compressed, or 0 if nothing was compressed yet.
+	 *
+	 * @return the overall outbound compression ratio
+	 */
+	public double getWriteRatio() {
+		long compressed = compressedBytesWritten.get();
+		return compressed == 0 ? 0 : (double) rawBytesWritten.get()
+				/ compressed;
+	}
+
+	/**
+	 * Returns the CPU time spent compressing the outbound data of every
+	 * connection.
+	 *
+	 * @return the compression time in nanoseconds
+	 */
+	public long getDeflateTime() {
+		return deflateTime.get();
+	}
+
+	@Override
+	public void messageReceived(NextFilter nextFilter, IoSession session,
+			Object message) throws Exception {
+		Context context = (Context) session.getAttribute(CONTEXT);
+		if (context == null || !(message instanceof IoBuffer)) {
+			nextFilter.messageReceived(session, message);
+			return;
+		}
+
+		// Received messages of a session are processed one at a time, and
+		// before the session is closed
+		Streams streams = context.streams;
+		if (streams == null) {
+			return;
+		}
+		IoBuffer in = (IoBuffer) message;
+		int length = in.remaining();
+		Inflater inflater = streams.inflater;
+		setInput(inflater, in);
+
+		byte[] chunk = streams.inflated;
+		long start = cpuTime();
+		long time = 0;
+		int raw = 0;
+		try {
+			while (true) {
+				int n = inflater.inflate(chunk);
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						throw new DataFormatException("Preset dictionary");
+					}
+					break;
+				}
+				raw += n;
+				time += cpuTime() - start;
+				// The decoder consumes the bytes before returning
+				nextFilter.messageReceived(session, IoBuffer.wrap(chunk, 0, n));
+				start = cpuTime();
+			}
+		} catch (DataFormatException e) {
+			log.debug("Closing session with corrupt compressed data: "
+					+ session, e);
+			session.close(true);
+			return;
+		}
+		time += cpuTime() - start;
+		context.stats.read(length, raw, time);
+	}
+
+	@Override
+	public void filterWrite(NextFilter nextFilter, IoSession session,
+			WriteRequest writeRequest) throws Exception {
+		Context context = (Context) session.getAttribute(CONTEXT);
+		Object message = writeRequest.getMessage();
+		if (context == null || !(message instanceof IoBuffer)) {
+			nextFilter.filterWrite(session, writeRequest);
+			return;
+		}
+
+		// Writes are compressed and passed on in the same order
+		synchronized (context) {
+			if (context.lastPlainMessage != null || context.streams == null) {
+				if (context.lastPlainMessage == message) {
+					context.lastPlainMessage = null;
+				}
+				nextFilter.filterWrite(session, writeRequest);
+				return;
+			}
+
+			IoBuffer in = (IoBuffer) message;
+			int length = in.remaining();
+			Deflater deflater = context.streams.deflater;
+			deflater.setLevel(compressionLevel);
+			setInput(deflater, in);
+
+			IoBuffer out = IoBufferPool.getInstance().allocate(
+					length / 2 + 64);
+			byte[] chunk = context.streams.deflated;
+			long start = cpuTime();
+			int n;
+			do {
+				n = deflater.deflate(chunk, 0, chunk.length,
+						Deflater.SYNC_FLUSH);
+				out.put(chunk, 0, n);
+			} while (n == chunk.length);
+			long time = cpuTime() - start;
+			out.flip();
+
+			int compressed = out.remaining();
+			context.stats.written(length, compressed, time);
+			rawBytesWritten.addAndGet(length);
+			compressedBytesWritten.addAndGet(compressed);
+			deflateTime.addAndGet(time);
+
+			nextFilter.filterWrite(session, new CompressedWriteRequest(
+					writeRequest, out));
+		}
+	}
+
+	@Override
+	public void messageSent(NextFilter nextFilter, IoSession session,
+			WriteRequest writeRequest) throws Exception {
+		if (writeRequest instanceof CompressedWriteRequest) {
+			CompressedWriteRequest compressed = (CompressedWriteRequest) writeRequest;
+			IoBufferPool.getInstance().release(compressed.buffer);
+			nextFilter.messageSent(session, compressed.getParentRequest());
+		} else {
+			nextFilter.messageSent(session, writeRequest);
+		}
+	}
+
+	@Override
+	public void exceptionCaught(NextFilter nextFilter, IoSession session,
+			Throwable cause) throws Exception {
+		if (cause instanceof WriteException) {
+			// Writes dropped by a closing session never reach messageSent
+			for (WriteRequest request : ((WriteException) cause).getRequests()) {
+				while (request instanceof WriteRequestWrapper) {
+					if (request instanceof CompressedWriteRequest) {
+						IoBufferPool.getInstance().release(
+								((CompressedWriteRequest) request).buffer);
+					}
+					request = ((WriteRequestWrapper) request).getParentRequest();
+				}
+			}
+		}
+		nextFilter.exceptionCaught(session, cause);
+	}
+
+	@Override
+	public void sessionClosed(NextFilter nextFilter, IoSession session)
+			throws Exception {
+		Context context = (Context) session.getAttribute(CONTEXT);
+		if (context != null) {
+			Streams streams;
+			synchronized (context) {
+				streams = context.streams;
+				context.streams = null;
+			}
+			if (streams != null) {
+				release(streams);
+			}
+		}
+		nextFilter.sessionClosed(session);
+	}
+
+	private Streams acquire() {
+		if (active.incrementAndGet() > maxContexts) {
+			active.decrementAndGet();
+			return null;
+		}
+		Streams streams = idle.poll();
+		if (streams != null) {
+			idleCount.decrementAndGet();
+		} else {
+			streams = new Streams(compressionLevel);
+		}
+		return streams;
+	}
+
+	private void release(Streams streams) {
+		active.decrementAndGet();
+		if (idleCount.incrementAndGet() <= maxIdleContexts) {
+			streams.deflater.reset();
+			streams.inflater.reset();
+			idle.offer(streams);
+		} else {
+			idleCount.decrementAndGet();
+			streams.deflater.end();
+			streams.inflater.end();
+		}
+	}
+
+	private static void setInput(Deflater deflater, IoBuffer in) {
+		if (in.hasArray()) {
+			deflater.setInput(in.array(), in.arrayOffset() + in.position(), in
+					.remaining());
+		} else {
+			byte[] bytes = new byte[in.remaining()];
+			in.duplicate().get(bytes);
+			deflater.setInput(bytes);
+		}
+	}
+
+	private static void setInput(Inflater inflater, IoBuffer in) {
+		if (in.hasArray()) {
+			inflater.setInput(in.array(), in.arrayOffset() + in.position(), in
+					.remaining());
+		} else {
+			byte[] bytes = new byte[in.remaining()];
+			in.duplicate().get(bytes);
+			inflater.setInput(bytes);
+		}
+		in.position(in.limit());
+	}
+
+	private static long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads
+				.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * The compression state of a session.
+	 */
+	private static class Context {
+
+		/**
+		 * The zlib streams, or null once the session is closed.
+		 */
+		Streams streams;
+
+		final CompressionStats stats = new CompressionStats();
+
+		Object lastPlainMessage;
+
+		Context(Streams streams, Object lastPlainMessage) {
+			this.streams = streams;
+			this.lastPlainMessage = lastPlainMessage;
+		}
+	}
+
+	/**
+	 * A pooled zlib context: the streams of both directions and their
+	 * buffers.
+	 */
+	private static class Streams {
+
+		final Deflater deflater;
+
+		final Inflater inflater = new Inflater();
+
+		final byte[] deflated = new byte[CHUNK_SIZE];
+
+		final byte[] inflated = new byte[CHUNK_SIZE];
+
+		Streams(int level) {
+			deflater = new Deflater(level);
+		}
+	}
+
+	/**
+	 * A write request carrying the compressed form of its parent message.
+	 */
+	private static class CompressedWriteRequest extends WriteRequestWrapper {
+
+		final IoBuffer buffer;
+
+		CompressedWriteRequest(WriteRequest parent, IoBuffer buffer) {
+			super(parent);
+			this.buffer = buffer;
+		}
+
+		@Override
+		public Object getMessage() {
+			return buffer;
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+/**
+ * The compression counters of a connection using stream compression. The
+ * byte counts are taken before and after zlib in each direction, and the
+ * times are the CPU time spent compressing and decompressing.
+ */
+public class CompressionStats {
+
+	private volatile long rawBytesWritten;
+
+	private volatile long compressedBytesWritten;
+
+	private volatile long compressedBytesRead;
+
+	private volatile long rawBytesRead;
+
+	private volatile long deflateTime;
+
+	private volatile long inflateTime;
+
+	// Updated by the single thread compressing or decompressing at a time
+
+	void written(int raw, int compressed, long time) {
+		rawBytesWritten += raw;
+		compressedBytesWritten += compressed;
+		deflateTime += time;
+	}
+
+	void read(int compressed, int raw, long time) {
+		compressedBytesRead += compressed;
+		rawBytesRead += raw;
+		inflateTime += time;
+	}
+
+	/**
+	 * Returns the number of bytes written before compression.
+	 *
+	 * @return the number of uncompressed bytes written
+	 */
+	public long getRawBytesWritten() {
+		return rawBytesWritten;
+	}
+
+	/**
+	 * Returns the number of compressed bytes written to the socket.
+	 *
+	 * @return the number of compressed bytes written
+	 */
+	public long getCompressedBytesWritten() {
+		return compressedBytesWritten;
+	}
+
+	/**
+	 * Returns the number of compressed bytes read from the socket.
+	 *
+	 * @return the number of compressed bytes read
+	 */
+	public long getCompressedBytesRead() {
+		return compressedBytesRead;
+	}
+
+	/**
+	 * Returns the number of bytes read after decompression.
+	 *
+	 * @return the number of uncompressed bytes read
+	 */
+	public long getRawBytesRead() {
+		return rawBytesRead;
+	}
+
+	/**
+	 * Returns the CPU time spent compressing.
+	 *
+	 * @return the compression time in nanoseconds
+	 */
+	public long getDeflateTime() {
+		return deflateTime;
+	}
+
+	/**
+	 * Returns the CPU time spent decompressing.
+	 *
+	 * @return the decompression time in nanoseconds
+	 */
+	public long getInflateTime() {
+		return inflateTime;
+	}
+
+	/**
+	 * Returns how many times smaller the outbound stream is once compressed,
+	 * or 0 if nothing was written yet.
+	 *
+	 * @return the outbound compression ratio
+	 */
+	public double getWriteRatio() {
+		long compressed = compressedBytesWritten;
+		return compressed == 0 ? 0 : (double) rawBytesWritten / compressed;
+	}
+
+	/**
+	 * Returns how many times smaller the inbound stream is once compressed,
+	 * or 0 if nothing was read yet.
+	 *
+	 * @return the inbound compression ratio
+	 */
+	public double getReadRatio() {
+		long compressed = compressedBytesRead;
+		return compressed == 0 ? 0 : (double) rawBytesRead / compressed;
+	}
+
+	/**
+	 * Returns the CPU time spent per kilobyte of uncompressed data, in both
+	 * directions.
+	 *
+	 * @return the cost in nanoseconds per kilobyte
+	 */
+	public long getTimePerKilobyte() {
+		long raw = rawBytesWritten + rawBytesRead;
+		return raw == 0 ? 0 : (deflateTime + inflateTime) * 1024 / raw;
+	}
+
+	public String toString() {
+		return String.format("out %.1fx, in %.1fx, %d ns/KB",
+				getWriteRatio(), getReadRatio(), getTimePerKilobyte());
+	}
+
+}
@@ -3,6 +3,7 @@ package org.soxmpp.server.xmpp.net;
 import java.net.UnknownHostException;
 
 import org.soxmpp.server.xmpp.UnauthenticatedException;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.session.LocalSession;
 import org.xmpp.packet.Packet;
 
@@ -141,6 +142,28 @@ public interface Connection {
 	 */
 	public void deliver(Packet packet) throws UnauthenticatedException;
 
+	/**
+	 * Returns true if more bytes are waiting to be written to this connection
+	 * than its high watermark. The connection stays congested until the
+	 * queue drains below its low watermark. Presence stanzas are dropped while
+	 * the connection is congested, and a connection that stays congested too
+	 * long is closed.
+	 * 
+	 * @return true if the connection is congested.
+	 */
+	public boolean isCongested();
+
+	/**
+	 * Runs a task in order with the events of this connection: in the
+	 * mailbox of its session if the events go through one, at once
+	 * otherwise or when called from a task of that mailbox, so that a reply
+	 * stays in order with what the current task writes directly.
+	 * 
+	 * @param task
+	 *            the task.
+	 */
+	public void execute(Runnable task);
+
 	/**
 	 * Delivers raw text to this connection. This is a very low level way for
 	 * sending XML stanzas to the client. This method should not be used unless
@@ -158,6 +181,29 @@ public interface Connection {
 	 */
 	public void deliverRawText(String text);
 
+	/**
+	 * Delivers a stanza that has already been encoded to UTF-8. The parts are
+	 * written in order as one stanza, which lets callers share the encoded
+	 * bytes of a stanza between many connections and only encode the parts
+	 * that differ per recipient.
+	 * 
+	 * @param parts
+	 *            the encoded parts of the stanza.
+	 */
+	public void deliverEncoded(byte[]... parts);
+
+	/**
+	 * Delivers a stanza from a template encoded once, splicing in the values
+	 * of its placeholders. Constant stanzas such as stream headers and
+	 * features are sent this way without being built and encoded again.
+	 * 
+	 * @param template
+	 *            the stanza template.
+	 * @param values
+	 *            the values of the template placeholders, in order.
+	 */
+	public void deliverTemplate(StanzaTemplate template, String... values);
+
 	/**
 	 * Returns the major version of XMPP being used by this connection
 	 * (major_version.minor_version. In most cases, the version should be "1.0".
@@ -207,6 +253,23 @@ public interface Connection {
 	 */
 	public void setLanaguage(String language);
 
+	/**
+	 * Returns the type of network the client declared it is on (e.g.
+	 * "wifi" or "cellular"), or null if it did not declare one.
+	 * 
+	 * @return the network type of the client.
+	 */
+	public String getNetworkType();
+
+	/**
+	 * Sets the type of network the client declared it is on. The keepalive
+	 * interval of the connection depends on it.
+	 * 
+	 * @param networkType
+	 *            the network type.
+	 */
+	public void setNetworkType(String networkType);
+
 	/**
 	 * Returns whether TLS is mandatory, optional or is disabled. When TLS is
 	 * mandatory clients are required to secure their connections or otherwise
@@ -256,6 +319,37 @@ public interface Connection {
 	 */
 	void startTLS( ClientAuth authentication) throws Exception;
 
+	/**
+	 * Returns whether stream compression is optional or disabled.
+	 * 
+	 * @return whether compression is optional or disabled.
+	 */
+	CompressionPolicy getCompressionPolicy();
+
+	/**
+	 * Returns true if the stream of this connection is compressed.
+	 * 
+	 * @return true if the connection is compressed.
+	 */
+	boolean isCompressed();
+
+	/**
+	 * Starts compressing the stream with zlib (XEP-0138). The
+	 * <tt>compressed</tt> element is sent in clear, and everything written or
+	 * read after it is compressed.
+	 * 
+	 * @return true if compression started, false if it is not available.
+	 */
+	boolean startCompression();
+
+	/**
+	 * Returns the compression counters of this connection, or null if the
+	 * stream is not compressed.
+	 * 
+	 * @return the compression counters.
+	 */
+	CompressionStats getCompressionStats();
+
 	/**
 	 * Enumeration of possible TLS policies required to interact with the
 	 * server.
@@ -282,6 +376,25 @@ public interface Connection {
 		disabled
 	}
 
+	/**
+	 * Enumeration of possible compression policies required to interact with
+	 * the server.
+	 */
+	enum CompressionPolicy {
+
+		/**
+		 * Compression is optional to interact with the server.
+		 */
+		optional,
+
+		/**
+		 * Compression is not available. Entities that request a compression
+		 * negotiation will get a failure and their streams will stay
+		 * uncompressed.
+		 */
+		disabled
+	}
+
 	/**
 	 * Enumeration that specifies if clients should be authenticated (and how)
 	 * while negotiating TLS.
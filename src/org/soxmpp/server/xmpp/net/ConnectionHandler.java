@@ -17,15 +17,21 @@
  */
 package org.soxmpp.server.xmpp.net;
 
+import java.io.UnsupportedEncodingException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.service.IoHandler;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteException;
+import org.apache.mina.core.write.WriteRequest;
+import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.net.MXParser;
-import org.jivesoftware.openfire.nio.XMLLightweightParser;
 import org.soxmpp.server.xmpp.XmppServer;
+import org.soxmpp.server.xmpp.codec.StreamParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
@@ -52,6 +58,8 @@ public abstract class ConnectionHandler implements IoHandler {
 
     protected String serverName;
 
+    private KeepAliveService keepAliveService;
+
     private static final ThreadLocal<XMPPPacketReader> PARSER_CACHE = new ThreadLocal<XMPPPacketReader>()
             {
                @Override
@@ -82,6 +90,14 @@ public abstract class ConnectionHandler implements IoHandler {
         serverName = XmppServer.getInstance().getServerName();
     }
 
+    /**
+     * Sets the service pinging the idle connections. Without it, MINA
+     * reports the connections idle for half the max idle time.
+     */
+    public void setKeepAliveService(KeepAliveService keepAliveService) {
+        this.keepAliveService = keepAliveService;
+    }
+
     /**
      * Invoked from an I/O processor thread when a new connection has been created.
      */
@@ -94,13 +110,18 @@ public abstract class ConnectionHandler implements IoHandler {
      */
     public void sessionOpened(IoSession session) throws Exception {
         log.info(session.getRemoteAddress()+"打开session");
-        // Create a new XML parser
-        XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
+        // Create a new stream parser
+        session.setAttribute(XML_PARSER, new StreamParser());
         // Create a new connection
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
         session.setAttribute(STANZA_HANDLER, createStanzaHandler(connection));
+        if (keepAliveService != null) {
+            keepAliveService.register(session, connection, getMaxIdleTime());
+        } else {
+            session.getConfig().setIdleTime(IdleStatus.BOTH_IDLE,
+                    getMaxIdleTime() / 2);
+        }
     }
 
     /**
@@ -108,6 +129,9 @@ public abstract class ConnectionHandler implements IoHandler {
      */
     public void sessionClosed(IoSession session) throws Exception {
     	log.info(session.getRemoteAddress()+"断开session");
+        if (keepAliveService != null) {
+            keepAliveService.unregister(session);
+        }
         Connection connection = (Connection) session.getAttribute(CONNECTION);
         connection.close();
     }
@@ -131,6 +155,15 @@ public abstract class ConnectionHandler implements IoHandler {
     public void exceptionCaught(IoSession session, Throwable cause)
             throws Exception {
         log.debug("exceptionCaught()...");
+        if (cause instanceof WriteException) {
+            // Writes dropped by a closing session never reach messageSent
+            for (WriteRequest request : ((WriteException) cause).getRequests()) {
+                Object message = request.getOriginalRequest().getMessage();
+                if (message instanceof IoBuffer) {
+                    IoBufferPool.getInstance().release((IoBuffer) message);
+                }
+            }
+        }
         log.error(cause);
     }
 
@@ -139,26 +172,46 @@ public abstract class ConnectionHandler implements IoHandler {
      */
     public void messageReceived(IoSession session, Object message)
             throws Exception {
-        log.info("RCVD: " + message);
+        if (log.isDebugEnabled()) {
+            log.debug("RCVD: " + text(message));
+        }
 
         // Get the stanza handler
         StanzaHandler handler = (StanzaHandler) session
                 .getAttribute(STANZA_HANDLER);
 
-        // Get the XMPP packet parser
-        final XMPPPacketReader parser = PARSER_CACHE.get();
-
         // The stanza handler processes the message
         try {
-            handler.process((String) message, parser);
+            if (message instanceof Element) {
+                handler.process((Element) message);
+            } else {
+                // Get the XMPP packet parser for the stream tags
+                final XMPPPacketReader parser = PARSER_CACHE.get();
+                handler.process((byte[]) message, parser);
+            }
         } catch (Exception e) {
             log.error(
                     "Closing connection due to error while processing message: "
-                            + message, e);
+                            + text(message), e);
             Connection connection = (Connection) session
                     .getAttribute(CONNECTION);
             connection.close();
         }
+
+        // Write the stanzas delivered while processing the message together
+        NIOConnection connection = (NIOConnection) session
+                .getAttribute(CONNECTION);
+        if (connection != null) {
+            connection.flush();
+        }
+    }
+
+    private static String text(Object message)
+            throws UnsupportedEncodingException {
+        if (message instanceof Element) {
+            return ((Element) message).asXML();
+        }
+        return new String((byte[]) message, CHARSET);
     }
 
     /**
@@ -166,6 +219,21 @@ public abstract class ConnectionHandler implements IoHandler {
      */
     public void messageSent(IoSession session, Object message) throws Exception {
         log.debug("messageSent()...");
+        // The buffer has been written to the socket so it can be reused
+        if (message instanceof IoBuffer) {
+            IoBufferPool.getInstance().release((IoBuffer) message);
+        }
+        NIOConnection connection = (NIOConnection) session
+                .getAttribute(CONNECTION);
+        if (connection != null && connection.writeCompleted()) {
+            connectionDrained(connection);
+        }
+    }
+
+    /**
+     * Invoked when a congested connection has drained its write queue.
+     */
+    void connectionDrained(NIOConnection connection) {
     }
     
     abstract NIOConnection createNIOConnection(IoSession session);
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+import org.soxmpp.server.util.Config;
+
+/**
+ * A pool of outbound buffers grouped in power-of-two size classes. Each thread
+ * keeps a small cache per size class and falls back to a shared cache, so the
+ * common path of a delivery does not allocate a new buffer.
+ * <p>
+ * Buffers are handed out by {@link #allocate(int)} and must be given back with
+ * {@link #release(IoBuffer)} once MINA has written them to the socket.
+ */
+public class IoBufferPool {
+
+	private static final Log log = LogFactory.getLog(IoBufferPool.class);
+
+	/**
+	 * The smallest size class (256 bytes).
+	 */
+	private static final int MIN_SHIFT = 8;
+
+	private static volatile IoBufferPool instance;
+
+	private final boolean direct;
+
+	private final int maxCapacity;
+
+	private final int classCount;
+
+	private final int threadCacheSize;
+
+	private final int sharedCacheSize;
+
+	private final List<Queue<ByteBuffer>> sharedCaches;
+
+	private final AtomicInteger[] sharedCounts;
+
+	private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCaches;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong discarded = new AtomicLong();
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private IoBufferPool() {
+		this(Config.getBoolean("xmpp.buffer.pool.direct", false), Config
+				.getInt("xmpp.buffer.pool.maxCapacity", 64 * 1024), Config
+				.getInt("xmpp.buffer.pool.threadCache", 32), Config.getInt(
+				"xmpp.buffer.pool.sharedCache", 4096));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param direct
+	 *            true to pool direct buffers, false for heap buffers
+	 * @param maxCapacity
+	 *            the capacity of the largest size class
+	 * @param threadCacheSize
+	 *            the number of buffers each thread keeps per size class
+	 * @param sharedCacheSize
+	 *            the number of buffers the shared cache keeps per size class
+	 */
+	public IoBufferPool(boolean direct, int maxCapacity, int threadCacheSize,
+			int sharedCacheSize) {
+		this.direct = direct;
+		this.maxCapacity = Math.max(1 << MIN_SHIFT,
+				Integer.highestOneBit(maxCapacity));
+		this.classCount = classIndex(this.maxCapacity) + 1;
+		this.threadCacheSize = threadCacheSize;
+		this.sharedCacheSize = sharedCacheSize;
+
+		sharedCaches = new ArrayList<Queue<ByteBuffer>>(classCount);
+		sharedCounts = new AtomicInteger[classCount];
+		for (int i = 0; i < classCount; i++) {
+			sharedCaches.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			sharedCounts[i] = new AtomicInteger();
+		}
+		threadCaches = new ThreadLocal<List<ArrayDeque<ByteBuffer>>>() {
+			@Override
+			protected List<ArrayDeque<ByteBuffer>> initialValue() {
+				List<ArrayDeque<ByteBuffer>> caches = new ArrayList<ArrayDeque<ByteBuffer>>(
+						classCount);
+				for (int i = 0; i < classCount; i++) {
+					caches.add(new ArrayDeque<ByteBuffer>());
+				}
+				return caches;
+			}
+		};
+		log.info("Outbound buffer pool: direct=" + direct + ", maxCapacity="
+				+ this.maxCapacity + ", threadCache=" + threadCacheSize
+				+ ", sharedCache=" + sharedCacheSize);
+	}
+
+	/**
+	 * Returns the singleton instance of IoBufferPool.
+	 *
+	 * @return the instance
+	 */
+	public static IoBufferPool getInstance() {
+		if (instance == null) {
+			synchronized (IoBufferPool.class) {
+				if (instance == null) {
+					instance = new IoBufferPool();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns an auto-expanding buffer with at least the given capacity.
+	 *
+	 * @param capacity
+	 *            the minimum capacity
+	 * @return a cleared buffer ready to be filled
+	 */
+	public IoBuffer allocate(int capacity) {
+		ByteBuffer nioBuffer = null;
+		int index = classIndex(capacity);
+		if (index < classCount) {
+			nioBuffer = threadCaches.get().get(index).pollFirst();
+			if (nioBuffer == null) {
+				nioBuffer = sharedCaches.get(index).poll();
+				if (nioBuffer != null) {
+					sharedCounts[index].decrementAndGet();
+				}
+			}
+		}
+		if (nioBuffer != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			int size = index < classCount ? 1 << (index + MIN_SHIFT)
+					: capacity;
+			nioBuffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+					.allocate(size);
+		}
+		outstanding.incrementAndGet();
+
+		PooledIoBuffer buffer = new PooledIoBuffer(IoBuffer.wrap(nioBuffer));
+		buffer.setAutoExpand(true);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. Buffers that were not allocated by a
+	 * pool, or that were already released, are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer to release
+	 */
+	public void release(IoBuffer buffer) {
+		if (!(buffer instanceof PooledIoBuffer)) {
+			return;
+		}
+		PooledIoBuffer pooled = (PooledIoBuffer) buffer;
+		if (!pooled.released.compareAndSet(false, true)) {
+			return;
+		}
+		outstanding.decrementAndGet();
+
+		// The buffer may have been replaced by a larger one when it expanded
+		ByteBuffer nioBuffer = pooled.getParentBuffer().buf();
+		int capacity = nioBuffer.capacity();
+		if (nioBuffer.isDirect() != direct || capacity < (1 << MIN_SHIFT)
+				|| capacity > maxCapacity) {
+			discarded.incrementAndGet();
+			return;
+		}
+		int index = (31 - Integer.numberOfLeadingZeros(capacity)) - MIN_SHIFT;
+		nioBuffer.clear();
+
+		ArrayDeque<ByteBuffer> threadCache = threadCaches.get().get(index);
+		if (threadCache.size() < threadCacheSize) {
+			threadCache.offerFirst(nioBuffer);
+		} else if (sharedCounts[index].incrementAndGet() <= sharedCacheSize) {
+			sharedCaches.get(index).offer(nioBuffer);
+		} else {
+			sharedCounts[index].decrementAndGet();
+			discarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of allocations served from a cache.
+	 *
+	 * @return the number of pool hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of allocations that had to create a new buffer.
+	 *
+	 * @return the number of pool misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of released buffers that did not fit in any cache.
+	 *
+	 * @return the number of discarded buffers
+	 */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * Returns the number of buffers handed out and not yet released.
+	 *
+	 * @return the number of outstanding buffers
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Returns true if the pool hands out direct buffers.
+	 *
+	 * @return true if the buffers are direct, false otherwise
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns the counters of the pool as a JSON object.
+	 *
+	 * @return the counters in JSON
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("{\"direct\":").append(direct);
+		sb.append(",\"maxCapacity\":").append(maxCapacity);
+		sb.append(",\"hits\":").append(getHits());
+		sb.append(",\"misses\":").append(getMisses());
+		sb.append(",\"discarded\":").append(getDiscarded());
+		sb.append(",\"outstanding\":").append(getOutstanding());
+		sb.append("}");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "IoBufferPool[hits=" + hits + ", misses=" + misses
+				+ ", discarded=" + discarded + ", outstanding=" + outstanding
+				+ "]";
+	}
+
+	/**
+	 * Returns the index of the smallest size class that holds the capacity.
+	 */
+	private static int classIndex(int capacity) {
+		if (capacity <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		return (32 - Integer.numberOfLeadingZeros(capacity - 1)) - MIN_SHIFT;
+	}
+
+	/**
+	 * A buffer handed out by the pool.
+	 */
+	private static class PooledIoBuffer extends IoBufferWrapper {
+
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		PooledIoBuffer(IoBuffer buffer) {
+			super(buffer);
+		}
+	}
+
+}
@@ -45,6 +45,15 @@ public class IoBufferWriter extends Writer {
         this.ioBuffer = ioBuffer;
     }
 
+    /**
+     * Points this writer at another buffer so it can be reused across writes.
+     * 
+     * @param ioBuffer the IoBuffer
+     */
+    public void setIoBuffer(IoBuffer ioBuffer) {
+        this.ioBuffer = ioBuffer;
+    }
+
     /**
      * Writes a portion of an array of characters.
      * 
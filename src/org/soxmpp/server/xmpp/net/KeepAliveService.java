@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.session.IoSession;
+import org.soxmpp.server.util.HashedWheelTimer;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
+import org.soxmpp.server.xmpp.handler.IQPingHandler;
+import org.soxmpp.server.xmpp.session.LocalSession;
+import org.soxmpp.server.xmpp.session.Session;
+
+/**
+ * Pings the connections that have been idle and closes the ones that do not
+ * answer, with one timer for all the connections.
+ * <p>
+ * The timeout of a connection fires once per interval and is set again from
+ * the time MINA last read bytes from it, so the timer is not touched on every
+ * read, and whitespace and partial stanzas count as reads too. After an idle
+ * interval an authenticated connection gets an XMPP ping (XEP-0199) and is
+ * closed if nothing is read from it within the pong timeout. In whitespace
+ * mode, and before the client has authenticated, the connection gets a space
+ * instead, which needs no answer, and is closed once it has been idle for the
+ * maximum idle time of the handler.
+ * <p>
+ * The interval depends on the network the client declared in its stream
+ * header. When adaptive, the interval of a network shrinks when many pings
+ * on it go unanswered, as when a NAT drops idle mappings sooner than
+ * expected, and grows back to the configured one when they are answered.
+ */
+public class KeepAliveService {
+
+	private static final Log log = LogFactory.getLog(KeepAliveService.class);
+
+	private static final String KEEPALIVE = "KEEPALIVE";
+
+	/** The XMPP ping, also sent by {@link ClientConnectionHandler} */
+	static final StanzaTemplate PING = new StanzaTemplate(
+			"<iq type=\"get\" id=\"${id}\" from=\"${from}\" to=\"${to}\">"
+					+ "<ping xmlns=\"" + IQPingHandler.NAMESPACE + "\"/></iq>");
+
+	/** The number of pings after which a network interval is adapted */
+	private static final int ADAPT_WINDOW = 100;
+
+	private static final AtomicLong pingSequence = new AtomicLong();
+
+	private final AtomicLong pings = new AtomicLong();
+
+	private final AtomicLong missedPongs = new AtomicLong();
+
+	private final AtomicLong idleClosed = new AtomicLong();
+
+	private HashedWheelTimer timer;
+
+	private boolean whitespace;
+
+	private int interval = 180;
+
+	private int pongTimeout = 30;
+
+	private boolean adaptive = true;
+
+	private int minInterval = 60;
+
+	private final Profile defaultProfile = new Profile("default", interval);
+
+	private final Map<String, Profile> profiles = new HashMap<String, Profile>();
+
+	/**
+	 * Sets whether the connections get whitespace pings instead of XMPP
+	 * pings.
+	 */
+	public void setWhitespace(boolean whitespace) {
+		this.whitespace = whitespace;
+	}
+
+	/**
+	 * Sets the seconds a connection may be idle before it is pinged, for the
+	 * clients that did not declare a known network.
+	 */
+	public void setInterval(int interval) {
+		this.interval = interval;
+		defaultProfile.setMaxInterval(interval);
+	}
+
+	/**
+	 * Sets the seconds the answer to an XMPP ping is waited for.
+	 */
+	public void setPongTimeout(int pongTimeout) {
+		this.pongTimeout = pongTimeout;
+	}
+
+	/**
+	 * Sets the interval of the networks the clients may declare, in seconds
+	 * by network type.
+	 */
+	public void setNetworkIntervals(Map<String, Integer> networkIntervals) {
+		synchronized (profiles) {
+			profiles.clear();
+			for (Map.Entry<String, Integer> entry : networkIntervals
+					.entrySet()) {
+				profiles.put(entry.getKey(), new Profile(entry.getKey(),
+						entry.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Sets whether the interval of a network adapts to the pings missed on
+	 * it.
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Sets the shortest interval an adaptive network may get, in seconds.
+	 */
+	public void setMinInterval(int minInterval) {
+		this.minInterval = minInterval;
+	}
+
+	/**
+	 * Starts the timer.
+	 */
+	public synchronized void start() {
+		if (timer == null) {
+			timer = new HashedWheelTimer("keepalive", 1, TimeUnit.SECONDS, 512);
+			timer.start();
+		}
+	}
+
+	/**
+	 * Stops the timer. The connections are no longer pinged.
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.stop();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Starts watching a connection.
+	 * 
+	 * @param session
+	 *            the session of the connection
+	 * @param connection
+	 *            the connection
+	 * @param maxIdleTime
+	 *            the seconds a connection that cannot answer pings may be
+	 *            idle before it is closed
+	 */
+	public void register(IoSession session, NIOConnection connection,
+			int maxIdleTime) {
+		State state = new State(session, connection, maxIdleTime * 1000L);
+		session.setAttribute(KEEPALIVE, state);
+		schedule(state, getProfile(connection).getInterval() * 1000L);
+	}
+
+	/**
+	 * Stops watching a connection.
+	 * 
+	 * @param session
+	 *            the session of the connection
+	 */
+	public void unregister(IoSession session) {
+		State state = (State) session.removeAttribute(KEEPALIVE);
+		if (state != null && state.timeout != null) {
+			state.timeout.cancel();
+		}
+	}
+
+	private void schedule(final State state, long delay) {
+		HashedWheelTimer timer = this.timer;
+		if (timer != null) {
+			state.timeout = timer.newTimeout(new Runnable() {
+				public void run() {
+					check(state);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void check(final State state) {
+		final NIOConnection connection = state.connection;
+		if (connection.isClosed()) {
+			return;
+		}
+		Profile profile = getProfile(connection);
+		long now = System.currentTimeMillis();
+		long lastRead = state.session.getLastReadTime();
+
+		if (state.pingSent != 0) {
+			if (lastRead >= state.pingSent) {
+				state.pingSent = 0;
+				profile.answered();
+			} else if (now - state.pingSent < pongTimeout * 1000L) {
+				schedule(state, state.pingSent + pongTimeout * 1000L - now);
+				return;
+			} else {
+				missedPongs.incrementAndGet();
+				profile.missed();
+				close(connection, "did not answer a ping");
+				return;
+			}
+		}
+
+		long idle = now - lastRead;
+		long intervalMillis = profile.getInterval() * 1000L;
+		LocalSession session = connection.getSession();
+		final boolean xmppPing = !whitespace && session != null
+				&& session.getStatus() == Session.STATUS_AUTHENTICATED;
+		if (!xmppPing && idle >= state.maxIdle) {
+			idleClosed.incrementAndGet();
+			close(connection, "has been idle for " + idle / 1000 + " s");
+		} else if (idle < intervalMillis) {
+			schedule(state, intervalMillis - idle);
+		} else if (xmppPing) {
+			final String from = session.getServerName();
+			final String to = session.getAddress().toString();
+			state.pingSent = now;
+			pings.incrementAndGet();
+			connection.execute(new Runnable() {
+				public void run() {
+					connection.deliverTemplate(PING, nextPingId(), from, to);
+				}
+			});
+			schedule(state, pongTimeout * 1000L);
+		} else {
+			pings.incrementAndGet();
+			connection.execute(new Runnable() {
+				public void run() {
+					connection.deliverRawText(" ");
+				}
+			});
+			schedule(state, Math.min(intervalMillis, state.maxIdle - idle));
+		}
+	}
+
+	/**
+	 * Returns the id of a new XMPP ping.
+	 * 
+	 * @return the ping id
+	 */
+	static String nextPingId() {
+		return "ping-" + pingSequence.incrementAndGet();
+	}
+
+	private void close(final NIOConnection connection, String reason) {
+		if (log.isDebugEnabled()) {
+			log.debug("Closing connection that " + reason + ": " + connection);
+		}
+		connection.execute(new Runnable() {
+			public void run() {
+				connection.close();
+			}
+		});
+	}
+
+	private Profile getProfile(NIOConnection connection) {
+		String networkType = connection.getNetworkType();
+		if (networkType != null) {
+			synchronized (profiles) {
+				Profile profile = profiles.get(networkType);
+				if (profile != null) {
+					return profile;
+				}
+			}
+		}
+		return defaultProfile;
+	}
+
+	/**
+	 * Returns the number of connections watched.
+	 * 
+	 * @return the number of connections
+	 */
+	public int getConnections() {
+		HashedWheelTimer timer = this.timer;
+		return timer != null ? timer.getPending() : 0;
+	}
+
+	/**
+	 * Returns the number of pings sent.
+	 * 
+	 * @return the number of pings
+	 */
+	public long getPings() {
+		return pings.get();
+	}
+
+	/**
+	 * Returns the number of connections closed for not answering a ping.
+	 * 
+	 * @return the number of missed pongs
+	 */
+	public long getMissedPongs() {
+		return missedPongs.get();
+	}
+
+	/**
+	 * Returns the number of connections closed for being idle.
+	 * 
+	 * @return the number of idle connections closed
+	 */
+	public long getIdleClosed() {
+		return idleClosed.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("connections=").append(getConnections());
+		sb.append(" pings=").append(getPings());
+		sb.append(" missedPongs=").append(getMissedPongs());
+		sb.append(" idleClosed=").append(getIdleClosed());
+		sb.append(" intervals=").append(defaultProfile);
+		synchronized (profiles) {
+			for (Profile profile : profiles.values()) {
+				sb.append(",").append(profile);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The keepalive state of a connection.
+	 */
+	private static class State {
+
+		final IoSession session;
+
+		final NIOConnection connection;
+
+		final long maxIdle;
+
+		/** Only used by the timer thread */
+		long pingSent;
+
+		volatile HashedWheelTimer.Timeout timeout;
+
+		State(IoSession session, NIOConnection connection, long maxIdle) {
+			this.session = session;
+			this.connection = connection;
+			this.maxIdle = maxIdle;
+		}
+	}
+
+	/**
+	 * The interval of a network type, shortened by a quarter when more than
+	 * one ping in ten is missed and lengthened by an eighth, up to the
+	 * configured interval, when fewer than one in fifty is.
+	 */
+	private class Profile {
+
+		private final String name;
+
+		private volatile int maxInterval;
+
+		private volatile int interval;
+
+		private final AtomicInteger answered = new AtomicInteger();
+
+		private final AtomicInteger missed = new AtomicInteger();
+
+		Profile(String name, int interval) {
+			this.name = name;
+			this.maxInterval = interval;
+			this.interval = interval;
+		}
+
+		void setMaxInterval(int maxInterval) {
+			this.maxInterval = maxInterval;
+			this.interval = maxInterval;
+		}
+
+		int getInterval() {
+			return adaptive ? interval : maxInterval;
+		}
+
+		void answered() {
+			answered.incrementAndGet();
+			adapt();
+		}
+
+		void missed() {
+			missed.incrementAndGet();
+			adapt();
+		}
+
+		/** Only called by the timer thread */
+		private void adapt() {
+			int missedCount = missed.get();
+			int total = answered.get() + missedCount;
+			if (!adaptive || total < ADAPT_WINDOW) {
+				return;
+			}
+			answered.set(0);
+			missed.set(0);
+			int previous = interval;
+			if (missedCount * 10 > total) {
+				interval = Math.max(Math.min(minInterval, maxInterval),
+						previous - previous / 4);
+			} else if (missedCount * 50 < total) {
+				interval = Math.min(maxInterval, previous + previous / 8 + 1);
+			}
+			if (interval != previous) {
+				log.info("Keepalive interval of " + name + " networks: "
+						+ previous + " s -> " + interval + " s (" + missedCount
+						+ " of " + total + " pings missed)");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + getInterval() + "s";
+		}
+	}
+
+}
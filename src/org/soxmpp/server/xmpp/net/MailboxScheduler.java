@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.filterchain.IoFilterEvent;
+
+/**
+ * An executor running the events of every session through the mailbox of
+ * the session. The mailboxes run on a work-stealing pool: a thread takes the
+ * mailboxes it scheduled first, and the idle threads take the others, so
+ * the events of a session stay in order while busy sessions spread over
+ * the threads.
+ * <p>
+ * A task that is not the event of a session runs on the pool at once.
+ */
+public class MailboxScheduler implements Executor {
+
+	private static final Log log = LogFactory.getLog(MailboxScheduler.class);
+
+	private final ForkJoinPool pool;
+
+	private final int throughput;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threads
+	 *            the number of threads, or 0 for one per core
+	 * @param throughput
+	 *            the number of tasks a mailbox runs before giving its thread
+	 *            to another mailbox
+	 * @param threadName
+	 *            the name of the threads, followed by their number
+	 */
+	public MailboxScheduler(int threads, int throughput, String threadName) {
+		this.throughput = throughput;
+		this.pool = new ForkJoinPool(threads > 0 ? threads : Runtime
+				.getRuntime().availableProcessors(), new NamedThreadFactory(
+				threadName), new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				log.error("Uncaught exception in " + t.getName(), e);
+			}
+		}, true);
+	}
+
+	public void execute(Runnable command) {
+		if (command instanceof IoFilterEvent) {
+			SessionMailbox.getOrCreate(
+					((IoFilterEvent) command).getSession(), this, throughput)
+					.post(command);
+		} else {
+			pool.execute(command);
+		}
+	}
+
+	void schedule(SessionMailbox mailbox) {
+		pool.execute(mailbox);
+	}
+
+	/**
+	 * Returns the number of threads.
+	 *
+	 * @return the number of threads
+	 */
+	public int getThreads() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Returns the number of tasks a mailbox runs before giving its thread to
+	 * another mailbox.
+	 *
+	 * @return the mailbox throughput
+	 */
+	public int getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Returns the number of mailboxes taken from the queue of another thread.
+	 *
+	 * @return the steal count
+	 */
+	public long getStealCount() {
+		return pool.getStealCount();
+	}
+
+	/**
+	 * Stops the threads once the scheduled mailboxes have run.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class NamedThreadFactory implements
+			ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+		private final String name;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+					.newThread(pool);
+			thread.setName(name + "-" + count.incrementAndGet());
+			return thread;
+		}
+	}
+
+}
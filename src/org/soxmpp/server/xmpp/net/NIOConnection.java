@@ -22,26 +22,25 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
-import java.security.KeyStore;
-
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
-import org.dom4j.io.OutputFormat;
-import org.jivesoftware.util.XMLWriter;
 import org.soxmpp.server.util.Config;
+import org.soxmpp.server.util.HashedWheelTimer;
+import org.soxmpp.server.xmpp.codec.StanzaSerializer;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.session.LocalSession;
 import org.soxmpp.server.xmpp.session.Session;
 import org.soxmpp.server.xmpp.ssl.SSLConfig;
-import org.soxmpp.server.xmpp.ssl.SSLKeyManagerFactory;
-import org.soxmpp.server.xmpp.ssl.SSLTrustManagerFactory;
+import org.soxmpp.server.xmpp.ssl.SSLHandshakeFilter;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 /**
  * This class represents a XMPP connection on the server.
@@ -52,6 +51,61 @@ public class NIOConnection implements Connection {
 
 	private static final Log log = LogFactory.getLog(Connection.class);
 
+	private static final StanzaTemplate SPACE = new StanzaTemplate(" ");
+
+	private static final StanzaTemplate STREAM_END = new StanzaTemplate(
+			"</stream:stream>");
+
+	private static final StanzaTemplate SYSTEM_SHUTDOWN = new StanzaTemplate(
+			"<stream:error><system-shutdown "
+					+ "xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+
+	/**
+	 * Bytes waiting to be written above which a connection is congested, and
+	 * below which a congested connection drains.
+	 */
+	private static final int WRITE_HIGH_WATERMARK = Config.getInt(
+			"xmpp.client.write.highWatermark", 256 * 1024);
+
+	private static final int WRITE_LOW_WATERMARK = Config.getInt(
+			"xmpp.client.write.lowWatermark", 64 * 1024);
+
+	/**
+	 * Bytes waiting to be written above which a connection is closed.
+	 */
+	private static final int WRITE_QUEUE_LIMIT = Config.getInt(
+			"xmpp.client.write.queueLimit", 1024 * 1024);
+
+	/**
+	 * Milliseconds a connection may stay congested before it is closed.
+	 */
+	private static final long CONGESTION_TIMEOUT = Config.getLong(
+			"xmpp.client.write.congestionTimeout", 60000);
+
+	/**
+	 * Capacity of the buffer that stanzas are coalesced into; a stanza that
+	 * does not fit flushes the buffer.
+	 */
+	private static final int COALESCE_CAPACITY = Config.getInt(
+			"xmpp.client.write.coalesceCapacity", 16384);
+
+	/**
+	 * Timer flushing the coalesced stanzas that were not flushed at the end
+	 * of an executor turn.
+	 */
+	private static final HashedWheelTimer flushTimer = new HashedWheelTimer(
+			"write-flusher", 1, TimeUnit.MILLISECONDS, 64);
+
+	private static final AtomicLong droppedStanzas = new AtomicLong();
+
+	private static final AtomicLong evictedConnections = new AtomicLong();
+
+	private static final StanzaTemplate COMPRESSED = new StanzaTemplate(
+			"<compressed xmlns=\"http://jabber.org/protocol/compress\"/>");
+
+	private static final StanzaTemplate PROCEED = new StanzaTemplate(
+			"<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+
 	/**
 	 * The utf-8 charset for decoding and encoding XMPP packet streams.
 	 */
@@ -69,13 +123,20 @@ public class NIOConnection implements Connection {
 	private int majorVersion = 1;
 	private int minorVersion = 0;
 	private String language = null;
+	private volatile String networkType = null;
 
 	// TODO Uso el #checkHealth????
 	/**
 	 * TLS policy currently in use for this connection.
 	 */
 	private TLSPolicy tlsPolicy = TLSPolicy.optional;
+
+	/**
+	 * Compression policy currently in use for this connection.
+	 */
+	private CompressionPolicy compressionPolicy;
 	private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
+	private static ThreadLocal<StanzaSerializer> serializer = new ThreadLocalSerializer();
 	/**
 	 * Flag that specifies if the connection should be considered closed.
 	 * Closing a NIO connection is an asynch operation so instead of waiting for
@@ -84,9 +145,53 @@ public class NIOConnection implements Connection {
 	 */
 	private boolean closed;
 
+	/**
+	 * The time the connection became congested, or 0 if it is not.
+	 */
+	private volatile long congestedSince;
+
+	/**
+	 * True if the connection was congested and has not been reported drained.
+	 */
+	private volatile boolean drainPending;
+
+	/**
+	 * True if stanzas are coalesced into a single write.
+	 */
+	private final boolean coalesce;
+
+	/**
+	 * Milliseconds a coalesced stanza may wait for the buffer to be flushed.
+	 */
+	private final int coalesceDelay;
+
+	private final Object writeLock = new Object();
+
+	/**
+	 * The stanzas waiting to be written, or null.
+	 */
+	private IoBuffer pending;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
 	public NIOConnection(IoSession session) {
 		this.ioSession = session;
 		closed = false;
+		try {
+			compressionPolicy = CompressionPolicy.valueOf(Config.getString(
+					"xmpp.client.compression.policy", "optional"));
+		} catch (IllegalArgumentException e) {
+			compressionPolicy = CompressionPolicy.disabled;
+		}
+		if (!session.getFilterChain().contains(CompressionFilter.class)) {
+			compressionPolicy = CompressionPolicy.disabled;
+		}
+		coalesce = Config.getBoolean("xmpp.client.write.coalesce", false);
+		coalesceDelay = Config.getInt("xmpp.client.write.coalesceDelay", 1);
 	}
 
 	/**
@@ -98,7 +203,7 @@ public class NIOConnection implements Connection {
 		if (isClosed()) {
 			return false;
 		}
-		deliverRawText(" ");
+		deliverTemplate(SPACE);
 		return !isClosed();
 	}
 
@@ -151,18 +256,30 @@ public class NIOConnection implements Connection {
 	 * listeners that the channel is shutting down.
 	 */
 	public void close() {
+		close(false);
+	}
+
+	/**
+	 * Closes the connection, at once and without ending the stream if
+	 * <tt>immediately</tt> is true.
+	 */
+	private void close(boolean immediately) {
 		boolean closedSuccessfully = false;
 		synchronized (this) {
 			if (!isClosed()) {
-				try {
-					deliverRawText("</stream:stream>", false);
-				} catch (Exception e) {
-					// Ignore
+				if (!immediately) {
+					try {
+						deliverTemplate(STREAM_END, false);
+					} catch (Exception e) {
+						// Ignore
+					}
+				} else {
+					discardPending();
 				}
 				if (session != null) {
 					session.setStatus(Session.STATUS_CLOSED);
 				}
-				ioSession.close(false);
+				ioSession.close(immediately);
 				closed = true;
 				closedSuccessfully = true;
 			}
@@ -176,8 +293,7 @@ public class NIOConnection implements Connection {
 	 * Sends notification message indicating that the server is being shutdown.
 	 */
 	public void systemShutdown() {
-		deliverRawText("<stream:error><system-shutdown "
-				+ "xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+		deliverTemplate(SYSTEM_SHUTDOWN);
 		close();
 	}
 
@@ -230,20 +346,25 @@ public class NIOConnection implements Connection {
 	 *            the packet to deliver
 	 */
 	public void deliver(Packet packet) {
-		log.info("SENT: " + packet.toXML());
 		if (!isClosed()) {
-			IoBuffer buffer = IoBuffer.allocate(4096);
-			buffer.setAutoExpand(true);
+			IoBuffer buffer = IoBufferPool.getInstance().allocate(4096);
 
 			boolean errorDelivering = false;
+			boolean written = false;
 			try {
-				XMLWriter xmlSerializer = new XMLWriter(new IoBufferWriter(
-						buffer, (CharsetEncoder) encoder.get()),
-						new OutputFormat());
-				xmlSerializer.write(packet.getElement());
-				xmlSerializer.flush();
+				serializer.get().write(packet.getElement(), buffer);
 				buffer.flip();
-				ioSession.write(buffer);
+				if (!admit(buffer.remaining(), packet instanceof Presence)) {
+					IoBufferPool.getInstance().release(buffer);
+					return;
+				}
+				if (log.isInfoEnabled()) {
+					log.info("SENT: "
+							+ buffer.duplicate().getString(
+									Charset.forName(CHARSET).newDecoder()));
+				}
+				written = true;
+				write(buffer);
 			} catch (Exception e) {
 				log.debug(
 						"Connection: Error delivering packet" + "\n"
@@ -251,6 +372,9 @@ public class NIOConnection implements Connection {
 				errorDelivering = true;
 			}
 			if (errorDelivering) {
+				if (!written) {
+					IoBufferPool.getInstance().release(buffer);
+				}
 				close();
 			} else {
 				session.incrementServerPacketCount();
@@ -271,18 +395,24 @@ public class NIOConnection implements Connection {
 	private void deliverRawText(String text, boolean asynchronous) {
 		log.info("SENT: " + text);
 		if (!isClosed()) {
-			IoBuffer buffer = IoBuffer.allocate(text.length());
-			buffer.setAutoExpand(true);
+			IoBuffer buffer = IoBufferPool.getInstance().allocate(
+					text.length());
 
 			boolean errorDelivering = false;
+			boolean written = false;
 			try {
-				buffer.put(text.getBytes("UTF-8"));
+				buffer.putString(text, (CharsetEncoder) encoder.get());
 				buffer.flip();
+				if (asynchronous && !admit(buffer.remaining(), false)) {
+					IoBufferPool.getInstance().release(buffer);
+					return;
+				}
+				written = true;
 				if (asynchronous) {
-					ioSession.write(buffer);
+					write(buffer);
 				} else {
 					// Send stanza and wait for ACK
-					boolean ok = ioSession.write(buffer).awaitUninterruptibly(
+					boolean ok = writeNow(buffer).awaitUninterruptibly(
 							Config.getInt("connection.ack.timeout", 2000));
 					if (!ok) {
 						log.warn("No ACK was received when sending stanza to: "
@@ -294,6 +424,9 @@ public class NIOConnection implements Connection {
 						"Connection: Error delivering raw text" + "\n"
 								+ this.toString(), e);
 				errorDelivering = true;
+				if (!written) {
+					IoBufferPool.getInstance().release(buffer);
+				}
 			}
 			// Close the connection if delivering text fails
 			if (errorDelivering && asynchronous) {
@@ -302,26 +435,344 @@ public class NIOConnection implements Connection {
 		}
 	}
 
-	public void startTLS(ClientAuth authentication) throws Exception {
-		log.debug("startTLS()...");
-		KeyStore ksKeys = SSLConfig.getKeyStore();
-		String keypass = SSLConfig.getKeyPassword();
-		KeyStore ksTrust = SSLConfig.getc2sTrustStore();
-		String trustpass = SSLConfig.getc2sTrustPassword();
+	/**
+	 * Delivers a stanza template to this connection (in asynchronous mode).
+	 * 
+	 * @param template
+	 *            the stanza template
+	 * @param values
+	 *            the values of the template placeholders
+	 */
+	public void deliverTemplate(StanzaTemplate template, String... values) {
+		deliverTemplate(template, true, values);
+	}
 
-		KeyManager[] km = SSLKeyManagerFactory.getKeyManagers(ksKeys, keypass);
-		TrustManager[] tm = SSLTrustManagerFactory.getTrustManagers(ksTrust,
-				trustpass);
+	private void deliverTemplate(StanzaTemplate template,
+			boolean asynchronous, String... values) {
+		if (!isClosed()) {
+			int length = template.getLength(values);
+			if (asynchronous && !admit(length, false)) {
+				return;
+			}
+			IoBuffer buffer = IoBufferPool.getInstance().allocate(length);
 
-		SSLContext tlsContext = SSLContext.getInstance("TLS");
-		tlsContext.init(km, tm, null);
+			boolean errorDelivering = false;
+			boolean written = false;
+			try {
+				template.write(buffer, values);
+				buffer.flip();
+				if (log.isInfoEnabled()) {
+					log.info("SENT: "
+							+ buffer.duplicate().getString(
+									Charset.forName(CHARSET).newDecoder()));
+				}
+				written = true;
+				if (asynchronous) {
+					writeNow(buffer);
+				} else {
+					// Send stanza and wait for ACK
+					boolean ok = writeNow(buffer).awaitUninterruptibly(
+							Config.getInt("connection.ack.timeout", 2000));
+					if (!ok) {
+						log.warn("No ACK was received when sending stanza to: "
+								+ this.toString());
+					}
+				}
+			} catch (Exception e) {
+				log.debug(
+						"Connection: Error delivering template" + "\n"
+								+ this.toString(), e);
+				errorDelivering = true;
+				if (!written) {
+					IoBufferPool.getInstance().release(buffer);
+				}
+			}
+			// Close the connection if delivering the template fails
+			if (errorDelivering && asynchronous) {
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Delivers an already encoded stanza to this connection. The parts are
+	 * copied into a single buffer so they reach the socket in one write.
+	 * 
+	 * @param parts
+	 *            the encoded parts of the stanza
+	 */
+	public void deliverEncoded(byte[]... parts) {
+		if (!isClosed()) {
+			int length = 0;
+			for (byte[] part : parts) {
+				length += part.length;
+			}
+			if (!admit(length, false)) {
+				return;
+			}
+			IoBuffer buffer = IoBufferPool.getInstance().allocate(length);
 
-		SslFilter filter = new SslFilter(tlsContext);
+			boolean errorDelivering = false;
+			boolean written = false;
+			try {
+				for (byte[] part : parts) {
+					buffer.put(part);
+				}
+				buffer.flip();
+				if (log.isInfoEnabled()) {
+					log.info("SENT: "
+							+ buffer.duplicate().getString(
+									Charset.forName(CHARSET).newDecoder()));
+				}
+				written = true;
+				write(buffer);
+			} catch (Exception e) {
+				log.debug(
+						"Connection: Error delivering encoded stanza" + "\n"
+								+ this.toString(), e);
+				errorDelivering = true;
+				if (!written) {
+					IoBufferPool.getInstance().release(buffer);
+				}
+			}
+			if (errorDelivering) {
+				close();
+			} else {
+				session.incrementServerPacketCount();
+			}
+		}
+	}
+
+	public void execute(Runnable task) {
+		SessionMailbox mailbox = SessionMailbox.get(ioSession);
+		if (mailbox != null && !mailbox.isCurrent()) {
+			mailbox.post(task);
+		} else {
+			task.run();
+		}
+	}
+
+	public boolean isCongested() {
+		long queued = getQueuedBytes();
+		if (congestedSince == 0) {
+			if (queued > WRITE_HIGH_WATERMARK) {
+				congestedSince = System.currentTimeMillis();
+				drainPending = true;
+				log.debug("Connection congested with " + queued
+						+ " bytes queued: " + this);
+			}
+		} else if (queued <= WRITE_LOW_WATERMARK) {
+			congestedSince = 0;
+		}
+		return congestedSince != 0;
+	}
+
+	/**
+	 * Returns the bytes waiting to be written, in the write queue of the
+	 * session and in the coalescing buffer.
+	 */
+	private long getQueuedBytes() {
+		long queued = ioSession.getScheduledWriteBytes();
+		if (coalesce) {
+			synchronized (writeLock) {
+				if (pending != null) {
+					queued += pending.position();
+				}
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Writes a stanza, or appends it to the stanzas waiting to be written
+	 * together if this connection coalesces its writes. The first stanza
+	 * appended schedules a flush after the coalescing delay; the stanzas
+	 * delivered while the connection processes a received stanza are flushed
+	 * when the processing ends.
+	 */
+	private void write(IoBuffer buffer) {
+		if (!coalesce) {
+			ioSession.write(buffer);
+			return;
+		}
+		boolean schedule = false;
+		synchronized (writeLock) {
+			if (pending != null && pending.remaining() < buffer.remaining()) {
+				flushPending();
+			}
+			if (pending == null) {
+				if (buffer.remaining() >= COALESCE_CAPACITY) {
+					ioSession.write(buffer);
+					return;
+				}
+				pending = IoBufferPool.getInstance().allocate(COALESCE_CAPACITY);
+				schedule = true;
+			}
+			pending.put(buffer);
+		}
+		IoBufferPool.getInstance().release(buffer);
+		if (schedule) {
+			flushTimer.newTimeout(flushTask, coalesceDelay,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes a stanza at once, after the stanzas waiting to be written.
+	 */
+	private WriteFuture writeNow(IoBuffer buffer) {
+		if (!coalesce) {
+			return ioSession.write(buffer);
+		}
+		synchronized (writeLock) {
+			flushPending();
+			return ioSession.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes the stanzas waiting to be written together.
+	 */
+	void flush() {
+		if (!coalesce) {
+			return;
+		}
+		synchronized (writeLock) {
+			flushPending();
+		}
+	}
+
+	private void flushPending() {
+		if (pending != null) {
+			pending.flip();
+			ioSession.write(pending);
+			pending = null;
+		}
+	}
+
+	private void discardPending() {
+		synchronized (writeLock) {
+			if (pending != null) {
+				IoBufferPool.getInstance().release(pending);
+				pending = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks the write queue before a stanza is queued. A congested
+	 * connection drops the stanzas that can be dropped; a connection that has
+	 * been congested for too long, or whose queue would pass its limit, is
+	 * closed at once.
+	 * 
+	 * @param length
+	 *            the length of the stanza in bytes
+	 * @param droppable
+	 *            true if the stanza can be dropped
+	 * @return true if the stanza can be written
+	 */
+	private boolean admit(int length, boolean droppable) {
+		if (!isCongested()) {
+			return true;
+		}
+		long queued = getQueuedBytes();
+		long since = congestedSince;
+		if (queued + length > WRITE_QUEUE_LIMIT
+				|| (since != 0 && System.currentTimeMillis() - since > CONGESTION_TIMEOUT)) {
+			log.info("Closing slow consumer with " + queued
+					+ " bytes queued: " + this);
+			evictedConnections.incrementAndGet();
+			close(true);
+			return false;
+		}
+		if (droppable) {
+			droppedStanzas.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Updates the congestion state when a write has completed.
+	 * 
+	 * @return true if the connection was congested and has drained
+	 */
+	boolean writeCompleted() {
+		if (drainPending && !isCongested()) {
+			drainPending = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of stanzas dropped by congested connections.
+	 * 
+	 * @return the number of dropped stanzas
+	 */
+	public static long getDroppedStanzas() {
+		return droppedStanzas.get();
+	}
+
+	/**
+	 * Returns the number of connections closed as slow consumers.
+	 * 
+	 * @return the number of closed connections
+	 */
+	public static long getEvictedConnections() {
+		return evictedConnections.get();
+	}
+
+	LocalSession getSession() {
+		return session;
+	}
+
+	public void startTLS(ClientAuth authentication) throws Exception {
+		log.debug("startTLS()...");
+		// The stanzas queued before must not be encrypted
+		flush();
+		// The shared context keeps the sessions the clients resume
+		SslFilter filter = new SSLHandshakeFilter(SSLConfig.getc2sSSLContext());
 		ioSession.getFilterChain().addFirst("tls", filter);
 		// ioSession.getFilterChain().addBefore("executor", "tls", filter);
 		ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
 
-		deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+		deliverTemplate(PROCEED);
+	}
+
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+
+	public boolean isCompressed() {
+		return CompressionFilter.isCompressed(ioSession);
+	}
+
+	public boolean startCompression() {
+		log.debug("startCompression()...");
+		flush();
+		CompressionFilter filter = (CompressionFilter) ioSession
+				.getFilterChain().get(CompressionFilter.class);
+		if (filter == null || compressionPolicy == CompressionPolicy.disabled
+				|| isClosed()) {
+			return false;
+		}
+		IoBuffer buffer = IoBufferPool.getInstance().allocate(
+				COMPRESSED.getLength());
+		COMPRESSED.write(buffer);
+		buffer.flip();
+		// The filter compresses what is written after this buffer
+		if (!filter.startCompression(ioSession, buffer)) {
+			IoBufferPool.getInstance().release(buffer);
+			return false;
+		}
+		log.info("SENT: " + COMPRESSED);
+		ioSession.write(buffer);
+		return true;
+	}
+
+	public CompressionStats getCompressionStats() {
+		return CompressionFilter.getStats(ioSession);
 	}
 
 	/**
@@ -374,6 +825,14 @@ public class NIOConnection implements Connection {
 		this.language = language;
 	}
 
+	public String getNetworkType() {
+		return networkType;
+	}
+
+	public void setNetworkType(String networkType) {
+		this.networkType = networkType;
+	}
+
 	public TLSPolicy getTlsPolicy() {
 		return tlsPolicy;
 	}
@@ -397,4 +856,13 @@ public class NIOConnection implements Connection {
 		}
 	}
 
+	private static class ThreadLocalSerializer extends
+			ThreadLocal<StanzaSerializer> {
+
+		@Override
+		protected StanzaSerializer initialValue() {
+			return new StanzaSerializer();
+		}
+	}
+
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.service.SimpleIoProcessorPool;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+import org.apache.mina.filter.executor.IoEventQueueThrottle;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
+import org.apache.mina.transport.socket.nio.NioProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * The threads that serve the client connections: a pool of I/O processors
+ * shared by every acceptor, and the executor the events of the sessions are
+ * handed to. The acceptors and the executor filter are created by this
+ * class, so the whole topology is configured in one place.
+ * <p>
+ * The defaults are those of MINA: one processor per core plus one, and an
+ * ordered executor of up to 16 threads with an unbounded queue running
+ * every event but writes.
+ */
+public class NetworkTopology {
+
+	private static final Log log = LogFactory.getLog(NetworkTopology.class);
+
+	private static final String PARALLELISM = "jdk.virtualThreadScheduler.parallelism";
+
+	private int processorCount;
+
+	private boolean orderedExecution = true;
+
+	private int executorCoreThreads = 0;
+
+	private int executorMaxThreads = 16;
+
+	private int executorKeepAlive = 30;
+
+	private int executorQueueThreshold = 0;
+
+	private String executorThreadName = "xmpp-executor";
+
+	private boolean virtualThreads;
+
+	private int virtualMaxThreads = 10000;
+
+	private boolean virtualThreadsActive;
+
+	private String carrierThreads;
+
+	private boolean mailboxes;
+
+	private int mailboxThreads;
+
+	private int mailboxThroughput = 16;
+
+	private IoEventType[] offloadedEvents = { IoEventType.EXCEPTION_CAUGHT,
+			IoEventType.MESSAGE_RECEIVED, IoEventType.MESSAGE_SENT,
+			IoEventType.SESSION_CLOSED, IoEventType.SESSION_IDLE,
+			IoEventType.SESSION_OPENED };
+
+	private SimpleIoProcessorPool<NioSession> processor;
+
+	private ExecutorFilter executorFilter;
+
+	private ExecutorService executor;
+
+	private MailboxScheduler mailboxScheduler;
+
+	private final List<NioSocketAcceptor> acceptors = new ArrayList<NioSocketAcceptor>();
+
+	/**
+	 * Sets the number of I/O processor threads, or 0 for one per core plus
+	 * one.
+	 */
+	public void setProcessorCount(int processorCount) {
+		this.processorCount = processorCount;
+	}
+
+	/**
+	 * Sets whether the events of a session run one at a time and in order.
+	 * The stanza handlers rely on it; an unordered executor is only safe
+	 * for a handler that does.
+	 */
+	public void setOrderedExecution(boolean orderedExecution) {
+		this.orderedExecution = orderedExecution;
+	}
+
+	public void setExecutorCoreThreads(int executorCoreThreads) {
+		this.executorCoreThreads = executorCoreThreads;
+	}
+
+	public void setExecutorMaxThreads(int executorMaxThreads) {
+		this.executorMaxThreads = executorMaxThreads;
+	}
+
+	/**
+	 * Sets the seconds an idle executor thread above the core size is kept.
+	 */
+	public void setExecutorKeepAlive(int executorKeepAlive) {
+		this.executorKeepAlive = executorKeepAlive;
+	}
+
+	/**
+	 * Sets the bytes of events the executor may queue before the I/O
+	 * processors wait for it, or 0 for an unbounded queue.
+	 */
+	public void setExecutorQueueThreshold(int executorQueueThreshold) {
+		this.executorQueueThreshold = executorQueueThreshold;
+	}
+
+	public void setExecutorThreadName(String executorThreadName) {
+		this.executorThreadName = executorThreadName;
+	}
+
+	/**
+	 * Sets whether the executor runs the events on virtual threads, so that
+	 * a handler blocking on the database parks its thread instead of holding
+	 * one of a few platform threads. The events of a session still run in
+	 * order. Needs Java 21 or later; older runtimes use platform threads.
+	 * <p>
+	 * The virtual threads run on one carrier thread per core. To change it,
+	 * start the JVM with <tt>-Djdk.virtualThreadScheduler.parallelism</tt>:
+	 * the JDK reads the property once, when the first virtual thread of the
+	 * process starts. A virtual thread blocked inside a synchronized block
+	 * holds its carrier on Java 21, as the JDBC driver and the connection
+	 * pool do, so such handlers still need a carrier each.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the maximum number of virtual threads, that is of sessions whose
+	 * events run at once.
+	 */
+	public void setVirtualMaxThreads(int virtualMaxThreads) {
+		this.virtualMaxThreads = virtualMaxThreads;
+	}
+
+	/**
+	 * Sets whether the events of every session go through a
+	 * {@link SessionMailbox} run by a work-stealing pool, in place of the
+	 * thread pool executor. The deliveries to the session can then share the
+	 * mailbox. The queue threshold and the virtual threads do not apply.
+	 */
+	public void setMailboxes(boolean mailboxes) {
+		this.mailboxes = mailboxes;
+	}
+
+	/**
+	 * Sets the number of threads running the mailboxes, or 0 for one per
+	 * core.
+	 */
+	public void setMailboxThreads(int mailboxThreads) {
+		this.mailboxThreads = mailboxThreads;
+	}
+
+	/**
+	 * Sets the number of tasks a mailbox runs before giving its thread to
+	 * another mailbox.
+	 */
+	public void setMailboxThroughput(int mailboxThroughput) {
+		this.mailboxThroughput = mailboxThroughput;
+	}
+
+	/**
+	 * Sets the events run by the executor rather than by the I/O processors,
+	 * by their <tt>IoEventType</tt> names.
+	 */
+	public void setOffloadedEvents(String[] offloadedEvents) {
+		this.offloadedEvents = new IoEventType[offloadedEvents.length];
+		for (int i = 0; i < offloadedEvents.length; i++) {
+			this.offloadedEvents[i] = IoEventType.valueOf(offloadedEvents[i]
+					.trim());
+		}
+	}
+
+	/**
+	 * Creates an acceptor served by the shared I/O processors.
+	 *
+	 * @return the acceptor
+	 */
+	public synchronized NioSocketAcceptor createAcceptor() {
+		if (processor == null) {
+			int count = processorCount > 0 ? processorCount : Runtime
+					.getRuntime().availableProcessors() + 1;
+			processor = new SimpleIoProcessorPool<NioSession>(
+					NioProcessor.class, count);
+			processorCount = count;
+		}
+		NioSocketAcceptor acceptor = new NioSocketAcceptor(processor);
+		acceptors.add(acceptor);
+		return acceptor;
+	}
+
+	/**
+	 * Returns the executor filter of the client connections, created on the
+	 * first call.
+	 *
+	 * @return the executor filter
+	 */
+	public synchronized ExecutorFilter getExecutorFilter() {
+		if (executorFilter == null) {
+			if (mailboxes) {
+				mailboxScheduler = new MailboxScheduler(mailboxThreads,
+						mailboxThroughput, executorThreadName);
+				executorFilter = new ExecutorFilter(mailboxScheduler,
+						offloadedEvents);
+				return executorFilter;
+			}
+			ThreadFactory threadFactory = null;
+			int maxThreads = executorMaxThreads;
+			if (virtualThreads) {
+				threadFactory = newVirtualThreadFactory();
+				if (threadFactory != null) {
+					maxThreads = virtualMaxThreads;
+					virtualThreadsActive = true;
+					String parallelism = System.getProperty(PARALLELISM);
+					carrierThreads = parallelism != null ? parallelism + " ("
+							+ PARALLELISM + ")" : Runtime.getRuntime()
+							.availableProcessors()
+							+ " (one per core)";
+				} else {
+					log.warn("Virtual threads need Java 21 or later,"
+							+ " using platform threads");
+				}
+			}
+			if (threadFactory == null) {
+				threadFactory = new NamedThreadFactory(executorThreadName);
+			}
+			IoEventQueueHandler queueHandler = executorQueueThreshold > 0 ? new IoEventQueueThrottle(
+					executorQueueThreshold)
+					: IoEventQueueHandler.NOOP;
+			if (orderedExecution) {
+				executor = new OrderedThreadPoolExecutor(executorCoreThreads,
+						maxThreads, executorKeepAlive, TimeUnit.SECONDS,
+						threadFactory, queueHandler);
+			} else {
+				log.warn("The events of a session may run concurrently,"
+						+ " out of order");
+				executor = new UnorderedThreadPoolExecutor(executorCoreThreads,
+						maxThreads, executorKeepAlive, TimeUnit.SECONDS,
+						threadFactory, queueHandler);
+			}
+			executorFilter = new ExecutorFilter(executor, offloadedEvents);
+		}
+		return executorFilter;
+	}
+
+	/**
+	 * Returns a factory of named virtual threads, or null if the runtime has
+	 * none. Looked up by reflection to build on older Java versions.
+	 */
+	private ThreadFactory newVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+					.getMethod("name", String.class, long.class).invoke(
+							builder, executorThreadName + "-", 1L);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the I/O processors and the executor, once the acceptors are
+	 * unbound.
+	 */
+	public synchronized void dispose() {
+		for (NioSocketAcceptor acceptor : acceptors) {
+			acceptor.dispose();
+		}
+		if (processor != null) {
+			processor.dispose();
+		}
+		// The filter does not stop an executor it was given
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (mailboxScheduler != null) {
+			mailboxScheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Returns a description of the effective topology.
+	 *
+	 * @return the topology report
+	 */
+	public synchronized String getReport() {
+		StringBuilder sb = new StringBuilder("Network topology:");
+		sb.append("\n  cores: ").append(
+				Runtime.getRuntime().availableProcessors());
+		sb.append("\n  I/O processors: ").append(processorCount).append(
+				", shared by");
+		for (NioSocketAcceptor acceptor : acceptors) {
+			sb.append(" ").append(
+					acceptor.isActive() ? acceptor.getLocalAddress()
+							: acceptor.getDefaultLocalAddress());
+		}
+		if (mailboxScheduler != null) {
+			sb.append("\n  executor: session mailboxes on ").append(
+					mailboxScheduler.getThreads()).append(
+					" work-stealing threads named ").append(
+					executorThreadName).append("-N, ").append(
+					mailboxScheduler.getThroughput()).append(" tasks per turn");
+		} else {
+			sb.append("\n  executor: ").append(
+					orderedExecution ? "ordered per session" : "unordered");
+			if (virtualThreadsActive) {
+				sb.append(", up to ").append(virtualMaxThreads).append(
+						" virtual threads named ").append(executorThreadName)
+						.append("-N, carrier threads ").append(carrierThreads);
+			} else {
+				sb.append(", ").append(executorCoreThreads).append("-")
+						.append(executorMaxThreads).append(" threads named ")
+						.append(executorThreadName).append("-N");
+			}
+			sb.append(", keep-alive ").append(executorKeepAlive).append(" s");
+			sb.append(", queue ").append(
+					executorQueueThreshold > 0 ? "throttled at "
+							+ executorQueueThreshold + " bytes" : "unbounded");
+		}
+		sb.append("\n  offloaded events:");
+		for (IoEventType event : offloadedEvents) {
+			sb.append(" ").append(event);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String name;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.net;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * The tasks of a session, run one at a time and in the order they were
+ * posted. The inbound events of the session and the deliveries to it share
+ * the mailbox, so the state of the session is only touched by one thread at
+ * a time.
+ * <p>
+ * Any thread may post; the queue is a lock-free linked list on which the
+ * posting threads only swap the tail. A mailbox with tasks is scheduled once
+ * on a {@link MailboxScheduler}, and gives its thread back after a few tasks
+ * so that a busy session does not hold up the others.
+ */
+public class SessionMailbox implements Runnable {
+
+	private static final Log log = LogFactory.getLog(SessionMailbox.class);
+
+	private static final String MAILBOX = "MAILBOX";
+
+	/** The mailbox whose tasks the current thread is running */
+	private static final ThreadLocal<SessionMailbox> current = new ThreadLocal<SessionMailbox>();
+
+	private final MailboxScheduler scheduler;
+
+	private final int throughput;
+
+	/** The last node, swapped by the posting threads */
+	private final AtomicReference<Node> tail;
+
+	/** The node before the next task, only read by the running thread */
+	private Node head;
+
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	SessionMailbox(MailboxScheduler scheduler, int throughput) {
+		this.scheduler = scheduler;
+		this.throughput = throughput;
+		this.head = new Node(null);
+		this.tail = new AtomicReference<Node>(head);
+	}
+
+	/**
+	 * Returns the mailbox of a session, or null if the events of the session
+	 * do not go through a mailbox.
+	 *
+	 * @param session
+	 *            the session
+	 * @return the mailbox, or null
+	 */
+	public static SessionMailbox get(IoSession session) {
+		return (SessionMailbox) session.getAttribute(MAILBOX);
+	}
+
+	static SessionMailbox getOrCreate(IoSession session,
+			MailboxScheduler scheduler, int throughput) {
+		SessionMailbox mailbox = get(session);
+		if (mailbox == null) {
+			SessionMailbox created = new SessionMailbox(scheduler, throughput);
+			mailbox = (SessionMailbox) session.setAttributeIfAbsent(MAILBOX,
+					created);
+			if (mailbox == null) {
+				mailbox = created;
+			}
+		}
+		return mailbox;
+	}
+
+	/**
+	 * Adds a task to run after the tasks already posted.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	public void post(Runnable task) {
+		Node node = new Node(task);
+		tail.getAndSet(node).next = node;
+		if (scheduled.compareAndSet(false, true)) {
+			scheduler.schedule(this);
+		}
+	}
+
+	/**
+	 * Returns true if no task is waiting.
+	 *
+	 * @return true if the mailbox is empty, false otherwise
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+	/**
+	 * Returns true if the calling thread is running a task of this mailbox.
+	 * A task posted from there would only run after the current one, behind
+	 * what the current task writes directly.
+	 *
+	 * @return true if called from a task of this mailbox, false otherwise
+	 */
+	public boolean isCurrent() {
+		return current.get() == this;
+	}
+
+	public void run() {
+		SessionMailbox previous = current.get();
+		current.set(this);
+		try {
+			drain();
+		} finally {
+			current.set(previous);
+		}
+		scheduled.set(false);
+		// A task posted while the flag was set did not schedule the mailbox
+		if (!isEmpty() && scheduled.compareAndSet(false, true)) {
+			scheduler.schedule(this);
+		}
+	}
+
+	private void drain() {
+		for (int i = 0; i < throughput; i++) {
+			Node next = head.next;
+			if (next == null) {
+				// Empty, or a task being linked
+				break;
+			}
+			head = next;
+			Runnable task = next.task;
+			next.task = null;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Mailbox task failed", t);
+			}
+		}
+	}
+
+	private static class Node {
+
+		volatile Node next;
+
+		Runnable task;
+
+		Node(Runnable task) {
+			this.task = task;
+		}
+	}
+
+}
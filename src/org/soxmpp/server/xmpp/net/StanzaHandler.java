@@ -18,7 +18,12 @@
 package org.soxmpp.server.xmpp.net;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.CharArrayReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.util.Random;
 
 import org.apache.commons.logging.Log;
@@ -27,6 +32,9 @@ import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.net.MXParser;
 import org.soxmpp.server.util.Config;
+import org.soxmpp.server.xmpp.codec.LazyElement;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
+import org.soxmpp.server.xmpp.codec.StreamParser;
 import org.soxmpp.server.xmpp.router.PacketRouter;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
@@ -49,6 +57,33 @@ public class StanzaHandler {
 
 	private static final Log log = LogFactory.getLog(StanzaHandler.class);
 
+	private static final StanzaTemplate TLS_FAILURE = new StanzaTemplate(
+			"<failure xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+
+	private static final String COMPRESS_NAMESPACE = "http://jabber.org/protocol/compress";
+
+	private static final StanzaTemplate COMPRESSION_SETUP_FAILED = new StanzaTemplate(
+			"<failure xmlns=\"" + COMPRESS_NAMESPACE
+					+ "\"><setup-failed/></failure>");
+
+	private static final StanzaTemplate COMPRESSION_UNSUPPORTED_METHOD = new StanzaTemplate(
+			"<failure xmlns=\"" + COMPRESS_NAMESPACE
+					+ "\"><unsupported-method/></failure>");
+
+	private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return Charset.forName("UTF-8").newDecoder();
+		}
+	};
+
+	private static final ThreadLocal<CharBuffer> CHARS = new ThreadLocal<CharBuffer>() {
+		@Override
+		protected CharBuffer initialValue() {
+			return CharBuffer.allocate(1024);
+		}
+	};
+
 	protected Connection connection;
 
 	protected Session session;
@@ -59,6 +94,8 @@ public class StanzaHandler {
 
 	private boolean startedTLS = false;
 
+	private boolean startedCompression = false;
+
 	private PacketRouter router;
 
 	/**
@@ -77,18 +114,37 @@ public class StanzaHandler {
 	}
 
 	/**
-	 * Process the received stanza using the given XMPP packet reader.
+	 * Decodes the stream tag into a buffer reused by the thread. The stream
+	 * parser has already checked the bytes are valid UTF-8.
+	 */
+	private static Reader decode(byte[] stanza) {
+		CharBuffer chars = CHARS.get();
+		if (chars.capacity() < stanza.length) {
+			chars = CharBuffer.allocate(stanza.length);
+			CHARS.set(chars);
+		}
+		chars.clear();
+		CharsetDecoder decoder = DECODER.get();
+		decoder.reset();
+		decoder.decode(ByteBuffer.wrap(stanza), chars, true);
+		decoder.flush(chars);
+		return new CharArrayReader(chars.array(), 0, chars.position());
+	}
+
+	/**
+	 * Process the received stream tag using the given XMPP packet reader.
 	 * 
 	 * @param stanza
-	 *            the received statza
+	 *            the UTF-8 bytes of the received stream tag
 	 * @param reader
 	 *            the XMPP packet reader
 	 * @throws Exception
 	 *             if the XML stream is not valid.
 	 */
-	public void process(String stanza, XMPPPacketReader reader)
+	public void process(byte[] stanza, XMPPPacketReader reader)
 			throws Exception {
-		boolean initialStream = stanza.startsWith("<stream:stream");
+		boolean initialStream = StreamParser.startsWith(stanza,
+				"<stream:stream");
 		if (!sessionCreated || initialStream) {
 			if (!initialStream) {
 				return; // Ignore <?xml version="1.0"?>
@@ -96,28 +152,35 @@ public class StanzaHandler {
 			if (!sessionCreated) {
 				sessionCreated = true;
 				MXParser parser = reader.getXPPParser();
-				parser.setInput(new StringReader(stanza));
+				parser.setInput(decode(stanza));
 				createSession(parser);
 			} else if (startedTLS) {
 				startedTLS = false;
-				tlsNegotiated();
+				streamRestarted();
+			} else if (startedCompression) {
+				startedCompression = false;
+				streamRestarted();
 			}
 			return;
 		}
 
 		// If end of stream was requested
-		if (stanza.equals("</stream:stream>")) {
+		if (StreamParser.isStreamEnd(stanza)) {
 			session.close();
-			return;
-		}
-		// Ignore <?xml version="1.0"?>
-		if (stanza.startsWith("<?xml")) {
-			return;
 		}
-		// Create DOM object
-		Element doc = reader.read(new StringReader(stanza)).getRootElement();
-		if (doc == null) {
-			return;
+	}
+
+	/**
+	 * Process a received stanza already parsed into its DOM element.
+	 * 
+	 * @param doc
+	 *            the element of the received stanza
+	 * @throws Exception
+	 *             if the stanza is not valid.
+	 */
+	public void process(Element doc) throws Exception {
+		if (!sessionCreated) {
+			return; // Ignore stanzas before the stream is opened
 		}
 
 		String tag = doc.getName();
@@ -128,6 +191,10 @@ public class StanzaHandler {
 				connection.close();
 				session = null;
 			}
+		} else if ("compress".equals(tag)) {
+			if (negotiateCompression(doc)) {
+				startedCompression = true;
+			}
 		} else if ("message".equals(tag)) {
 			processMessage(doc);
 		} else if ("presence".equals(tag)) {
@@ -230,8 +297,8 @@ public class StanzaHandler {
 	}
 
 	private IQ getIQ(Element doc) {
-		Element query = doc.element("query");
-		if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI())) {
+		if ("query".equals(LazyElement.childName(doc))
+				&& "jabber:iq:roster".equals(LazyElement.childNamespace(doc))) {
 			return new Roster(doc);
 		} else {
 			return new IQ(doc, false);
@@ -270,7 +337,8 @@ public class StanzaHandler {
 	}
 
 	private boolean negotiateTLS() {
-		if (connection.getTlsPolicy() == Connection.TLSPolicy.disabled) {
+		if (connection.getTlsPolicy() == Connection.TLSPolicy.disabled
+				|| connection.isSecure()) {
 			// Set the not_authorized error
 			StreamError error = new StreamError(
 					StreamError.Condition.not_authorized);
@@ -285,8 +353,7 @@ public class StanzaHandler {
 			startTLS();
 		} catch (Exception e) {
 			log.error("Error while negotiating TLS", e);
-			connection
-					.deliverRawText("<failure xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\">");
+			connection.deliverTemplate(TLS_FAILURE);
 			connection.close();
 			return false;
 		}
@@ -304,31 +371,35 @@ public class StanzaHandler {
 		connection.startTLS(policy);
 	}
 
-	private void tlsNegotiated() {
+	private boolean negotiateCompression(Element doc) {
+		if (connection.getCompressionPolicy() == Connection.CompressionPolicy.disabled
+				|| connection.isCompressed()
+				|| !COMPRESS_NAMESPACE.equals(doc.getNamespaceURI())) {
+			connection.deliverTemplate(COMPRESSION_SETUP_FAILED);
+			return false;
+		}
+		String method = doc.elementText("method");
+		if (!"zlib".equals(method)) {
+			log.debug("Unsupported compression method: " + method);
+			connection.deliverTemplate(method == null ? COMPRESSION_SETUP_FAILED
+					: COMPRESSION_UNSUPPORTED_METHOD);
+			return false;
+		}
+		if (!connection.startCompression()) {
+			connection.deliverTemplate(COMPRESSION_SETUP_FAILED);
+			return false;
+		}
+		return true;
+	}
+
+	private void streamRestarted() {
 		// Offer stream features including SASL Mechanisms
-		StringBuilder sb = new StringBuilder(620);
-		sb.append("<?xml version='1.0' encoding='UTF-8'?>");
-		sb.append("<stream:stream ");
-		sb.append("xmlns:stream=\"http://etherx.jabber.org/streams\" ");
-		sb.append("xmlns=\"jabber:client\" from=\"");
-		sb.append(serverName);
-		sb.append("\" id=\"");
-		sb.append(session.getStreamID());
-		sb.append("\" xml:lang=\"");
-		sb.append(connection.getLanguage());
-		sb.append("\" version=\"");
-		sb.append(Session.MAJOR_VERSION).append(".")
-				.append(Session.MINOR_VERSION);
-		sb.append("\">");
-		sb.append("<stream:features>");
+		connection.deliverTemplate(ClientSession.STREAM_HEADER, serverName,
+				session.getStreamID().toString(), connection.getLanguage());
 		// Include specific features such as auth and register for client
 		// sessions
-		String specificFeatures = session.getAvailableStreamFeatures();
-		if (specificFeatures != null) {
-			sb.append(specificFeatures);
-		}
-		sb.append("</stream:features>");
-		connection.deliverRawText(sb.toString());
+		connection.deliverTemplate(session
+				.getStreamFeatures(Connection.TLSPolicy.disabled));
 	}
 
 	private String randomString(int length) {
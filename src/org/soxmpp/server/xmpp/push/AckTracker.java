@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.soxmpp.server.util.HashedWheelTimer;
+import org.soxmpp.server.xmpp.router.IQResultListener;
+import org.soxmpp.server.xmpp.session.ClientSession;
+import org.soxmpp.server.xmpp.session.SessionManager;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+/**
+ * Tracks the notifications waiting for an IQ result from their recipient and
+ * delivers them again when no result arrives in time.
+ * <p>
+ * Every delivery gets an id from a monotonic counter, which is sent as the
+ * stanza id. The deliveries of a notification to a group of recipients take
+ * consecutive ids and are tracked as one batch, which only needs one bit per
+ * recipient besides the shared recipient array. The retries of a batch are
+ * driven by a {@link HashedWheelTimer}, with a delay multiplied by the
+ * backoff factor after every attempt. The timer only queues a retry; the
+ * deliveries are sent again by the dispatcher, a shard of recipients per
+ * task. Deliveries still not acknowledged after
+ * the last retry are moved to the offline store.
+ * <p>
+ * A notification sent to a single user supersedes the delivery in flight to
+ * that user with the same collapse key, which is then no longer retried.
+ */
+public class AckTracker implements IQResultListener {
+
+	private static final Log log = LogFactory.getLog(AckTracker.class);
+
+	private long timeout = 30000;
+
+	private int maxRetries = 3;
+
+	private int backoffMultiplier = 2;
+
+	private long maxTimeout = 600000;
+
+	private long tickDuration = 100;
+
+	private int ticksPerWheel = 512;
+
+	private boolean storeExpired = true;
+
+	private int shardSize = 1000;
+
+	private SessionManager sessionManager;
+
+	private NotificationDispatcher dispatcher;
+
+	private OfflineStore offlineStore;
+
+	private HashedWheelTimer timer;
+
+	private final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+
+	private final ConcurrentSkipListMap<Long, Batch> batches = new ConcurrentSkipListMap<Long, Batch>();
+
+	/**
+	 * The latest single-user delivery for every user and collapse key.
+	 */
+	private final ConcurrentHashMap<String, Long> collapsed = new ConcurrentHashMap<String, Long>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong acked = new AtomicLong();
+
+	private final AtomicLong retried = new AtomicLong();
+
+	private final AtomicLong expired = new AtomicLong();
+
+	private final AtomicLong superseded = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 */
+	public AckTracker() {
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public void setBackoffMultiplier(int backoffMultiplier) {
+		this.backoffMultiplier = backoffMultiplier;
+	}
+
+	public void setMaxTimeout(long maxTimeout) {
+		this.maxTimeout = maxTimeout;
+	}
+
+	public void setTickDuration(long tickDuration) {
+		this.tickDuration = tickDuration;
+	}
+
+	public void setTicksPerWheel(int ticksPerWheel) {
+		this.ticksPerWheel = ticksPerWheel;
+	}
+
+	public void setStoreExpired(boolean storeExpired) {
+		this.storeExpired = storeExpired;
+	}
+
+	/**
+	 * Sets the number of recipients of a batch sent again by one dispatcher
+	 * task.
+	 */
+	public void setShardSize(int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	public void setSessionManager(SessionManager sessionManager) {
+		this.sessionManager = sessionManager;
+	}
+
+	public void setDispatcher(NotificationDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public void setOfflineStore(OfflineStore offlineStore) {
+		this.offlineStore = offlineStore;
+	}
+
+	/**
+	 * Starts the retry timer.
+	 */
+	public synchronized void start() {
+		if (timer == null) {
+			timer = new HashedWheelTimer("ack-timer", tickDuration,
+					TimeUnit.MILLISECONDS, ticksPerWheel);
+			timer.start();
+			log.info("Ack tracker started: timeout=" + timeout
+					+ ", maxRetries=" + maxRetries + ", backoffMultiplier="
+					+ backoffMultiplier);
+		}
+	}
+
+	/**
+	 * Stops the retry timer. The deliveries in flight are forgotten.
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.stop();
+			timer = null;
+		}
+		batches.clear();
+		collapsed.clear();
+		inFlight.set(0);
+	}
+
+	/**
+	 * Returns the next id of the monotonic counter.
+	 *
+	 * @return a new id
+	 */
+	long nextId() {
+		return ids.incrementAndGet();
+	}
+
+	/**
+	 * Starts tracking the deliveries of a notification. The recipient at
+	 * index <tt>i</tt> must be sent the delivery id <tt>base + i</tt>, where
+	 * <tt>base</tt> is the returned id.
+	 *
+	 * @param notification
+	 *            the notification
+	 * @param recipients
+	 *            the recipient sessions
+	 * @param priority
+	 *            the dispatch priority of the retries
+	 * @return the delivery id of the first recipient
+	 */
+	long track(EncodedNotification notification, ClientSession[] recipients,
+			NotificationDispatcher.Priority priority) {
+		long base = ids.getAndAdd(recipients.length) + 1;
+		if (recipients.length == 0) {
+			return base;
+		}
+		Batch batch = new Batch(notification, recipients, base, priority);
+		if (recipients.length == 1 && recipients[0] != null
+				&& notification.getCollapseKey() != null) {
+			batch.collapseId = recipients[0].getAddress().toBareJID() + "/"
+					+ notification.getCollapseKey();
+		}
+		batches.put(base, batch);
+		inFlight.addAndGet(recipients.length);
+		if (batch.collapseId != null) {
+			Long previous = collapsed.put(batch.collapseId, base);
+			if (previous != null) {
+				Batch old = batches.get(previous);
+				if (old != null && old.clear(0)) {
+					superseded.incrementAndGet();
+				}
+			}
+		}
+		schedule(batch, timeout);
+		return base;
+	}
+
+	/**
+	 * Stops tracking a delivery that will not be answered, for instance
+	 * because the recipient is not available.
+	 *
+	 * @param deliveryId
+	 *            the delivery id
+	 */
+	void skip(long deliveryId) {
+		Batch batch = find(deliveryId);
+		if (batch != null) {
+			batch.clear((int) (deliveryId - batch.base));
+		}
+	}
+
+	/**
+	 * Stops tracking every delivery of a batch.
+	 *
+	 * @param base
+	 *            the delivery id of the first recipient
+	 */
+	void cancel(long base) {
+		Batch batch = batches.get(base);
+		if (batch != null) {
+			for (int i = 0; i < batch.recipients.length; i++) {
+				batch.clear(i);
+			}
+		}
+	}
+
+	public void receivedAnswer(IQ packet) {
+		long deliveryId = parseId(packet.getID());
+		if (deliveryId < 0) {
+			return;
+		}
+		Batch batch = find(deliveryId);
+		if (batch == null) {
+			return;
+		}
+		int index = (int) (deliveryId - batch.base);
+		ClientSession recipient = batch.recipients[index];
+		JID from = packet.getFrom();
+		if (from != null && recipient != null
+				&& !from.toBareJID().equals(recipient.getAddress().toBareJID())) {
+			log.debug("Ignoring answer from " + from + " to delivery "
+					+ packet.getID());
+			return;
+		}
+		if (batch.clear(index)) {
+			acked.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of deliveries waiting for an answer.
+	 *
+	 * @return the number of deliveries in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of deliveries acknowledged by their recipient.
+	 *
+	 * @return the number of acknowledged deliveries
+	 */
+	public long getAcked() {
+		return acked.get();
+	}
+
+	/**
+	 * Returns the number of deliveries sent again.
+	 *
+	 * @return the number of retries
+	 */
+	public long getRetried() {
+		return retried.get();
+	}
+
+	/**
+	 * Returns the number of deliveries given up after the last retry.
+	 *
+	 * @return the number of expired deliveries
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Returns the number of deliveries superseded by a newer notification
+	 * with the same collapse key.
+	 *
+	 * @return the number of superseded deliveries
+	 */
+	public long getSuperseded() {
+		return superseded.get();
+	}
+
+	/**
+	 * Formats a delivery id as a stanza id.
+	 */
+	static byte[] formatId(long deliveryId) {
+		String id = Long.toHexString(deliveryId);
+		byte[] bytes = new byte[id.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) id.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Parses a stanza id into a delivery id, or returns -1 if the stanza id
+	 * was not sent by this tracker.
+	 */
+	static long parseId(String id) {
+		if (id == null || id.length() == 0 || id.length() > 16) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < id.length(); i++) {
+			int digit = Character.digit(id.charAt(i), 16);
+			if (digit < 0) {
+				return -1;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private Batch find(long deliveryId) {
+		Map.Entry<Long, Batch> entry = batches.floorEntry(deliveryId);
+		if (entry == null) {
+			return null;
+		}
+		Batch batch = entry.getValue();
+		if (deliveryId - batch.base >= batch.recipients.length) {
+			return null;
+		}
+		return batch;
+	}
+
+	private void schedule(final Batch batch, long delay) {
+		HashedWheelTimer timer = this.timer;
+		if (timer == null) {
+			start();
+			timer = this.timer;
+		}
+		batch.timeout = timer.newTimeout(new Runnable() {
+			public void run() {
+				try {
+					dispatcher.dispatch(new Runnable() {
+						public void run() {
+							retry(batch);
+						}
+					}, batch.priority);
+				} catch (RejectedExecutionException e) {
+					// Try again later without counting an attempt
+					schedule(batch, delayOf(batch.attempts));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private long delayOf(int attempt) {
+		long delay = timeout;
+		for (int i = 0; i < attempt && delay < maxTimeout; i++) {
+			delay *= backoffMultiplier;
+		}
+		return Math.min(delay, maxTimeout);
+	}
+
+	private void retry(final Batch batch) {
+		if (batch.remaining.get() == 0) {
+			return;
+		}
+		int attempt = ++batch.attempts;
+		if (attempt > maxRetries) {
+			expire(batch);
+			return;
+		}
+		// A large batch is sent again by several dispatcher tasks
+		List<Runnable> slices = new ArrayList<Runnable>();
+		for (int i = shardSize; i < batch.recipients.length; i += shardSize) {
+			final int from = i;
+			final int to = Math.min(from + shardSize, batch.recipients.length);
+			slices.add(new Runnable() {
+				public void run() {
+					retry(batch, from, to);
+				}
+			});
+		}
+		if (!slices.isEmpty()) {
+			try {
+				dispatcher.dispatch(slices, batch.priority);
+			} catch (RejectedExecutionException e) {
+				// The queue is full, send them from this task
+				for (Runnable slice : slices) {
+					slice.run();
+				}
+			}
+		}
+		retry(batch, 0, Math.min(shardSize, batch.recipients.length));
+		schedule(batch, delayOf(attempt));
+	}
+
+	private void retry(Batch batch, int from, int to) {
+		for (int i = from; i < to; i++) {
+			ClientSession recipient = batch.recipients[i];
+			if (recipient == null || batch.isCleared(i)) {
+				continue;
+			}
+			// The recipient may have reconnected with a new session
+			ClientSession session = sessionManager.getSession(recipient
+					.getAddress());
+			if (session != null && session.getPresence().isAvailable()
+					&& !session.isCongested()) {
+				batch.notification.post(session, batch.base + i);
+				retried.incrementAndGet();
+			}
+		}
+	}
+
+	private void expire(Batch batch) {
+		for (int i = 0; i < batch.recipients.length; i++) {
+			if (!batch.clear(i)) {
+				continue;
+			}
+			expired.incrementAndGet();
+			ClientSession recipient = batch.recipients[i];
+			if (storeExpired && offlineStore != null && recipient != null) {
+				String username = recipient.getAddress().getNode();
+				try {
+					offlineStore.store(username, batch.notification);
+				} catch (IOException e) {
+					log.error("Could not store expired notification "
+							+ batch.notification.getID() + " for " + username,
+							e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The deliveries of a notification to a group of recipients.
+	 */
+	private class Batch {
+
+		private final EncodedNotification notification;
+
+		private final ClientSession[] recipients;
+
+		private final long base;
+
+		private final NotificationDispatcher.Priority priority;
+
+		/**
+		 * One bit per recipient, set once the delivery no longer needs to be
+		 * tracked.
+		 */
+		private final AtomicLongArray cleared;
+
+		private final AtomicInteger remaining;
+
+		private String collapseId;
+
+		private volatile int attempts;
+
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		Batch(EncodedNotification notification, ClientSession[] recipients,
+				long base, NotificationDispatcher.Priority priority) {
+			this.notification = notification;
+			this.recipients = recipients;
+			this.base = base;
+			this.priority = priority;
+			this.cleared = new AtomicLongArray((recipients.length + 63) >>> 6);
+			this.remaining = new AtomicInteger(recipients.length);
+		}
+
+		boolean isCleared(int index) {
+			return (cleared.get(index >>> 6) & (1L << index)) != 0;
+		}
+
+		/**
+		 * Stops tracking a delivery, and the whole batch once no delivery is
+		 * left. Returns false if the delivery was no longer tracked.
+		 */
+		boolean clear(int index) {
+			int word = index >>> 6;
+			long bit = 1L << index;
+			for (;;) {
+				long bits = cleared.get(word);
+				if ((bits & bit) != 0) {
+					return false;
+				}
+				if (cleared.compareAndSet(word, bits, bits | bit)) {
+					break;
+				}
+			}
+			inFlight.decrementAndGet();
+			if (remaining.decrementAndGet() == 0) {
+				batches.remove(base);
+				if (collapseId != null) {
+					collapsed.remove(collapseId, base);
+				}
+				HashedWheelTimer.Timeout timeout = this.timeout;
+				if (timeout != null) {
+					timeout.cancel();
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.soxmpp.server.util.TokenBucket;
+
+/**
+ * A handle on a notification being fanned out to many sessions. The job is
+ * split into shards that are delivered in parallel; the handle reports the
+ * overall progress and the latency and error count of every shard.
+ * <p>
+ * A paced job delivers its shards in small slices at a rate set by a
+ * {@link TokenBucket}; the rate can be changed while the job runs.
+ */
+public class BroadcastJob {
+
+	private final long id;
+
+	private final String notificationId;
+
+	private final int total;
+
+	private final int shardCount;
+
+	private final long startTime = System.currentTimeMillis();
+
+	private volatile long endTime;
+
+	private final AtomicInteger delivered = new AtomicInteger();
+
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	private final AtomicInteger offline = new AtomicInteger();
+
+	private final AtomicInteger errors = new AtomicInteger();
+
+	private final AtomicLongArray shardLatency;
+
+	private final AtomicIntegerArray shardErrors;
+
+	private final AtomicLongArray shardStart;
+
+	private final AtomicIntegerArray shardPending;
+
+	private volatile TokenBucket pacer;
+
+	private final CountDownLatch pendingShards;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id
+	 *            the job id
+	 * @param notificationId
+	 *            the stanza id of the notification
+	 * @param total
+	 *            the number of sessions to deliver to
+	 * @param shardSize
+	 *            the number of sessions in a shard
+	 */
+	BroadcastJob(long id, String notificationId, int total, int shardSize) {
+		this.id = id;
+		this.notificationId = notificationId;
+		this.total = total;
+		this.shardCount = (total + shardSize - 1) / shardSize;
+		this.shardLatency = new AtomicLongArray(shardCount);
+		this.shardErrors = new AtomicIntegerArray(shardCount);
+		this.shardStart = new AtomicLongArray(shardCount);
+		this.shardPending = new AtomicIntegerArray(shardCount);
+		this.pendingShards = new CountDownLatch(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shardLatency.set(i, -1);
+			shardStart.set(i, -1);
+			shardPending.set(i, Math.min(shardSize, total - i * shardSize));
+		}
+		if (shardCount == 0) {
+			endTime = startTime;
+		}
+	}
+
+	void delivered() {
+		delivered.incrementAndGet();
+	}
+
+	void skipped() {
+		skipped.incrementAndGet();
+	}
+
+	void offline() {
+		offline.incrementAndGet();
+	}
+
+	void failed(int shard) {
+		errors.incrementAndGet();
+		shardErrors.incrementAndGet(shard);
+	}
+
+	void pace(TokenBucket pacer) {
+		this.pacer = pacer;
+	}
+
+	void rangeStarted(int shard) {
+		shardStart.compareAndSet(shard, -1, System.currentTimeMillis());
+	}
+
+	void rangeCompleted(int shard, int count) {
+		if (shardPending.addAndGet(shard, -count) > 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		shardLatency.set(shard, now - shardStart.get(shard));
+		pendingShards.countDown();
+		if (pendingShards.getCount() == 0) {
+			endTime = now;
+		}
+	}
+
+	/**
+	 * Returns the job id.
+	 *
+	 * @return the job id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the stanza id of the notification.
+	 *
+	 * @return the stanza id
+	 */
+	public String getNotificationId() {
+		return notificationId;
+	}
+
+	/**
+	 * Returns the number of sessions the job delivers to.
+	 *
+	 * @return the number of sessions
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the number of sessions the notification was written to.
+	 *
+	 * @return the number of delivered sessions
+	 */
+	public int getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * Returns the number of sessions skipped because they were not available.
+	 *
+	 * @return the number of skipped sessions
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the number of recipients that were offline and whose
+	 * notification was kept in the offline store.
+	 *
+	 * @return the number of offline recipients
+	 */
+	public int getOffline() {
+		return offline.get();
+	}
+
+	/**
+	 * Returns the number of sessions that failed to receive the notification.
+	 *
+	 * @return the number of errors
+	 */
+	public int getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns the fraction of the sessions that have been processed.
+	 *
+	 * @return the progress between 0 and 1
+	 */
+	public double getProgress() {
+		if (total == 0) {
+			return 1.0;
+		}
+		int processed = delivered.get() + skipped.get() + offline.get()
+				+ errors.get();
+		return (double) processed / total;
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Returns true if the job is delivered at a limited rate.
+	 *
+	 * @return true if the job is paced, false otherwise
+	 */
+	public boolean isPaced() {
+		return pacer != null;
+	}
+
+	/**
+	 * Returns the number of sessions a paced job delivers to per second, or
+	 * 0 if the job is not paced.
+	 *
+	 * @return the rate
+	 */
+	public double getRate() {
+		TokenBucket pacer = this.pacer;
+		return pacer != null ? pacer.getRate() : 0;
+	}
+
+	/**
+	 * Changes the number of sessions a paced job delivers to per second. The
+	 * new rate applies to the sessions not delivered yet.
+	 *
+	 * @param rate
+	 *            the new rate
+	 * @throws IllegalStateException
+	 *             if the job is not paced
+	 */
+	public void setRate(double rate) {
+		TokenBucket pacer = this.pacer;
+		if (pacer == null) {
+			throw new IllegalStateException("Job " + id + " is not paced");
+		}
+		pacer.setRate(rate);
+	}
+
+	/**
+	 * Returns the time a shard took to be delivered, or -1 if the shard has
+	 * not completed yet. The time of a paced shard runs from its first slice
+	 * to its last.
+	 *
+	 * @param shard
+	 *            the shard index
+	 * @return the shard latency in milliseconds
+	 */
+	public long getShardLatency(int shard) {
+		return shardLatency.get(shard);
+	}
+
+	/**
+	 * Returns the number of errors in a shard.
+	 *
+	 * @param shard
+	 *            the shard index
+	 * @return the number of errors
+	 */
+	public int getShardErrors(int shard) {
+		return shardErrors.get(shard);
+	}
+
+	/**
+	 * Returns the time the job was submitted.
+	 *
+	 * @return the start time in milliseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the time elapsed since the job was submitted, or the total
+	 * duration of the job once it is done.
+	 *
+	 * @return the elapsed time in milliseconds
+	 */
+	public long getElapsedTime() {
+		long end = endTime;
+		return (end > 0 ? end : System.currentTimeMillis()) - startTime;
+	}
+
+	/**
+	 * Returns true if every shard has completed.
+	 *
+	 * @return true if the job is done, false otherwise
+	 */
+	public boolean isDone() {
+		return pendingShards.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the job to complete.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout
+	 * @return true if the job completed, false if the timeout elapsed
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted
+	 */
+	public boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return pendingShards.await(timeout, unit);
+	}
+
+	/**
+	 * Returns the job state as a JSON object.
+	 *
+	 * @return the JSON representation of the job
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder(128 + shardCount * 32);
+		sb.append("{\"jobId\":\"").append(id).append("\"");
+		sb.append(",\"notificationId\":\"").append(notificationId).append("\"");
+		sb.append(",\"done\":").append(isDone());
+		sb.append(",\"total\":").append(total);
+		sb.append(",\"delivered\":").append(getDelivered());
+		sb.append(",\"skipped\":").append(getSkipped());
+		sb.append(",\"offline\":").append(getOffline());
+		sb.append(",\"errors\":").append(getErrors());
+		sb.append(",\"progress\":").append(
+				Math.round(getProgress() * 1000) / 1000.0);
+		sb.append(",\"elapsed\":").append(getElapsedTime());
+		if (isPaced()) {
+			sb.append(",\"rate\":").append(getRate());
+		}
+		sb.append(",\"shards\":[");
+		for (int i = 0; i < shardCount; i++) {
+			if (i > 0) {
+				sb.append(",");
+			}
+			sb.append("{\"latency\":").append(getShardLatency(i));
+			sb.append(",\"errors\":").append(getShardErrors(i)).append("}");
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the notification ids seen during a time window, so a
+ * notification sent again by a retrying backend is dropped. The window holds
+ * at most <tt>capacity</tt> ids; the oldest are forgotten first.
+ */
+class DedupeWindow {
+
+	private long window;
+
+	private int capacity;
+
+	private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param window
+	 *            the time an id is remembered, in milliseconds
+	 * @param capacity
+	 *            the maximum number of ids remembered
+	 */
+	DedupeWindow(long window, int capacity) {
+		this.window = window;
+		this.capacity = capacity;
+	}
+
+	synchronized void setWindow(long window) {
+		this.window = window;
+	}
+
+	synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Records a notification id.
+	 *
+	 * @param id
+	 *            the notification id
+	 * @return true if the id was not seen during the window, false if it is a
+	 *         duplicate
+	 */
+	synchronized boolean add(String id) {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			if (now - eldest.getValue() < window && seen.size() < capacity) {
+				break;
+			}
+			it.remove();
+		}
+		if (seen.containsKey(id)) {
+			return false;
+		}
+		seen.put(id, now);
+		return true;
+	}
+
+	/**
+	 * Forgets a notification id, so that the notification can be sent again.
+	 *
+	 * @param id
+	 *            the notification id
+	 */
+	synchronized void remove(String id) {
+		seen.remove(id);
+	}
+
+	/**
+	 * Returns the number of ids remembered.
+	 *
+	 * @return the number of ids
+	 */
+	synchronized int size() {
+		return seen.size();
+	}
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.util.XMLWriter;
+import org.soxmpp.server.xmpp.session.ClientSession;
+import org.xmpp.packet.IQ;
+
+/**
+ * A notification IQ encoded to UTF-8 once and shared by every recipient of a
+ * broadcast. Only the <tt>to</tt> attribute and the stanza <tt>id</tt>, which
+ * identifies the delivery to acknowledge, are encoded per recipient; the rest
+ * of the stanza is copied from the shared read-only bytes.
+ */
+class EncodedNotification {
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final String TO_MARKER = "@@to@@";
+
+	private static final String ID_MARKER = "@@id@@";
+
+	private final String id;
+
+	private final String collapseKey;
+
+	/**
+	 * Bytes from the start of the stanza up to the first variable attribute.
+	 */
+	private final byte[] head;
+
+	/**
+	 * Bytes between the two variable attributes.
+	 */
+	private final byte[] middle;
+
+	/**
+	 * Bytes from the end of the last variable attribute up to the end of the
+	 * stanza.
+	 */
+	private final byte[] tail;
+
+	/**
+	 * True if the id attribute comes before the to attribute.
+	 */
+	private final boolean idFirst;
+
+	/**
+	 * Constructor. Serializes the given IQ, which must not have a recipient.
+	 *
+	 * @param iq
+	 *            the notification IQ
+	 * @throws IOException
+	 *             if the IQ could not be serialized
+	 */
+	EncodedNotification(IQ iq) throws IOException {
+		this.id = iq.getID();
+		Element child = iq.getChildElement();
+		this.collapseKey = child == null ? null : child
+				.elementText("collapseKey");
+		IQ copy = iq.createCopy();
+		copy.getElement().addAttribute("to", TO_MARKER);
+		copy.getElement().addAttribute("id", ID_MARKER);
+
+		StringWriter out = new StringWriter(512);
+		XMLWriter writer = new XMLWriter(out, new OutputFormat());
+		writer.write(copy.getElement());
+		writer.flush();
+
+		String xml = out.toString();
+		int toMarker = xml.indexOf(TO_MARKER);
+		int idMarker = xml.indexOf(ID_MARKER);
+		idFirst = idMarker < toMarker;
+		String firstMarker = idFirst ? ID_MARKER : TO_MARKER;
+		String secondMarker = idFirst ? TO_MARKER : ID_MARKER;
+		int first = xml.indexOf(firstMarker);
+		int second = xml.indexOf(secondMarker);
+		head = xml.substring(0, first).getBytes(CHARSET);
+		middle = xml.substring(first + firstMarker.length(), second)
+				.getBytes(CHARSET);
+		tail = xml.substring(second + secondMarker.length()).getBytes(CHARSET);
+	}
+
+	/**
+	 * Constructor. Restores a notification encoded earlier.
+	 *
+	 * @param id
+	 *            the notification id
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @param head
+	 *            the bytes before the first variable attribute
+	 * @param middle
+	 *            the bytes between the variable attributes
+	 * @param tail
+	 *            the bytes after the last variable attribute
+	 * @param idFirst
+	 *            true if the id attribute comes before the to attribute
+	 */
+	EncodedNotification(String id, String collapseKey, byte[] head,
+			byte[] middle, byte[] tail, boolean idFirst) {
+		this.id = id;
+		this.collapseKey = collapseKey;
+		this.head = head;
+		this.middle = middle;
+		this.tail = tail;
+		this.idFirst = idFirst;
+	}
+
+	/**
+	 * Returns the id of the notification.
+	 *
+	 * @return the notification id
+	 */
+	String getID() {
+		return id;
+	}
+
+	/**
+	 * Returns the collapse key of the notification. Of the notifications
+	 * pending for a user with the same collapse key, only the newest is
+	 * delivered.
+	 *
+	 * @return the collapse key, or null
+	 */
+	String getCollapseKey() {
+		return collapseKey;
+	}
+
+	byte[] getHead() {
+		return head;
+	}
+
+	byte[] getMiddle() {
+		return middle;
+	}
+
+	byte[] getTail() {
+		return tail;
+	}
+
+	boolean isIdFirst() {
+		return idFirst;
+	}
+
+	/**
+	 * Delivers the notification to the given session.
+	 *
+	 * @param session
+	 *            the recipient session
+	 * @param deliveryId
+	 *            the id of this delivery, used as the stanza id
+	 */
+	void deliver(ClientSession session, long deliveryId) {
+		byte[][] parts = new byte[5][];
+		fill(parts, 0, encodeAddress(session), deliveryId);
+		session.deliverEncoded(parts);
+	}
+
+	/**
+	 * Delivers the notification to the given session in order with the
+	 * other stanzas of the session: in its mailbox if it has one, at once
+	 * otherwise.
+	 *
+	 * @param session
+	 *            the recipient session
+	 * @param deliveryId
+	 *            the id of this delivery, used as the stanza id
+	 */
+	void post(final ClientSession session, final long deliveryId) {
+		session.execute(new Runnable() {
+			public void run() {
+				deliver(session, deliveryId);
+			}
+		});
+	}
+
+	/**
+	 * Delivers several notifications to the given session in a single write.
+	 *
+	 * @param session
+	 *            the recipient session
+	 * @param notifications
+	 *            the notifications, in delivery order
+	 * @param deliveryIds
+	 *            the delivery id of every notification
+	 */
+	static void deliver(ClientSession session,
+			List<EncodedNotification> notifications, long[] deliveryIds) {
+		byte[] address = encodeAddress(session);
+		byte[][] parts = new byte[notifications.size() * 5][];
+		for (int i = 0; i < notifications.size(); i++) {
+			notifications.get(i).fill(parts, i * 5, address, deliveryIds[i]);
+		}
+		session.deliverEncoded(parts);
+	}
+
+	private void fill(byte[][] parts, int offset, byte[] address,
+			long deliveryId) {
+		byte[] stanzaId = AckTracker.formatId(deliveryId);
+		parts[offset] = head;
+		parts[offset + 1] = idFirst ? stanzaId : address;
+		parts[offset + 2] = middle;
+		parts[offset + 3] = idFirst ? address : stanzaId;
+		parts[offset + 4] = tail;
+	}
+
+	/**
+	 * Returns the escaped UTF-8 bytes of the session address.
+	 */
+	private static byte[] encodeAddress(ClientSession session) {
+		String address = session.getAddress().toString();
+		for (int i = 0; i < address.length(); i++) {
+			char ch = address.charAt(i);
+			if (ch == '&' || ch == '<' || ch == '>' || ch == '"'
+					|| ch == '\'') {
+				address = escape(address);
+				break;
+			}
+		}
+		try {
+			return address.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\'':
+				sb.append("&apos;");
+				break;
+			default:
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.soxmpp.server.util.HashedWheelTimer;
+import org.soxmpp.server.util.TokenBucket;
+import org.soxmpp.server.xmpp.session.ClientSession;
+
+/**
+ * Delivers a notification to many sessions in parallel. The recipients are
+ * split into contiguous shards and every shard is queued on the
+ * {@link NotificationDispatcher} with a low priority, so a broadcast returns as
+ * soon as it is submitted and never delays a single-user send.
+ * <p>
+ * A paced job is not queued at once: a timer takes the tokens added to the
+ * job's {@link TokenBucket} every <tt>paceInterval</tt> ms and queues a slice
+ * of that many recipients, so the job spreads its CPU and network load over
+ * time. The deliveries of a slice are tracked from the time it is queued.
+ * <p>
+ * The most recent jobs are kept so their progress can be queried by id.
+ */
+public class FanoutEngine {
+
+	private static final Log log = LogFactory.getLog(FanoutEngine.class);
+
+	private NotificationDispatcher dispatcher;
+
+	private AckTracker ackTracker;
+
+	private OfflineStore offlineStore;
+
+	private int shardSize = 1000;
+
+	private int maxJobs = 100;
+
+	private long paceInterval = 100;
+
+	private HashedWheelTimer timer;
+
+	private final AtomicLong jobIds = new AtomicLong();
+
+	private final Map<Long, BroadcastJob> jobs = new ConcurrentHashMap<Long, BroadcastJob>();
+
+	private final ConcurrentLinkedQueue<Long> jobOrder = new ConcurrentLinkedQueue<Long>();
+
+	/**
+	 * Constructor.
+	 */
+	public FanoutEngine() {
+	}
+
+	public void setDispatcher(NotificationDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setOfflineStore(OfflineStore offlineStore) {
+		this.offlineStore = offlineStore;
+	}
+
+	public void setShardSize(int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	public void setMaxJobs(int maxJobs) {
+		this.maxJobs = maxJobs;
+	}
+
+	public void setPaceInterval(long paceInterval) {
+		this.paceInterval = paceInterval;
+	}
+
+	/**
+	 * Starts the timer of the paced jobs.
+	 */
+	public synchronized void start() {
+		if (timer == null) {
+			timer = new HashedWheelTimer("fanout-pacer", paceInterval,
+					TimeUnit.MILLISECONDS, 64);
+			timer.start();
+		}
+	}
+
+	/**
+	 * Stops the timer of the paced jobs. The slices not queued yet are
+	 * dropped.
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.stop();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Delivers the notification to the given sessions and returns at once.
+	 *
+	 * @param notification
+	 *            the encoded notification
+	 * @param sessions
+	 *            the recipient sessions
+	 * @return the job handle
+	 * @throws RejectedExecutionException
+	 *             if the dispatcher has no room for the shards
+	 */
+	BroadcastJob submit(EncodedNotification notification,
+			Collection<ClientSession> sessions) {
+		return submit(notification, sessions, 0);
+	}
+
+	/**
+	 * Delivers the notification to the given sessions at a limited rate and
+	 * returns at once.
+	 *
+	 * @param notification
+	 *            the encoded notification
+	 * @param sessions
+	 *            the recipient sessions
+	 * @param rate
+	 *            the number of sessions to deliver to per second, or 0 to
+	 *            deliver as fast as possible
+	 * @return the job handle
+	 * @throws RejectedExecutionException
+	 *             if the dispatcher has no room for the shards
+	 */
+	BroadcastJob submit(EncodedNotification notification,
+			Collection<ClientSession> sessions, double rate) {
+		return submit(notification, sessions
+				.toArray(new ClientSession[sessions.size()]), null, rate);
+	}
+
+	/**
+	 * Delivers the notification to an explicit list of users and returns at
+	 * once. The notification of a user without an available session is kept
+	 * in the offline store.
+	 *
+	 * @param notification
+	 *            the encoded notification
+	 * @param recipients
+	 *            the session of every user, or null for a user without a
+	 *            session
+	 * @param usernames
+	 *            the usernames, in the order of the sessions, or null to skip
+	 *            the recipients without an available session
+	 * @return the job handle
+	 * @throws RejectedExecutionException
+	 *             if the dispatcher has no room for the shards
+	 */
+	BroadcastJob submit(EncodedNotification notification,
+			ClientSession[] recipients, String[] usernames) {
+		return submit(notification, recipients, usernames, 0);
+	}
+
+	private BroadcastJob submit(EncodedNotification notification,
+			ClientSession[] recipients, String[] usernames, double rate) {
+		BroadcastJob job = new BroadcastJob(jobIds.incrementAndGet(),
+				notification.getID(), recipients.length, shardSize);
+		if (rate > 0) {
+			TokenBucket bucket = new TokenBucket(rate, Math.max(1, rate
+					* paceInterval * 2 / 1000));
+			job.pace(bucket);
+			register(job);
+			schedule(new Pacer(job, notification, recipients, usernames,
+					bucket));
+			return job;
+		}
+
+		int shardCount = job.getShardCount();
+		long base = ackTracker.track(notification, recipients,
+				NotificationDispatcher.Priority.LOW);
+
+		List<Shard> shards = new ArrayList<Shard>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			int from = i * shardSize;
+			int to = Math.min(from + shardSize, recipients.length);
+			shards.add(new Shard(job, i, notification, recipients, usernames,
+					from, to, base + from));
+		}
+		register(job);
+		try {
+			dispatcher.dispatch(shards, NotificationDispatcher.Priority.LOW);
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			ackTracker.cancel(base);
+			throw e;
+		}
+		return job;
+	}
+
+	/**
+	 * Returns the job with the given id, or null if it is unknown or no
+	 * longer kept.
+	 *
+	 * @param id
+	 *            the job id
+	 * @return the job handle
+	 */
+	public BroadcastJob getJob(long id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Returns the jobs that are still kept.
+	 *
+	 * @return the recent jobs
+	 */
+	public Collection<BroadcastJob> getJobs() {
+		return jobs.values();
+	}
+
+	private void schedule(Pacer pacer) {
+		HashedWheelTimer timer = this.timer;
+		if (timer == null) {
+			start();
+			timer = this.timer;
+		}
+		timer.newTimeout(pacer, paceInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private void register(BroadcastJob job) {
+		jobs.put(job.getId(), job);
+		jobOrder.offer(job.getId());
+		Iterator<Long> it = jobOrder.iterator();
+		while (jobs.size() > maxJobs && it.hasNext()) {
+			Long id = it.next();
+			BroadcastJob old = jobs.get(id);
+			if (old == null || old.isDone()) {
+				jobs.remove(id);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Queues the slices of a paced job as the tokens of its bucket come in.
+	 * A slice never spans two shards.
+	 */
+	private class Pacer implements Runnable {
+
+		private final BroadcastJob job;
+
+		private final EncodedNotification notification;
+
+		private final ClientSession[] recipients;
+
+		private final String[] usernames;
+
+		private final TokenBucket bucket;
+
+		private int next;
+
+		Pacer(BroadcastJob job, EncodedNotification notification,
+				ClientSession[] recipients, String[] usernames,
+				TokenBucket bucket) {
+			this.job = job;
+			this.notification = notification;
+			this.recipients = recipients;
+			this.usernames = usernames;
+			this.bucket = bucket;
+		}
+
+		public void run() {
+			int n = bucket.acquire(recipients.length - next);
+			while (n > 0) {
+				int shard = next / shardSize;
+				int to = Math.min(next + n, Math.min((shard + 1) * shardSize,
+						recipients.length));
+				long base = ackTracker.track(notification, Arrays
+						.copyOfRange(recipients, next, to),
+						NotificationDispatcher.Priority.LOW);
+				try {
+					dispatcher.dispatch(new Shard(job, shard, notification,
+							recipients, usernames, next, to, base),
+							NotificationDispatcher.Priority.LOW);
+				} catch (RejectedExecutionException e) {
+					// The queue is full, queue the slice on the next tick
+					ackTracker.cancel(base);
+					bucket.refund(n);
+					break;
+				}
+				n -= to - next;
+				next = to;
+			}
+			if (next < recipients.length) {
+				schedule(this);
+			}
+		}
+	}
+
+	/**
+	 * A contiguous range of recipients delivered by one worker.
+	 */
+	private class Shard implements Runnable {
+
+		private final BroadcastJob job;
+
+		private final int index;
+
+		private final EncodedNotification notification;
+
+		private final ClientSession[] recipients;
+
+		private final String[] usernames;
+
+		private final int from;
+
+		private final int to;
+
+		private final long base;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param base
+		 *            the delivery id of the recipient at index <tt>from</tt>
+		 */
+		Shard(BroadcastJob job, int index, EncodedNotification notification,
+				ClientSession[] recipients, String[] usernames, int from,
+				int to, long base) {
+			this.job = job;
+			this.index = index;
+			this.notification = notification;
+			this.recipients = recipients;
+			this.usernames = usernames;
+			this.from = from;
+			this.to = to;
+			this.base = base;
+		}
+
+		public void run() {
+			job.rangeStarted(index);
+			try {
+				for (int i = from; i < to; i++) {
+					ClientSession session = recipients[i];
+					try {
+						boolean available = session != null
+								&& session.getPresence().isAvailable();
+						if (available && !session.isCongested()) {
+							notification.post(session, base + i - from);
+							job.delivered();
+						} else {
+							ackTracker.skip(base + i - from);
+							// A congested session gets it when it drains
+							String username = usernames != null ? usernames[i]
+									: available ? session.getAddress()
+											.getNode() : null;
+							if (username != null && offlineStore != null) {
+								offlineStore.store(username, notification);
+								job.offline();
+							} else {
+								job.skipped();
+							}
+						}
+					} catch (Exception e) {
+						job.failed(index);
+						log.warn("Could not deliver notification "
+								+ notification.getID() + " to "
+								+ (usernames != null ? usernames[i] : session),
+								e);
+					}
+				}
+			} finally {
+				job.rangeCompleted(index, to - from);
+			}
+		}
+	}
+
+}
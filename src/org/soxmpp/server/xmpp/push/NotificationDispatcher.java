@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded, prioritized queue that delivers notifications on a fixed pool of
+ * workers, so the caller never waits for a client write.
+ * <p>
+ * Sends to a single user are queued with {@link Priority#HIGH} and always run
+ * before the shards of a broadcast, which are queued with
+ * {@link Priority#LOW}. Each priority has its own capacity, so a large
+ * broadcast can not fill the queue for single-user sends. When a priority is
+ * full the configured rejection policy applies:
+ * <ul>
+ * <li><tt>abort</tt> - the task is rejected with a
+ * {@link RejectedExecutionException}, which the HTTP API reports as busy.</li>
+ * <li><tt>callerRuns</tt> - the task runs in the calling thread, slowing the
+ * caller down.</li>
+ * </ul>
+ */
+public class NotificationDispatcher {
+
+	private static final Log log = LogFactory
+			.getLog(NotificationDispatcher.class);
+
+	public static final String POLICY_ABORT = "abort";
+
+	public static final String POLICY_CALLER_RUNS = "callerRuns";
+
+	/**
+	 * The priority of a dispatched task.
+	 */
+	public enum Priority {
+		HIGH, LOW
+	}
+
+	private int workers = Runtime.getRuntime().availableProcessors();
+
+	private int capacity = 10000;
+
+	private int broadcastCapacity = 1000;
+
+	private String rejectionPolicy = POLICY_ABORT;
+
+	private ThreadPoolExecutor executor;
+
+	private final AtomicInteger[] pending = { new AtomicInteger(),
+			new AtomicInteger() };
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 */
+	public NotificationDispatcher() {
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public void setBroadcastCapacity(int broadcastCapacity) {
+		this.broadcastCapacity = broadcastCapacity;
+	}
+
+	public void setRejectionPolicy(String rejectionPolicy) {
+		if (!POLICY_ABORT.equals(rejectionPolicy)
+				&& !POLICY_CALLER_RUNS.equals(rejectionPolicy)) {
+			throw new IllegalArgumentException("Unknown rejection policy: "
+					+ rejectionPolicy);
+		}
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(workers, workers, 60,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "dispatcher-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		log.info("Notification dispatcher started: workers=" + workers
+				+ ", capacity=" + capacity + ", broadcastCapacity="
+				+ broadcastCapacity + ", rejectionPolicy=" + rejectionPolicy);
+	}
+
+	/**
+	 * Stops the worker threads. Tasks already queued are still run.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Queues a task.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @param priority
+	 *            the priority of the task
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the rejection policy is abort
+	 */
+	public void dispatch(Runnable task, Priority priority) {
+		dispatch(Collections.singletonList(task), priority);
+	}
+
+	/**
+	 * Queues a group of tasks. Either every task is queued, or none is.
+	 *
+	 * @param tasks
+	 *            the tasks to run
+	 * @param priority
+	 *            the priority of the tasks
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the rejection policy is abort
+	 */
+	public void dispatch(List<? extends Runnable> tasks, Priority priority) {
+		ThreadPoolExecutor executor = getExecutor();
+		if (!reserve(priority, tasks.size())) {
+			rejected.addAndGet(tasks.size());
+			if (POLICY_CALLER_RUNS.equals(rejectionPolicy)) {
+				for (Runnable task : tasks) {
+					runTask(task);
+				}
+				return;
+			}
+			throw new RejectedExecutionException("Notification queue full ("
+					+ priority + ")");
+		}
+		for (Runnable task : tasks) {
+			executor.execute(new PrioritizedTask(task, priority, sequence
+					.incrementAndGet()));
+		}
+	}
+
+	/**
+	 * Returns the number of queued tasks of the given priority.
+	 *
+	 * @param priority
+	 *            the priority
+	 * @return the number of queued tasks
+	 */
+	public int getQueued(Priority priority) {
+		return pending[priority.ordinal()].get();
+	}
+
+	/**
+	 * Returns the fraction of the capacity used by tasks of the given
+	 * priority.
+	 *
+	 * @param priority
+	 *            the priority
+	 * @return the load between 0 and 1
+	 */
+	public double getLoad(Priority priority) {
+		return (double) getQueued(priority) / capacityOf(priority);
+	}
+
+	/**
+	 * Returns the number of tasks run.
+	 *
+	 * @return the number of completed tasks
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns the number of tasks that did not fit in the queue.
+	 *
+	 * @return the number of rejected tasks
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			start();
+		}
+		return executor;
+	}
+
+	private int capacityOf(Priority priority) {
+		return priority == Priority.HIGH ? capacity : broadcastCapacity;
+	}
+
+	private boolean reserve(Priority priority, int count) {
+		AtomicInteger counter = pending[priority.ordinal()];
+		int limit = capacityOf(priority);
+		for (;;) {
+			int current = counter.get();
+			if (current + count > limit) {
+				return false;
+			}
+			if (counter.compareAndSet(current, current + count)) {
+				return true;
+			}
+		}
+	}
+
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			log.error("Notification task failed", e);
+		}
+		completed.incrementAndGet();
+	}
+
+	/**
+	 * A queued task, ordered by priority and then by arrival.
+	 */
+	private class PrioritizedTask implements Runnable,
+			Comparable<PrioritizedTask> {
+
+		private final Runnable task;
+
+		private final Priority priority;
+
+		private final long seq;
+
+		PrioritizedTask(Runnable task, Priority priority, long seq) {
+			this.task = task;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		public void run() {
+			pending[priority.ordinal()].decrementAndGet();
+			runTask(task);
+		}
+
+		public int compareTo(PrioritizedTask other) {
+			if (priority != other.priority) {
+				return priority.ordinal() - other.priority.ordinal();
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+}
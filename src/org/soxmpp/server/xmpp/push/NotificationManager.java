@@ -17,13 +17,18 @@
  */
 package org.soxmpp.server.xmpp.push;
 
-import java.util.Random;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
+import org.soxmpp.server.service.UserNotFoundException;
 import org.soxmpp.server.xmpp.UnauthenticatedException;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.SessionManager;
@@ -42,6 +47,21 @@ public class NotificationManager {
 
 	private SessionManager sessionManager;
 
+	private FanoutEngine fanoutEngine;
+
+	private NotificationDispatcher dispatcher;
+
+	private OfflineStore offlineStore;
+
+	private AckTracker ackTracker;
+
+	private final DedupeWindow dedupeWindow = new DedupeWindow(600000, 100000);
+
+	/**
+	 * The latest queued notification for every user and collapse key.
+	 */
+	private final ConcurrentHashMap<String, String> pendingCollapse = new ConcurrentHashMap<String, String>();
+
 	/**
 	 * Constructor.
 	 */
@@ -51,6 +71,62 @@ public class NotificationManager {
 	public void setSessionManager(SessionManager sessionManager) {
 		this.sessionManager = sessionManager;
 	}
+
+	public void setFanoutEngine(FanoutEngine fanoutEngine) {
+		this.fanoutEngine = fanoutEngine;
+	}
+
+	public void setDispatcher(NotificationDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public void setOfflineStore(OfflineStore offlineStore) {
+		this.offlineStore = offlineStore;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	/**
+	 * Sets the time a notification id is remembered to drop duplicates.
+	 * 
+	 * @param dedupeWindow
+	 *            the window in milliseconds
+	 */
+	public void setDedupeWindow(long dedupeWindow) {
+		this.dedupeWindow.setWindow(dedupeWindow);
+	}
+
+	/**
+	 * Sets the maximum number of notification ids remembered to drop
+	 * duplicates.
+	 * 
+	 * @param dedupeCapacity
+	 *            the number of ids
+	 */
+	public void setDedupeCapacity(int dedupeCapacity) {
+		this.dedupeWindow.setCapacity(dedupeCapacity);
+	}
+
+	/**
+	 * Returns the queue that delivers the notifications.
+	 * 
+	 * @return the notification dispatcher
+	 */
+	public NotificationDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Returns the engine that delivers the broadcasts.
+	 * 
+	 * @return the fan-out engine
+	 */
+	public FanoutEngine getFanoutEngine() {
+		return fanoutEngine;
+	}
+
 	/**
 	 * Broadcasts a newly created notification message to all connected users.
 	 * 
@@ -62,43 +138,328 @@ public class NotificationManager {
 	 *            the message details
 	 * @param uri
 	 *            the uri
+	 * @return the job delivering the notification
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
 	 * @throws UnauthenticatedException 
 	 */
-	public void sendBroadcast(String apiKey, String title, String message,
-			String uri) throws UnauthenticatedException {
+	public BroadcastJob sendBroadcast(String apiKey, String title,
+			String message, String uri) throws UnauthenticatedException {
+		return sendBroadcast(apiKey, title, message, uri, null, null);
+	}
+
+	/**
+	 * Broadcasts a newly created notification message to all connected users.
+	 * 
+	 * @param apiKey
+	 *            the API key
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @return the job delivering the notification, or null if a notification
+	 *         with the same id was sent during the dedupe window
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
+	 * @throws UnauthenticatedException 
+	 */
+	public BroadcastJob sendBroadcast(String apiKey, String title,
+			String message, String uri, String notificationId,
+			String collapseKey) throws UnauthenticatedException {
+		return sendBroadcast(apiKey, title, message, uri, notificationId,
+				collapseKey, 0, 0);
+	}
+
+	/**
+	 * Broadcasts a newly created notification message to all connected
+	 * users. A paced broadcast is delivered at the given rate, or spread
+	 * evenly over the given time, so the clients do not all call back at
+	 * once.
+	 * 
+	 * @param apiKey
+	 *            the API key
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @param rate
+	 *            the number of sessions to deliver to per second, or 0
+	 * @param spread
+	 *            the time in milliseconds to spread the deliveries over if
+	 *            the rate is 0, or 0 to deliver as fast as possible
+	 * @return the job delivering the notification, or null if a notification
+	 *         with the same id was sent during the dedupe window
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
+	 * @throws UnauthenticatedException 
+	 */
+	public BroadcastJob sendBroadcast(String apiKey, String title,
+			String message, String uri, String notificationId,
+			String collapseKey, double rate, long spread)
+			throws UnauthenticatedException {
 		log.debug("sendBroadcast()...");
-		IQ notificationIQ = createNotificationIQ(apiKey, title, message, uri);
-		for (ClientSession session : sessionManager.getSessions()) {
-			if (session.getPresence().isAvailable()) {
-				notificationIQ.setTo(session.getAddress());
-				session.deliver(notificationIQ);
-			}
+		if (isDuplicate(notificationId)) {
+			return null;
+		}
+		IQ notificationIQ = createNotificationIQ(apiKey, title, message, uri,
+				notificationId, collapseKey);
+		// Serialize the notification once and only encode the recipient
+		// address for each session
+		EncodedNotification notification = encode(notificationIQ);
+		Collection<ClientSession> sessions = sessionManager.getSessions();
+		if (rate <= 0 && spread > 0) {
+			rate = Math.max(1, sessions.size() * 1000.0 / spread);
+		}
+		try {
+			return fanoutEngine.submit(notification, sessions, rate);
+		} catch (RejectedExecutionException e) {
+			forget(notificationId);
+			throw e;
 		}
 	}
 
 	/**
-	 * Sends a newly created notification message to the specific user.
+	 * Sends a newly created notification message to a list of users. The
+	 * sessions are resolved in bulk, the notification is serialized once and
+	 * delivered in parallel; users without an available session get it from
+	 * the offline store when they become available.
 	 * 
 	 * @param apiKey
 	 *            the API key
+	 * @param usernames
+	 *            the recipients
 	 * @param title
 	 *            the title
 	 * @param message
 	 *            the message details
 	 * @param uri
 	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @return the job delivering the notification, or null if a notification
+	 *         with the same id was sent during the dedupe window
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
+	 */
+	public BroadcastJob sendMulticast(String apiKey, String[] usernames,
+			String title, String message, String uri, String notificationId,
+			String collapseKey) {
+		log.debug("sendMulticast()...");
+		if (isDuplicate(notificationId)) {
+			return null;
+		}
+		IQ notificationIQ = createNotificationIQ(apiKey, title, message, uri,
+				notificationId, collapseKey);
+		EncodedNotification notification = encode(notificationIQ);
+		ClientSession[] sessions = sessionManager.getSessions(usernames);
+		try {
+			return fanoutEngine.submit(notification, sessions, usernames);
+		} catch (RejectedExecutionException e) {
+			forget(notificationId);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a newly created notification message to the specific user. If
+	 * the user is offline, the notification is kept until the user becomes
+	 * available again.
+	 * 
+	 * @param apiKey
+	 *            the API key
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @return true if the notification was queued
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
 	 * @throws UnauthenticatedException 
 	 */
-	public void sendNotifcationToUser(String apiKey, String username,
+	public boolean sendNotifcationToUser(String apiKey, String username,
 			String title, String message, String uri) throws UnauthenticatedException {
+		return sendNotifcationToUser(apiKey, username, title, message, uri,
+				null, null);
+	}
+
+	/**
+	 * Sends a newly created notification message to the specific user. If
+	 * the user is offline, the notification is kept until the user becomes
+	 * available again. A notification still waiting in the queue is dropped
+	 * when a newer one with the same collapse key is sent to the user.
+	 * 
+	 * @param apiKey
+	 *            the API key
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @return true if the notification was queued, false if a notification
+	 *         with the same id was sent during the dedupe window
+	 * @throws RejectedExecutionException
+	 *             if the dispatch queue is full
+	 * @throws UnauthenticatedException 
+	 */
+	public boolean sendNotifcationToUser(String apiKey, final String username,
+			String title, String message, String uri, String notificationId,
+			String collapseKey) throws UnauthenticatedException {
 		log.debug("sendNotifcationToUser()...");
-		IQ notificationIQ = createNotificationIQ(apiKey, title, message, uri);
-		ClientSession session = sessionManager.getSession(username);
-		if (session != null) {
-			if (session.getPresence().isAvailable()) {
-				notificationIQ.setTo(session.getAddress());
-				session.deliver(notificationIQ);
+		if (isDuplicate(notificationId)) {
+			return false;
+		}
+		final IQ notificationIQ = createNotificationIQ(apiKey, title, message,
+				uri, notificationId, collapseKey);
+		final String collapseId = collapseKey == null ? null : username + "/"
+				+ collapseKey;
+		if (collapseId != null) {
+			pendingCollapse.put(collapseId, notificationIQ.getID());
+		}
+		try {
+			dispatcher.dispatch(new Runnable() {
+				public void run() {
+					if (collapseId != null
+							&& !pendingCollapse.remove(collapseId,
+									notificationIQ.getID())) {
+						log.debug("Dropped notification " + notificationIQ.getID()
+								+ " superseded by a newer one for " + username);
+						return;
+					}
+					final EncodedNotification notification = encode(notificationIQ);
+					final ClientSession session = sessionManager
+							.getSession(username);
+					if (session != null && session.getPresence().isAvailable()
+							&& !session.isCongested()) {
+						final long deliveryId = ackTracker.track(notification,
+								new ClientSession[] { session },
+								NotificationDispatcher.Priority.HIGH);
+						notification.post(session, deliveryId);
+					} else if (offlineStore != null) {
+						try {
+							offlineStore.store(username, notification);
+						} catch (IOException e) {
+							log.error("Could not store offline notification for "
+									+ username, e);
+						}
+					}
+				}
+			}, NotificationDispatcher.Priority.HIGH);
+		} catch (RejectedExecutionException e) {
+			if (collapseId != null) {
+				pendingCollapse.remove(collapseId, notificationIQ.getID());
+			}
+			forget(notificationId);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers the notifications kept while the user of the session was
+	 * offline. The notifications are read from the offline store in order
+	 * and written to the session at once.
+	 * 
+	 * @param session
+	 *            the session that became available
+	 */
+	public void sendOfflineNotifications(final ClientSession session) {
+		if (offlineStore == null) {
+			return;
+		}
+		final String username;
+		try {
+			username = session.getUsername();
+		} catch (UserNotFoundException e) {
+			return;
+		}
+		if (offlineStore.getPending(username) == 0) {
+			return;
+		}
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				// A congested session gets the notifications when it drains
+				if (!session.getPresence().isAvailable()
+						|| session.isCongested()) {
+					return;
+				}
+				try {
+					final List<EncodedNotification> notifications = offlineStore
+							.drain(username);
+					if (!notifications.isEmpty()) {
+						log.debug("Replaying " + notifications.size()
+								+ " offline notifications to " + username);
+						ClientSession[] recipient = { session };
+						final long[] deliveryIds = new long[notifications.size()];
+						for (int i = 0; i < deliveryIds.length; i++) {
+							deliveryIds[i] = ackTracker.track(notifications
+									.get(i), recipient,
+									NotificationDispatcher.Priority.HIGH);
+						}
+						session.execute(new Runnable() {
+							public void run() {
+								EncodedNotification.deliver(session,
+										notifications, deliveryIds);
+							}
+						});
+					}
+				} catch (IOException e) {
+					log.error("Could not replay offline notifications for "
+							+ username, e);
+				}
 			}
+		}, NotificationDispatcher.Priority.HIGH);
+	}
+
+	/**
+	 * Returns true if a notification with the given id was sent during the
+	 * dedupe window, and records the id otherwise.
+	 */
+	private boolean isDuplicate(String notificationId) {
+		if (notificationId != null && !dedupeWindow.add(notificationId)) {
+			log.debug("Dropped duplicate notification " + notificationId);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the id of a notification that could not be queued, so that the
+	 * retry of the sender is not dropped as a duplicate.
+	 */
+	private void forget(String notificationId) {
+		if (notificationId != null) {
+			dedupeWindow.remove(notificationId);
+		}
+	}
+
+	private EncodedNotification encode(IQ notificationIQ) {
+		try {
+			return new EncodedNotification(notificationIQ);
+		} catch (IOException e) {
+			// Not expected when writing to a string
+			throw new IllegalStateException("Could not encode notification: "
+					+ notificationIQ, e);
 		}
 	}
 
@@ -106,10 +467,10 @@ public class NotificationManager {
 	 * Creates a new notification IQ and returns it.
 	 */
 	private IQ createNotificationIQ(String apiKey, String title,
-			String message, String uri) {
-		Random random = new Random();
-		String id = Integer.toHexString(random.nextInt());
-		// String id = String.valueOf(System.currentTimeMillis());
+			String message, String uri, String notificationId,
+			String collapseKey) {
+		String id = notificationId != null ? notificationId : Long
+				.toHexString(ackTracker.nextId());
 
 		Element notification = DocumentHelper.createElement(QName.get(
 				"notification", NOTIFICATION_NAMESPACE));
@@ -118,9 +479,13 @@ public class NotificationManager {
 		notification.addElement("title").setText(title);
 		notification.addElement("message").setText(message);
 		notification.addElement("uri").setText(uri);
+		if (collapseKey != null) {
+			notification.addElement("collapseKey").setText(collapseKey);
+		}
 
 		IQ iq = new IQ();
 		iq.setType(IQ.Type.set);
+		iq.setID(id);
 		iq.setChildElement(notification);
 
 		return iq;
@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends notifications at a given time. Due notifications go through the
+ * {@link NotificationManager} like the notifications sent at once.
+ * <p>
+ * The pending notifications are kept in a {@link TimingWheel} and written to
+ * a log split into segment files; only the deadline and the log position of
+ * a notification are held in memory, and its content is read back when it is
+ * due. Sending or cancelling a notification appends a remove record, and the
+ * wheel is rebuilt from the log on startup. Once most of the log is made of
+ * records no longer needed, the pending notifications of the oldest segment
+ * are copied to the end of the log and the segment is deleted.
+ * <p>
+ * A notification due while the server was down is sent on startup. A
+ * notification may be sent twice if the server stops between sending it and
+ * writing its remove record; give it a notification id to have the duplicate
+ * dropped.
+ */
+public class NotificationScheduler {
+
+	private static final Log log = LogFactory
+			.getLog(NotificationScheduler.class);
+
+	private static final String SUFFIX = ".log";
+
+	private static final byte RECORD_ADD = 1;
+
+	private static final byte RECORD_REMOVE = 2;
+
+	private static final int LEVELS = 5;
+
+	private NotificationManager notificationManager;
+
+	private String directory = "data" + File.separator + "schedule";
+
+	private int segmentSize = 16 * 1024 * 1024;
+
+	private long tickDuration = 1000;
+
+	private boolean sync = false;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	private Segment active;
+
+	private final Map<Long, Entry> pending = new HashMap<Long, Entry>();
+
+	private int records;
+
+	private long lastId;
+
+	private TimingWheel wheel;
+
+	private volatile Thread worker;
+
+	/**
+	 * Constructor.
+	 */
+	public NotificationScheduler() {
+	}
+
+	public void setNotificationManager(NotificationManager notificationManager) {
+		this.notificationManager = notificationManager;
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public void setTickDuration(long tickDuration) {
+		this.tickDuration = tickDuration;
+	}
+
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Opens the log, rebuilds the wheel and starts the scheduler thread.
+	 *
+	 * @throws IOException
+	 *             if the log could not be read
+	 */
+	public synchronized void start() throws IOException {
+		if (worker != null) {
+			return;
+		}
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				int id = Integer.parseInt(name.substring(0, name.length()
+						- SUFFIX.length()));
+				segments.put(id, new Segment(id, file));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unknown file in schedule: " + file);
+			}
+		}
+		for (Segment segment : segments.values()) {
+			recover(segment);
+		}
+		if (segments.isEmpty()
+				|| segments.lastEntry().getValue().size >= segmentSize) {
+			roll();
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+
+		wheel = new TimingWheel(LEVELS, System.currentTimeMillis()
+				/ tickDuration);
+		for (Entry entry : pending.values()) {
+			wheel.add(entry);
+		}
+		compact();
+
+		Thread thread = new Thread(new Worker(), "notification-scheduler");
+		thread.setDaemon(true);
+		worker = thread;
+		thread.start();
+		log.info("Notification schedule opened: " + dir.getAbsolutePath()
+				+ ", segments=" + segments.size() + ", pending="
+				+ pending.size());
+	}
+
+	/**
+	 * Stops the scheduler thread and closes the log.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = worker;
+			worker = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+			segments.clear();
+			pending.clear();
+			active = null;
+			wheel = null;
+			records = 0;
+		}
+	}
+
+	/**
+	 * Schedules a notification to all connected users.
+	 *
+	 * @param time
+	 *            the time to send the notification at, in milliseconds
+	 * @param apiKey
+	 *            the API key
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @param rate
+	 *            the number of sessions to deliver to per second, or 0
+	 * @param spread
+	 *            the time in milliseconds to spread the deliveries over if
+	 *            the rate is 0, or 0 to deliver as fast as possible
+	 * @return the schedule id
+	 * @throws IOException
+	 *             if the notification could not be written
+	 */
+	public long scheduleBroadcast(long time, String apiKey, String title,
+			String message, String uri, String notificationId,
+			String collapseKey, double rate, long spread) throws IOException {
+		return schedule(time, apiKey, null, title, message, uri,
+				notificationId, collapseKey, rate, spread);
+	}
+
+	/**
+	 * Schedules a notification to a list of users.
+	 *
+	 * @param time
+	 *            the time to send the notification at, in milliseconds
+	 * @param apiKey
+	 *            the API key
+	 * @param usernames
+	 *            the recipients
+	 * @param title
+	 *            the title
+	 * @param message
+	 *            the message details
+	 * @param uri
+	 *            the uri
+	 * @param notificationId
+	 *            the notification id chosen by the sender, or null
+	 * @param collapseKey
+	 *            the collapse key, or null
+	 * @return the schedule id
+	 * @throws IOException
+	 *             if the notification could not be written
+	 */
+	public long schedule(long time, String apiKey, String[] usernames,
+			String title, String message, String uri, String notificationId,
+			String collapseKey) throws IOException {
+		if (usernames == null || usernames.length == 0) {
+			throw new IllegalArgumentException("No recipients");
+		}
+		return schedule(time, apiKey, usernames, title, message, uri,
+				notificationId, collapseKey, 0, 0);
+	}
+
+	/**
+	 * Cancels a scheduled notification.
+	 *
+	 * @param id
+	 *            the schedule id
+	 * @return true if the notification was cancelled, false if it is unknown
+	 *         or was already sent
+	 * @throws IOException
+	 *             if the log could not be written
+	 */
+	public synchronized boolean cancel(long id) throws IOException {
+		Entry entry = pending.get(id);
+		if (entry == null || entry.firing) {
+			return false;
+		}
+		// The entry stays in the wheel until its slot expires
+		entry.cancelled = true;
+		remove(entry);
+		compact();
+		return true;
+	}
+
+	/**
+	 * Returns the number of notifications waiting to be sent.
+	 *
+	 * @return the number of scheduled notifications
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 *
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	private synchronized long schedule(long time, String apiKey,
+			String[] usernames, String title, String message, String uri,
+			String notificationId, String collapseKey, double rate,
+			long spread) throws IOException {
+		if (wheel == null) {
+			throw new IllegalStateException("Scheduler is not started");
+		}
+		long deadline = deadlineOf(time);
+		if (deadline - wheel.getTick() >= wheel.getHorizon()) {
+			throw new IllegalArgumentException("Time too far ahead: " + time);
+		}
+		long id = ++lastId;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_ADD);
+		out.writeLong(id);
+		out.writeLong(time);
+		out.writeUTF(apiKey);
+		if (usernames == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(usernames.length);
+			for (String username : usernames) {
+				out.writeUTF(username);
+			}
+		}
+		out.writeUTF(title);
+		out.writeUTF(message);
+		out.writeUTF(uri);
+		out.writeUTF(notificationId == null ? "" : notificationId);
+		out.writeUTF(collapseKey == null ? "" : collapseKey);
+		out.writeDouble(rate);
+		out.writeLong(spread);
+		out.flush();
+		long position = append(bytes.toByteArray());
+		Entry entry = new Entry(id, deadline, position);
+		add(entry);
+		wheel.add(entry);
+		return id;
+	}
+
+	private long deadlineOf(long time) {
+		return (time + tickDuration - 1) / tickDuration;
+	}
+
+	private void add(Entry entry) {
+		Entry old = pending.put(entry.id, entry);
+		if (old != null) {
+			// Copied by a compaction
+			segmentOf(old.position).unlink(old);
+		}
+		segmentOf(entry.position).link(entry);
+		lastId = Math.max(lastId, entry.id);
+	}
+
+	private void remove(Entry entry) throws IOException {
+		pending.remove(entry.id);
+		segmentOf(entry.position).unlink(entry);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_REMOVE);
+		out.writeLong(entry.id);
+		out.flush();
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Advances the wheel up to the current time and sends the due
+	 * notifications.
+	 */
+	private void tick() {
+		List<TimingWheel.Node> expired = new ArrayList<TimingWheel.Node>();
+		synchronized (this) {
+			if (wheel == null) {
+				return;
+			}
+			long now = System.currentTimeMillis() / tickDuration;
+			while (wheel.getTick() < now) {
+				wheel.advance(expired);
+			}
+		}
+		for (TimingWheel.Node node : expired) {
+			fire((Entry) node);
+		}
+		if (!expired.isEmpty()) {
+			synchronized (this) {
+				if (wheel != null) {
+					compact();
+				}
+			}
+		}
+	}
+
+	private void fire(Entry entry) {
+		Record record;
+		synchronized (this) {
+			if (entry.cancelled || wheel == null) {
+				return;
+			}
+			try {
+				record = read(entry.position);
+			} catch (IOException e) {
+				log.error("Could not read scheduled notification " + entry.id,
+						e);
+				return;
+			}
+			entry.firing = true;
+		}
+		boolean sent = true;
+		try {
+			if (record.usernames == null) {
+				notificationManager.sendBroadcast(record.apiKey, record.title,
+						record.message, record.uri, record.notificationId,
+						record.collapseKey, record.rate, record.spread);
+			} else if (record.usernames.length == 1) {
+				notificationManager.sendNotifcationToUser(record.apiKey,
+						record.usernames[0], record.title, record.message,
+						record.uri, record.notificationId, record.collapseKey);
+			} else {
+				notificationManager.sendMulticast(record.apiKey,
+						record.usernames, record.title, record.message,
+						record.uri, record.notificationId, record.collapseKey);
+			}
+		} catch (RejectedExecutionException e) {
+			// The dispatch queue is full, try again on the next tick
+			sent = false;
+		} catch (Exception e) {
+			log.error("Could not send scheduled notification " + entry.id, e);
+		}
+		synchronized (this) {
+			entry.firing = false;
+			if (wheel == null) {
+				return;
+			}
+			if (!sent) {
+				wheel.add(entry);
+				return;
+			}
+			try {
+				remove(entry);
+			} catch (IOException e) {
+				log.error("Could not remove scheduled notification "
+						+ entry.id, e);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment and returns its position.
+	 */
+	private long append(byte[] record) throws IOException {
+		if (active.size > 0 && active.size + 4 + record.length > segmentSize) {
+			roll();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+		buffer.putInt(record.length).put(record).flip();
+		long position = ((long) active.id << 32) | active.size;
+		long offset = active.size;
+		while (buffer.hasRemaining()) {
+			offset += active.channel.write(buffer, offset);
+		}
+		active.size = offset;
+		active.records++;
+		records++;
+		if (sync) {
+			active.channel.force(false);
+		}
+		return position;
+	}
+
+	private Segment segmentOf(long position) {
+		return segments.get((int) (position >>> 32));
+	}
+
+	/**
+	 * Reads the record at the given position.
+	 */
+	private byte[] readRecord(long position) throws IOException {
+		Segment segment = segmentOf(position);
+		long offset = position & 0xffffffffL;
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(segment.channel, length, offset);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		readFully(segment.channel, record, offset + 4);
+		return record.array();
+	}
+
+	/**
+	 * Reads the notification stored at the given position.
+	 */
+	private Record read(long position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				readRecord(position)));
+		in.readByte();
+		in.readLong();
+		in.readLong();
+		Record record = new Record();
+		record.apiKey = in.readUTF();
+		int count = in.readInt();
+		if (count >= 0) {
+			record.usernames = new String[count];
+			for (int i = 0; i < count; i++) {
+				record.usernames[i] = in.readUTF();
+			}
+		}
+		record.title = in.readUTF();
+		record.message = in.readUTF();
+		record.uri = in.readUTF();
+		String notificationId = in.readUTF();
+		record.notificationId = notificationId.length() > 0 ? notificationId
+				: null;
+		String collapseKey = in.readUTF();
+		record.collapseKey = collapseKey.length() > 0 ? collapseKey : null;
+		record.rate = in.readDouble();
+		record.spread = in.readLong();
+		return record;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, offset + buffer.position());
+			if (n < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Replays the records of a segment. A record cut short by a crash is
+	 * truncated.
+	 */
+	private void recover(Segment segment) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file), 64 * 1024));
+		long offset = 0;
+		try {
+			for (;;) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] record = new byte[length];
+				try {
+					in.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream recordIn = new DataInputStream(
+						new ByteArrayInputStream(record));
+				byte type = recordIn.readByte();
+				long id = recordIn.readLong();
+				if (type == RECORD_ADD) {
+					long time = recordIn.readLong();
+					add(new Entry(id, deadlineOf(time),
+							((long) segment.id << 32) | offset));
+				} else if (type == RECORD_REMOVE) {
+					Entry entry = pending.remove(id);
+					if (entry != null) {
+						segmentOf(entry.position).unlink(entry);
+					}
+				}
+				segment.records++;
+				records++;
+				offset += 4 + length;
+			}
+		} finally {
+			in.close();
+		}
+		if (offset < segment.channel.size()) {
+			log.warn("Truncating incomplete record in " + segment.file
+					+ " at " + offset);
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+
+	/**
+	 * Starts a new segment.
+	 */
+	private void roll() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(directory, String.format(
+				"%010d", id)
+				+ SUFFIX));
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	/**
+	 * Deletes the oldest segments while less than a third of the records are
+	 * pending notifications; a sent or cancelled notification leaves an add
+	 * and a remove record behind. The pending notifications of a segment are
+	 * copied to the end of the log first. Segments are only deleted from the
+	 * head of the log, so the remove records of a deleted segment can never
+	 * be needed again.
+	 */
+	private void compact() {
+		while (segments.size() > 1 && records > 3L * pending.size()) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active) {
+				break;
+			}
+			try {
+				relocate(oldest);
+			} catch (IOException e) {
+				log.error("Could not compact " + oldest.file, e);
+				return;
+			}
+			oldest.close();
+			if (!oldest.file.delete()) {
+				log.warn("Could not delete " + oldest.file);
+			}
+			segments.remove(oldest.id);
+			records -= oldest.records;
+		}
+	}
+
+	/**
+	 * Copies the pending notifications of a segment to the end of the log.
+	 */
+	private void relocate(Segment segment) throws IOException {
+		Entry entry = segment.first;
+		while (entry != null) {
+			Entry next = entry.nextInSegment;
+			long position = append(readRecord(entry.position));
+			segment.unlink(entry);
+			entry.position = position;
+			segmentOf(position).link(entry);
+			entry = next;
+		}
+	}
+
+	/**
+	 * A scheduled notification in the wheel.
+	 */
+	private static class Entry extends TimingWheel.Node {
+
+		private final long id;
+
+		private long position;
+
+		private boolean cancelled;
+
+		private boolean firing;
+
+		/** The neighbours in the list of the entries of its segment */
+		private Entry previousInSegment;
+
+		private Entry nextInSegment;
+
+		Entry(long id, long deadline, long position) {
+			super(deadline);
+			this.id = id;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * The content of a scheduled notification.
+	 */
+	private static class Record {
+
+		private String apiKey;
+
+		private String[] usernames;
+
+		private String title;
+
+		private String message;
+
+		private String uri;
+
+		private String notificationId;
+
+		private String collapseKey;
+
+		private double rate;
+
+		private long spread;
+	}
+
+	/**
+	 * A segment file of the log.
+	 */
+	private static class Segment {
+
+		private final int id;
+
+		private final File file;
+
+		private final RandomAccessFile raf;
+
+		private final FileChannel channel;
+
+		private long size;
+
+		private int records;
+
+		/** The first of the pending notifications stored in this segment */
+		private Entry first;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+		}
+
+		void link(Entry entry) {
+			entry.previousInSegment = null;
+			entry.nextInSegment = first;
+			if (first != null) {
+				first.previousInSegment = entry;
+			}
+			first = entry;
+		}
+
+		void unlink(Entry entry) {
+			if (entry.previousInSegment != null) {
+				entry.previousInSegment.nextInSegment = entry.nextInSegment;
+			} else {
+				first = entry.nextInSegment;
+			}
+			if (entry.nextInSegment != null) {
+				entry.nextInSegment.previousInSegment = entry.previousInSegment;
+			}
+			entry.previousInSegment = null;
+			entry.nextInSegment = null;
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Advances the wheel once per tick.
+	 */
+	private class Worker implements Runnable {
+
+		public void run() {
+			while (worker == Thread.currentThread()) {
+				try {
+					tick();
+				} catch (Throwable t) {
+					log.error("Notification scheduler failed", t);
+				}
+				long now = System.currentTimeMillis();
+				long sleep = tickDuration - now % tickDuration;
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent queue of the notifications sent to offline users.
+ * <p>
+ * Notifications are appended to a log split into segment files. An in-memory
+ * index keeps, for every user, the positions of the pending records in log
+ * order, so the replay for a reconnecting device is a sequential read of the
+ * log. Draining a user appends a marker record, and the index is rebuilt from
+ * the log on startup. Only the newest notification of a user is kept for a
+ * given collapse key.
+ * <p>
+ * Once most of the log is made of records no longer needed, the queues of
+ * the users with a notification in the oldest segment are copied to the end
+ * of the log and the segment is deleted, so a user who never reconnects
+ * does not keep the old segments on disk.
+ */
+public class OfflineStore {
+
+	private static final Log log = LogFactory.getLog(OfflineStore.class);
+
+	private static final String SUFFIX = ".log";
+
+	private static final byte RECORD_APPEND = 1;
+
+	private static final byte RECORD_DRAIN = 2;
+
+	private String directory = "data" + File.separator + "offline";
+
+	private int segmentSize = 16 * 1024 * 1024;
+
+	private int maxPerUser = 100;
+
+	private boolean sync = false;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	private Segment active;
+
+	private final Map<String, ArrayDeque<Entry>> index = new HashMap<String, ArrayDeque<Entry>>();
+
+	private int pending;
+
+	private long records;
+
+	/**
+	 * Constructor.
+	 */
+	public OfflineStore() {
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public void setMaxPerUser(int maxPerUser) {
+		this.maxPerUser = maxPerUser;
+	}
+
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Opens the log and rebuilds the index from the existing segments.
+	 *
+	 * @throws IOException
+	 *             if the log could not be read
+	 */
+	public synchronized void start() throws IOException {
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				int id = Integer.parseInt(name.substring(0, name.length()
+						- SUFFIX.length()));
+				segments.put(id, new Segment(id, file));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unknown file in offline store: " + file);
+			}
+		}
+		for (Segment segment : segments.values()) {
+			recover(segment);
+		}
+		if (segments.isEmpty()
+				|| segments.lastEntry().getValue().size >= segmentSize) {
+			roll();
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+		compact();
+		log.info("Offline store opened: " + dir.getAbsolutePath()
+				+ ", segments=" + segments.size() + ", pending=" + pending);
+	}
+
+	/**
+	 * Closes the log.
+	 */
+	public synchronized void stop() {
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+		segments.clear();
+		index.clear();
+		active = null;
+		pending = 0;
+		records = 0;
+	}
+
+	/**
+	 * Queues a notification for an offline user. A pending notification of
+	 * the user with the same collapse key is replaced, and the oldest
+	 * notification of the user is dropped when the user already has the
+	 * maximum number of pending notifications.
+	 *
+	 * @param username
+	 *            the recipient
+	 * @param notification
+	 *            the encoded notification
+	 * @throws IOException
+	 *             if the notification could not be written
+	 */
+	synchronized void store(String username, EncodedNotification notification)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				notification.getHead().length
+						+ notification.getMiddle().length
+						+ notification.getTail().length + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_APPEND);
+		out.writeUTF(username);
+		out.writeUTF(notification.getID());
+		out.writeUTF(collapseKeyOf(notification));
+		out.writeBoolean(notification.isIdFirst());
+		writeBytes(out, notification.getHead());
+		writeBytes(out, notification.getMiddle());
+		writeBytes(out, notification.getTail());
+		out.flush();
+		long position = append(bytes.toByteArray());
+		add(username, position, notification.getCollapseKey());
+		compact();
+	}
+
+	/**
+	 * Removes and returns the pending notifications of a user, oldest first.
+	 *
+	 * @param username
+	 *            the user
+	 * @return the pending notifications, or an empty list
+	 * @throws IOException
+	 *             if the log could not be read or written
+	 */
+	synchronized List<EncodedNotification> drain(String username)
+			throws IOException {
+		ArrayDeque<Entry> entries = index.get(username);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		List<EncodedNotification> notifications = new ArrayList<EncodedNotification>(
+				entries.size());
+		for (Entry entry : entries) {
+			notifications.add(read(entry.position));
+		}
+		appendDrain(username);
+		clear(username);
+		compact();
+		return notifications;
+	}
+
+	/**
+	 * Returns the number of pending notifications of a user.
+	 *
+	 * @param username
+	 *            the user
+	 * @return the number of pending notifications
+	 */
+	public synchronized int getPending(String username) {
+		ArrayDeque<Entry> entries = index.get(username);
+		return entries == null ? 0 : entries.size();
+	}
+
+	/**
+	 * Returns the number of pending notifications of all users.
+	 *
+	 * @return the number of pending notifications
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 *
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	private void add(String username, long position, String collapseKey) {
+		ArrayDeque<Entry> entries = index.get(username);
+		if (entries == null) {
+			entries = new ArrayDeque<Entry>();
+			index.put(username, entries);
+		}
+		if (collapseKey != null) {
+			Iterator<Entry> it = entries.iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (collapseKey.equals(entry.collapseKey)) {
+					it.remove();
+					release(entry.position);
+					break;
+				}
+			}
+		}
+		entries.addLast(new Entry(position, collapseKey));
+		Segment segment = segmentOf(position);
+		segment.live++;
+		segment.users.add(username);
+		pending++;
+		if (entries.size() > maxPerUser) {
+			release(entries.pollFirst().position);
+			log.debug("Dropped oldest offline notification of " + username);
+		}
+	}
+
+	private void clear(String username) {
+		ArrayDeque<Entry> entries = index.remove(username);
+		if (entries != null) {
+			for (Entry entry : entries) {
+				release(entry.position);
+			}
+		}
+	}
+
+	private static String collapseKeyOf(EncodedNotification notification) {
+		String collapseKey = notification.getCollapseKey();
+		return collapseKey == null ? "" : collapseKey;
+	}
+
+	private void release(long position) {
+		segmentOf(position).live--;
+		pending--;
+	}
+
+	private Segment segmentOf(long position) {
+		return segments.get((int) (position >>> 32));
+	}
+
+	private void appendDrain(String username) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_DRAIN);
+		out.writeUTF(username);
+		out.flush();
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Appends a record to the active segment and returns its position.
+	 */
+	private long append(byte[] record) throws IOException {
+		if (active.size > 0 && active.size + 4 + record.length > segmentSize) {
+			roll();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+		buffer.putInt(record.length).put(record).flip();
+		long position = ((long) active.id << 32) | active.size;
+		long offset = active.size;
+		while (buffer.hasRemaining()) {
+			offset += active.channel.write(buffer, offset);
+		}
+		active.size = offset;
+		active.records++;
+		records++;
+		if (sync) {
+			active.channel.force(false);
+		}
+		return position;
+	}
+
+	/**
+	 * Reads the record stored at the given position.
+	 */
+	private byte[] readRecord(long position) throws IOException {
+		Segment segment = segmentOf(position);
+		long offset = position & 0xffffffffL;
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(segment.channel, length, offset);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		readFully(segment.channel, record, offset + 4);
+		return record.array();
+	}
+
+	/**
+	 * Reads the notification stored at the given position.
+	 */
+	private EncodedNotification read(long position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				readRecord(position)));
+		in.readByte();
+		in.readUTF();
+		String id = in.readUTF();
+		String collapseKey = in.readUTF();
+		boolean idFirst = in.readBoolean();
+		byte[] head = readBytes(in);
+		byte[] middle = readBytes(in);
+		byte[] tail = readBytes(in);
+		return new EncodedNotification(id, collapseKey.length() > 0 ? collapseKey
+				: null, head, middle, tail, idFirst);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, offset + buffer.position());
+			if (n < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Replays the records of a segment into the index. A record cut short by
+	 * a crash is truncated.
+	 */
+	private void recover(Segment segment) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file), 64 * 1024));
+		long offset = 0;
+		try {
+			for (;;) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] record = new byte[length];
+				try {
+					in.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream recordIn = new DataInputStream(
+						new ByteArrayInputStream(record));
+				byte type = recordIn.readByte();
+				String username = recordIn.readUTF();
+				if (type == RECORD_APPEND) {
+					recordIn.readUTF();
+					String collapseKey = recordIn.readUTF();
+					add(username, ((long) segment.id << 32) | offset,
+							collapseKey.length() > 0 ? collapseKey : null);
+				} else if (type == RECORD_DRAIN) {
+					clear(username);
+				}
+				segment.records++;
+				records++;
+				offset += 4 + length;
+			}
+		} finally {
+			in.close();
+		}
+		if (offset < segment.channel.size()) {
+			log.warn("Truncating incomplete record in " + segment.file
+					+ " at " + offset);
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+
+	/**
+	 * Starts a new segment.
+	 */
+	private void roll() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(directory, String.format(
+				"%010d", id)
+				+ SUFFIX));
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	/**
+	 * Deletes the oldest segments while less than a third of the records are
+	 * pending notifications. The pending notifications of a segment are
+	 * copied to the end of the log first. Segments are only deleted from the
+	 * head of the log, so the drain records of a deleted segment can never
+	 * be needed again.
+	 */
+	private void compact() {
+		while (segments.size() > 1 && records > 3L * pending) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active) {
+				break;
+			}
+			try {
+				relocate(oldest);
+			} catch (IOException e) {
+				log.error("Could not compact " + oldest.file, e);
+				return;
+			}
+			oldest.close();
+			if (!oldest.file.delete()) {
+				log.warn("Could not delete " + oldest.file);
+			}
+			segments.remove(oldest.id);
+			records -= oldest.records;
+		}
+	}
+
+	/**
+	 * Copies the pending notifications of a segment to the end of the log.
+	 * The whole queue of a user is copied behind a drain record, so that it
+	 * keeps its order when the log is replayed.
+	 */
+	private void relocate(Segment segment) throws IOException {
+		if (segment.live == 0) {
+			return;
+		}
+		for (String username : segment.users) {
+			ArrayDeque<Entry> entries = index.get(username);
+			if (entries == null || !holds(segment, entries)) {
+				continue;
+			}
+			appendDrain(username);
+			for (Entry entry : entries) {
+				long position = append(readRecord(entry.position));
+				segmentOf(entry.position).live--;
+				entry.position = position;
+				Segment target = segmentOf(position);
+				target.live++;
+				target.users.add(username);
+			}
+		}
+	}
+
+	private boolean holds(Segment segment, ArrayDeque<Entry> entries) {
+		for (Entry entry : entries) {
+			if (segmentOf(entry.position) == segment) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A pending notification in the index.
+	 */
+	private static class Entry {
+
+		private long position;
+
+		private final String collapseKey;
+
+		Entry(long position, String collapseKey) {
+			this.position = position;
+			this.collapseKey = collapseKey;
+		}
+	}
+
+	/**
+	 * A segment file of the log.
+	 */
+	private static class Segment {
+
+		private final int id;
+
+		private final File file;
+
+		private final RandomAccessFile raf;
+
+		private final FileChannel channel;
+
+		private long size;
+
+		private int records;
+
+		private int live;
+
+		/** The users with a notification appended to this segment */
+		private final Set<String> users = new HashSet<String>();
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + file, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.push;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel holding timers as intrusive linked lists.
+ * <p>
+ * Each level has 64 slots; a slot of level <tt>L</tt> spans 64<sup>L</sup>
+ * ticks. A timer is kept in the lowest level whose range covers its
+ * deadline, and the slots of the upper levels are cascaded into the lower
+ * ones as the wheel turns, so adding a timer is O(1) and every timer is
+ * moved at most once per level. The wheel is not thread safe and does not
+ * keep time itself: the owner calls {@link #advance(List)} once per tick.
+ */
+class TimingWheel {
+
+	private static final int BITS = 6;
+
+	private static final int SIZE = 1 << BITS;
+
+	private static final int MASK = SIZE - 1;
+
+	private final Node[][] slots;
+
+	private final int levels;
+
+	private Node overdue;
+
+	private long tick;
+
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param levels
+	 *            the number of levels
+	 * @param tick
+	 *            the current tick
+	 */
+	TimingWheel(int levels, long tick) {
+		if (levels < 1 || levels * BITS > 62) {
+			throw new IllegalArgumentException("Invalid levels: " + levels);
+		}
+		this.levels = levels;
+		this.slots = new Node[levels][SIZE];
+		this.tick = tick;
+	}
+
+	/**
+	 * Returns the current tick.
+	 *
+	 * @return the tick
+	 */
+	long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Returns the number of ticks ahead a timer can be added.
+	 *
+	 * @return the horizon in ticks
+	 */
+	long getHorizon() {
+		return 1L << (BITS * levels);
+	}
+
+	/**
+	 * Returns the number of timers in the wheel.
+	 *
+	 * @return the number of timers
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a timer. A timer whose deadline has passed expires on the next
+	 * tick.
+	 *
+	 * @param node
+	 *            the timer
+	 * @throws IllegalArgumentException
+	 *             if the deadline is beyond the horizon
+	 */
+	void add(Node node) {
+		long delta = node.deadline - tick;
+		if (delta >= getHorizon()) {
+			throw new IllegalArgumentException("Deadline too far: "
+					+ node.deadline + ", tick=" + tick);
+		}
+		if (delta <= 0) {
+			node.next = overdue;
+			overdue = node;
+		} else {
+			int level = 0;
+			while (delta >= 1L << (BITS * (level + 1))) {
+				level++;
+			}
+			int slot = (int) (node.deadline >>> (BITS * level)) & MASK;
+			node.next = slots[level][slot];
+			slots[level][slot] = node;
+		}
+		size++;
+	}
+
+	/**
+	 * Moves the wheel one tick forward and collects the expired timers.
+	 *
+	 * @param expired
+	 *            the list the expired timers are added to
+	 */
+	void advance(List<Node> expired) {
+		tick++;
+		for (int level = levels - 1; level > 0; level--) {
+			if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+				cascade(level, (int) (tick >>> (BITS * level)) & MASK);
+			}
+		}
+		Node node = slots[0][(int) tick & MASK];
+		slots[0][(int) tick & MASK] = null;
+		collect(node, expired);
+		node = overdue;
+		overdue = null;
+		collect(node, expired);
+	}
+
+	private void cascade(int level, int slot) {
+		Node node = slots[level][slot];
+		slots[level][slot] = null;
+		while (node != null) {
+			Node next = node.next;
+			size--;
+			add(node);
+			node = next;
+		}
+	}
+
+	private void collect(Node node, List<Node> expired) {
+		while (node != null) {
+			Node next = node.next;
+			node.next = null;
+			expired.add(node);
+			size--;
+			node = next;
+		}
+	}
+
+	/**
+	 * A timer in the wheel.
+	 */
+	static class Node {
+
+		final long deadline;
+
+		Node next;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param deadline
+		 *            the tick the timer expires at
+		 */
+		Node(long deadline) {
+			this.deadline = deadline;
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.router;
+
+import org.xmpp.packet.IQ;
+
+/**
+ * A listener notified of the IQ <tt>result</tt> and <tt>error</tt> packets
+ * sent by the clients in answer to IQ requests from the server.
+ */
+public interface IQResultListener {
+
+    /**
+     * Notifies the listener of an answer from a client.
+     *
+     * @param packet the IQ result or error packet
+     */
+    public void receivedAnswer(IQ packet);
+
+}
@@ -24,7 +24,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dom4j.Element;
+import org.soxmpp.server.xmpp.codec.LazyElement;
 import org.soxmpp.server.xmpp.handler.IQHandler;
 import org.soxmpp.server.xmpp.session.ClientSession;
 import org.soxmpp.server.xmpp.session.Session;
@@ -46,6 +46,8 @@ public class IQRouter extends Router{
 
     private Map<String, IQHandler> namespace2Handlers = new ConcurrentHashMap<String, IQHandler>();
 
+    private List<IQResultListener> resultListeners = new ArrayList<IQResultListener>();
+
     /**
      * Constucts a packet router registering new IQ handlers.
      */
@@ -55,6 +57,10 @@ public class IQRouter extends Router{
 		this.iqHandlers = iqHandlers;
 	}
 
+	public void setResultListeners(List<IQResultListener> resultListeners) {
+		this.resultListeners = resultListeners;
+	}
+
 
 	/**
      * Routes the IQ packet based on its namespace.
@@ -70,35 +76,48 @@ public class IQRouter extends Router{
         }
         JID sender = iq.getFrom();
         ClientSession session = sessionManager.getSession(sender);
+        // Routed on the envelope, without parsing the content of the packet
+        String namespace = LazyElement.childNamespace(iq.getElement());
 
         if (session == null
                 || session.getStatus() == Session.STATUS_AUTHENTICATED
-                || ("jabber:iq:auth".equals(iq.getChildElement()
-                        .getNamespaceURI())
-                        || "jabber:iq:register".equals(iq.getChildElement()
-                                .getNamespaceURI()) || "urn:ietf:params:xml:ns:xmpp-bind"
-                        .equals(iq.getChildElement().getNamespaceURI()))) {
-            handle(iq);
+                || ("jabber:iq:auth".equals(namespace)
+                        || "jabber:iq:register".equals(namespace) || "urn:ietf:params:xml:ns:xmpp-bind"
+                        .equals(namespace))) {
+            handle(iq, namespace);
         } else {
             IQ reply = IQ.createResultIQ(iq);
-            reply.setChildElement(iq.getChildElement().createCopy());
+            setChildElement(reply, iq);
             reply.setError(PacketError.Condition.not_authorized);
             session.process(reply);
         }
     }
 
-    private void handle(IQ packet) {
+    /**
+     * Sets the child element of an error reply. Only the name and namespace
+     * of the child element of the original packet are copied, so its
+     * content is never parsed.
+     */
+    private void setChildElement(IQ reply, IQ originalPacket) {
+        String name = LazyElement.childName(originalPacket.getElement());
+        if (name != null) {
+            reply.setChildElement(name, LazyElement
+                    .childNamespace(originalPacket.getElement()));
+        }
+    }
+
+    private void handle(IQ packet, String namespace) {
         try {
-            Element childElement = packet.getChildElement();
-            String namespace = null;
-            if (childElement != null) {
-                namespace = childElement.getNamespaceURI();
+            if (packet.getType() == IQ.Type.result
+                    || packet.getType() == IQ.Type.error) {
+                // Answers are never routed to the handlers
+                for (IQResultListener listener : resultListeners) {
+                    listener.receivedAnswer(packet);
+                }
+                return;
             }
             if (namespace == null) {
-                if (packet.getType() != IQ.Type.result
-                        && packet.getType() != IQ.Type.error) {
-                    log.warn("Unknown packet " + packet);
-                }
+                log.warn("Unknown packet " + packet);
             } else {
                 IQHandler handler = getHandler(namespace);
                 if (handler == null) {
@@ -131,7 +150,7 @@ public class IQRouter extends Router{
             return;
         }
         IQ reply = IQ.createResultIQ(originalPacket);
-        reply.setChildElement(originalPacket.getChildElement().createCopy());
+        setChildElement(reply, originalPacket);
         reply.setError(condition);
         try {
             PacketDeliverer.deliver(reply);
@@ -51,7 +51,7 @@ public class PacketDeliverer {
 	 * @throws PacketException
 	 *             if the packet is null or the recipient was not found.
 	 */
-	public static void deliver(Packet packet) throws PacketException {
+	public static void deliver(final Packet packet) throws PacketException {
 		if (packet == null) {
 			throw new PacketException("Packet was null");
 		}
@@ -59,10 +59,20 @@ public class PacketDeliverer {
 		try {
 			JID recipient = packet.getTo();
 			if (recipient != null) {
-				ClientSession clientSession = PacketDeliverer.sessionManager
+				final ClientSession clientSession = PacketDeliverer.sessionManager
 						.getSession(recipient);
 				if (clientSession != null) {
-					clientSession.deliver(packet);
+					// In order with the stanzas of the recipient
+					clientSession.execute(new Runnable() {
+						public void run() {
+							try {
+								clientSession.deliver(packet);
+							} catch (Exception e) {
+								log.error("Could not deliver packet: "
+										+ packet.toString(), e);
+							}
+						}
+					});
 				}
 			}
 		} catch (Exception e) {
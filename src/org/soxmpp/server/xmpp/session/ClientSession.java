@@ -22,6 +22,7 @@ import org.apache.commons.logging.LogFactory;
 import org.soxmpp.server.service.UserNotFoundException;
 import org.soxmpp.server.xmpp.XmppServer;
 import org.soxmpp.server.xmpp.auth.AuthToken;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.net.Connection;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -39,6 +40,38 @@ public class ClientSession extends LocalSession {
 
 	private static final String ETHERX_NAMESPACE = "http://etherx.jabber.org/streams";
 
+	/**
+	 * The stream header sent to a client, filled with the server name, the
+	 * stream id and the language.
+	 */
+	public static final StanzaTemplate STREAM_HEADER = new StanzaTemplate(
+			"<?xml version='1.0' encoding='UTF-8'?>"
+					+ "<stream:stream xmlns:stream=\"" + ETHERX_NAMESPACE
+					+ "\" xmlns=\"jabber:client\" from=\"${from}\""
+					+ " id=\"${id}\" xml:lang=\"${lang}\" version=\""
+					+ MAJOR_VERSION + "." + MINOR_VERSION + "\">");
+
+	private static final String AUTH_FEATURES = "<auth xmlns=\"http://jabber.org/features/iq-auth\"/>"
+			+ "<register xmlns=\"http://jabber.org/features/iq-register\"/>";
+
+	private static final String BIND_FEATURES = "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>"
+			+ "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>";
+
+	private static final String COMPRESSION_FEATURE = "<compression xmlns=\"http://jabber.org/features/compress\">"
+			+ "<method>zlib</method></compression>";
+
+	/**
+	 * The stream features by TLS policy and compression offer, before
+	 * authentication.
+	 */
+	private static final StanzaTemplate[] AUTH_FEATURE_TEMPLATES = features(AUTH_FEATURES);
+
+	/**
+	 * The stream features by TLS policy and compression offer, after
+	 * authentication.
+	 */
+	private static final StanzaTemplate[] BIND_FEATURE_TEMPLATES = features(BIND_FEATURES);
+
 	private AuthToken authToken;
 	
 	private boolean initialized;
@@ -91,52 +124,31 @@ public class ClientSession extends LocalSession {
 		}
 
 		String language = "en";
+		String networkType = null;
 		for (int i = 0; i < xpp.getAttributeCount(); i++) {
 			if ("lang".equals(xpp.getAttributeName(i))) {
 				language = xpp.getAttributeValue(i);
+			} else if ("network".equals(xpp.getAttributeName(i))) {
+				// Declared by the client to tune its keepalive interval
+				networkType = xpp.getAttributeValue(i);
 			}
 		}
 
 		// Store language and version information
 		connection.setLanaguage(language);
+		connection.setNetworkType(networkType);
 		connection.setXMPPVersion(MAJOR_VERSION, MINOR_VERSION);
 
 		// Create a ClientSession
 		ClientSession session =XmppServer.getInstance().getSessionManager().createClientSession(connection);
 
-		// Build the start packet response
-		StringBuilder sb = new StringBuilder(200);
-		sb.append("<?xml version='1.0' encoding='UTF-8'?>");
-		sb.append("<stream:stream ");
-		sb.append("xmlns:stream=\"http://etherx.jabber.org/streams\" xmlns=\"jabber:client\" from=\"");
-		sb.append(serverName);
-		sb.append("\" id=\"");
-		sb.append(session.getStreamID().toString());
-		sb.append("\" xml:lang=\"");
-		sb.append(language);
-		sb.append("\" version=\"");
-		sb.append(MAJOR_VERSION).append(".").append(MINOR_VERSION);
-		sb.append("\">");
-		connection.deliverRawText(sb.toString());
-
-		// XMPP 1.0 needs stream features
-		sb = new StringBuilder();
-		sb.append("<stream:features>");
-		if (connection.getTlsPolicy() != Connection.TLSPolicy.disabled) {
-			sb.append("<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\">");
-			if (connection.getTlsPolicy() == Connection.TLSPolicy.required) {
-				sb.append("<required/>");
-			}
-			sb.append("</starttls>");
-		}
-
-		String specificFeatures = session.getAvailableStreamFeatures();
-		if (specificFeatures != null) {
-			sb.append(specificFeatures);
-		}
-		sb.append("</stream:features>");
-
-		connection.deliverRawText(sb.toString());
+		// Send the stream header and the stream features
+		connection.deliverTemplate(STREAM_HEADER, serverName, session
+				.getStreamID().toString(), language);
+		// A connection accepted with direct TLS is already secure
+		Connection.TLSPolicy tlsPolicy = connection.isSecure() ? Connection.TLSPolicy.disabled
+				: connection.getTlsPolicy();
+		connection.deliverTemplate(session.getStreamFeatures(tlsPolicy));
 		return session;
 	}
 
@@ -246,17 +258,70 @@ public class ClientSession extends LocalSession {
 	 * Returns a text with the available stream features.
 	 */
 	public String getAvailableStreamFeatures() {
-		StringBuilder sb = new StringBuilder();
+		String features;
 		if (getAuthToken() == null) {
-			// Supports Non-SASL Authentication
-			sb.append("<auth xmlns=\"http://jabber.org/features/iq-auth\"/>");
-			// Supports In-Band Registration
-			sb.append("<register xmlns=\"http://jabber.org/features/iq-register\"/>");
+			// Supports Non-SASL Authentication and In-Band Registration
+			features = AUTH_FEATURES;
 		} else {
 			// If the session has been authenticated
-			sb.append("<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>");
-			sb.append("<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>");
+			features = BIND_FEATURES;
+		}
+		if (isCompressionOffered(conn.isSecure() ? Connection.TLSPolicy.disabled
+				: conn.getTlsPolicy())) {
+			features += COMPRESSION_FEATURE;
+		}
+		return features;
+	}
+
+	/**
+	 * Returns the encoded stream features, with STARTTLS advertised as the
+	 * given policy says.
+	 */
+	public StanzaTemplate getStreamFeatures(Connection.TLSPolicy tlsPolicy) {
+		StanzaTemplate[] templates = getAuthToken() == null ? AUTH_FEATURE_TEMPLATES
+				: BIND_FEATURE_TEMPLATES;
+		return templates[tlsPolicy.ordinal() * 2
+				+ (isCompressionOffered(tlsPolicy) ? 1 : 0)];
+	}
+
+	/**
+	 * Returns true if stream compression can be negotiated. Compression is
+	 * not offered while TLS is required and not negotiated yet, since TLS
+	 * cannot be started over a compressed stream.
+	 */
+	private boolean isCompressionOffered(Connection.TLSPolicy tlsPolicy) {
+		return conn.getCompressionPolicy() == Connection.CompressionPolicy.optional
+				&& !conn.isCompressed()
+				&& tlsPolicy != Connection.TLSPolicy.required;
+	}
+
+	/**
+	 * Encodes the stream features for every TLS policy, with and without
+	 * compression.
+	 */
+	private static StanzaTemplate[] features(String specificFeatures) {
+		Connection.TLSPolicy[] policies = Connection.TLSPolicy.values();
+		StanzaTemplate[] templates = new StanzaTemplate[policies.length * 2];
+		for (Connection.TLSPolicy policy : policies) {
+			for (int compression = 0; compression < 2; compression++) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("<stream:features>");
+				if (policy != Connection.TLSPolicy.disabled) {
+					sb.append("<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\">");
+					if (policy == Connection.TLSPolicy.required) {
+						sb.append("<required/>");
+					}
+					sb.append("</starttls>");
+				}
+				sb.append(specificFeatures);
+				if (compression == 1) {
+					sb.append(COMPRESSION_FEATURE);
+				}
+				sb.append("</stream:features>");
+				templates[policy.ordinal() * 2 + compression] = new StanzaTemplate(
+						sb.toString());
+			}
 		}
-		return sb.toString();
+		return templates;
 	}
 }
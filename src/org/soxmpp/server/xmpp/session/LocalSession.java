@@ -25,6 +25,7 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.soxmpp.server.xmpp.UnauthenticatedException;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
 import org.soxmpp.server.xmpp.net.Connection;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
@@ -312,6 +313,58 @@ public abstract class LocalSession implements Session {
 		}
 	}
 
+	/**
+	 * Delivers an already encoded stanza to the associated connection.
+	 * 
+	 * @param parts
+	 *            the encoded parts of the stanza
+	 */
+	public void deliverEncoded(byte[]... parts) {
+		if (this.conn != null && !this.conn.isClosed()) {
+			this.conn.deliverEncoded(parts);
+		}
+	}
+
+	/**
+	 * Returns true if the associated connection has too many bytes waiting
+	 * to be written.
+	 * 
+	 * @return true if the connection is congested, false otherwise
+	 */
+	public boolean isCongested() {
+		return this.conn != null && this.conn.isCongested();
+	}
+
+	/**
+	 * Runs a task in order with the events of the session, so that it does
+	 * not run concurrently with the handling of its stanzas when the events
+	 * go through a mailbox.
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	public void execute(Runnable task) {
+		if (this.conn != null) {
+			this.conn.execute(task);
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Delivers a stanza template to the associated connection.
+	 * 
+	 * @param template
+	 *            the stanza template
+	 * @param values
+	 *            the values of the template placeholders
+	 */
+	public void deliverTemplate(StanzaTemplate template, String... values) {
+		if (this.conn != null && !this.conn.isClosed()) {
+			this.conn.deliverTemplate(template, values);
+		}
+	}
+
 	/**
 	 * Close the session including associated socket connection.
 	 */
@@ -361,6 +414,12 @@ public abstract class LocalSession implements Session {
 	 */
 	public abstract String getAvailableStreamFeatures();
 
+	/**
+	 * Returns the encoded stream features offered to the client.
+	 */
+	public abstract StanzaTemplate getStreamFeatures(
+			Connection.TLSPolicy tlsPolicy);
+
 	@Override
 	public String toString() {
 		return super.toString() + " status: " + status + " address: " + address
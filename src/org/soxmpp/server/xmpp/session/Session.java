@@ -4,6 +4,8 @@ import java.net.UnknownHostException;
 import java.util.Date;
 
 import org.soxmpp.server.xmpp.RoutableChannelHandler;
+import org.soxmpp.server.xmpp.codec.StanzaTemplate;
+import org.soxmpp.server.xmpp.net.Connection;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
@@ -194,5 +196,15 @@ public interface Session extends RoutableChannelHandler {
 	 * Returns a text with the available stream features.
 	 */
     public String getAvailableStreamFeatures();
+
+    /**
+     * Returns the encoded <tt>stream:features</tt> element offered to the
+     * client, with STARTTLS advertised as the given policy says.
+     *
+     * @param tlsPolicy the TLS policy to advertise, or disabled to leave
+     *            STARTTLS out.
+     * @return the stream features template.
+     */
+    public StanzaTemplate getStreamFeatures(Connection.TLSPolicy tlsPolicy);
     
 }
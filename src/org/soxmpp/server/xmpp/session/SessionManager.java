@@ -40,6 +40,14 @@ public interface SessionManager {
      * @return a list that contains all client sessions
      */
     public Collection<ClientSession> getSessions();
+    /**
+     * Returns the sessions associated with the usernames, in the same order.
+     * The array holds null for the users without a session.
+     * 
+     * @param usernames the usernames of the client addresses
+     * @return the sessions associated with the usernames
+     */
+    public ClientSession[] getSessions(String[] usernames);
     /**
      * Removes a client session.
      * 
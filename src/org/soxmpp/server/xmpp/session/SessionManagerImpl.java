@@ -139,6 +139,26 @@ public class SessionManagerImpl implements SessionManager{
         return clientSessions.values();
     }
 
+    /**
+     * Returns the sessions associated with the usernames, in the same order.
+     * The keys of the session table are built directly, without creating a
+     * JID for every username.
+     * 
+     * @param usernames the usernames of the client addresses
+     * @return the sessions associated with the usernames
+     */
+    public ClientSession[] getSessions(String[] usernames) {
+        ClientSession[] sessions = new ClientSession[usernames.length];
+        String suffix = "@" + serverName + "/" + RESOURCE_NAME;
+        StringBuilder key = new StringBuilder(64);
+        for (int i = 0; i < usernames.length; i++) {
+            key.setLength(0);
+            key.append(usernames[i]).append(suffix);
+            sessions[i] = clientSessions.get(key.toString());
+        }
+        return sessions;
+    }
+
     /**
      * Removes a client session.
      * 
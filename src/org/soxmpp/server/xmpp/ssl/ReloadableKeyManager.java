@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.ssl;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * A key manager passing every call to a key manager that can be replaced
+ * while the SSL context is in use. Handshakes started after the replacement
+ * use the new keys; established sessions keep theirs.
+ */
+class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+    private volatile X509ExtendedKeyManager delegate;
+
+    /** The replaced key manager, for a handshake that chose its alias before */
+    private volatile X509ExtendedKeyManager previous;
+
+    ReloadableKeyManager(X509ExtendedKeyManager delegate) {
+        this.delegate = delegate;
+        this.previous = delegate;
+    }
+
+    void setDelegate(X509ExtendedKeyManager delegate) {
+        this.previous = this.delegate;
+        this.delegate = delegate;
+    }
+
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return delegate.getClientAliases(keyType, issuers);
+    }
+
+    public String chooseClientAlias(String[] keyType, Principal[] issuers,
+            Socket socket) {
+        return delegate.chooseClientAlias(keyType, issuers, socket);
+    }
+
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return delegate.getServerAliases(keyType, issuers);
+    }
+
+    public String chooseServerAlias(String keyType, Principal[] issuers,
+            Socket socket) {
+        return delegate.chooseServerAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyType,
+            Principal[] issuers, SSLEngine engine) {
+        return delegate.chooseEngineClientAlias(keyType, issuers, engine);
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers,
+            SSLEngine engine) {
+        return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+    }
+
+    public X509Certificate[] getCertificateChain(String alias) {
+        X509Certificate[] chain = delegate.getCertificateChain(alias);
+        return chain != null ? chain : previous.getCertificateChain(alias);
+    }
+
+    public PrivateKey getPrivateKey(String alias) {
+        PrivateKey key = delegate.getPrivateKey(alias);
+        return key != null ? key : previous.getPrivateKey(alias);
+    }
+
+}
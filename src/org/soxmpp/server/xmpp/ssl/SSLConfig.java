@@ -21,11 +21,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.KeyStoreException;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,13 +51,13 @@ public class SSLConfig {
 
     private static String storeType;
 
-    private static KeyStore keyStore;
+    private static volatile KeyStore keyStore;
 
     private static String keyStoreLocation;
 
     private static String keyPass;
 
-    private static KeyStore trustStore;
+    private static volatile KeyStore trustStore;
 
     private static String trustStoreLocation;
 
@@ -58,10 +65,31 @@ public class SSLConfig {
     
     private static URL classPath;
 
+    private static final SSLHandshakeStats handshakeStats = new SSLHandshakeStats();
+
+    private static ReloadableKeyManager keyManager;
+
+    private static ReloadableTrustManager trustManager;
+
+    private static int reloadInterval;
+
+    private static volatile long keyStoreModified;
+
+    private static volatile long trustStoreModified;
+
     private SSLConfig() {
     }
 
     static {
+
+        // Stateless session tickets, read by the JDK (13 and later) when the
+        // first SSL context is created. A system property set on the command
+        // line wins.
+        String tickets = "jdk.tls.server.enableSessionTicketExtension";
+        if (System.getProperty(tickets) == null) {
+            System.setProperty(tickets, String.valueOf(Config.getBoolean(
+                    "xmpp.ssl.sessionTickets", true)));
+        }
     	
     	classPath = SSLConfig.class.getResource("/");
     	
@@ -82,63 +110,175 @@ public class SSLConfig {
         log.debug("keyStoreLocation=" + keyStoreLocation);
         log.debug("trustStoreLocation=" + trustStoreLocation);
 
-        // Load keystore
+        keyStoreModified = new File(keyStoreLocation).lastModified();
+        trustStoreModified = new File(trustStoreLocation).lastModified();
+
+        keyStore = loadKeyStore();
+        trustStore = loadTrustStore(true);
+
+        // Init factory        
+        try {
+            sslContext = SSLContext.getInstance("TLS");
+
+            // The key material can be replaced without a new context, which
+            // keeps the sessions the clients resume
+            keyManager = new ReloadableKeyManager(getKeyManager(keyStore));
+            trustManager = new ReloadableTrustManager(
+                    getTrustManager(trustStore));
+
+            sslContext.init(new KeyManager[] { keyManager },
+                    new TrustManager[] { trustManager },
+                    new java.security.SecureRandom());
+
+            // Sessions kept for resumption, sized for the clients
+            // reconnecting at once after a network failure
+            SSLSessionContext sessionContext = sslContext
+                    .getServerSessionContext();
+            sessionContext.setSessionCacheSize(Config.getInt(
+                    "xmpp.ssl.sessionCacheSize", 20480));
+            sessionContext.setSessionTimeout(Config.getInt(
+                    "xmpp.ssl.sessionTimeout", 86400));
+
+        } catch (Exception e) {
+            log.error("SSLConfig factory setup problem." + "  storeType: ["
+                    + storeType + "]\n" + "  keyStoreLocation: ["
+                    + keyStoreLocation + "]\n" + "  keyPass: [" + keyPass
+                    + "]\n" + "  trustStoreLocation: [" + trustStoreLocation
+                    + "]\n" + "  trustPass: [" + trustPass + "]", e);
+            keyStore = null;
+            trustStore = null;
+        }
+
+        // Watch the store files for a renewed certificate
+        reloadInterval = Config.getInt("xmpp.ssl.reloadInterval", 60);
+        if (keyManager != null && reloadInterval > 0) {
+            Thread thread = new Thread(new Watcher(), "ssl-reloader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Loads the keystore and the truststore again and uses them for the
+     * handshakes started from now on. The sessions already established and
+     * the sessions cached for resumption are kept. If a store cannot be
+     * loaded, the current key material is kept.
+     *
+     * @return true if the key material was replaced, false otherwise
+     */
+    public static synchronized boolean reload() {
+        if (keyManager == null) {
+            return false;
+        }
+        long keyStoreTime = new File(keyStoreLocation).lastModified();
+        long trustStoreTime = new File(trustStoreLocation).lastModified();
+        KeyStore newKeyStore = loadKeyStore();
+        KeyStore newTrustStore = loadTrustStore(false);
+        if (newKeyStore == null || newTrustStore == null) {
+            return false;
+        }
+        try {
+            X509ExtendedKeyManager newKeyManager = getKeyManager(newKeyStore);
+            X509ExtendedTrustManager newTrustManager = getTrustManager(newTrustStore);
+            keyManager.setDelegate(newKeyManager);
+            trustManager.setDelegate(newTrustManager);
+        } catch (GeneralSecurityException e) {
+            log.error("SSLConfig reload problem.\n" + "  keyStoreLocation: ["
+                    + keyStoreLocation + "]\n" + "  trustStoreLocation: ["
+                    + trustStoreLocation + "]", e);
+            return false;
+        }
+        keyStore = newKeyStore;
+        trustStore = newTrustStore;
+        keyStoreModified = keyStoreTime;
+        trustStoreModified = trustStoreTime;
+        log.info("SSL key material reloaded from " + keyStoreLocation);
+        return true;
+    }
+
+    private static KeyStore loadKeyStore() {
         try {
-            keyStore = KeyStore.getInstance(storeType);
-            keyStore.load(new FileInputStream(keyStoreLocation), keyPass
-                    .toCharArray());
+            KeyStore store = KeyStore.getInstance(storeType);
+            load(store, keyStoreLocation, keyPass);
+            return store;
         } catch (Exception e) {
             log.error(
                     "SSLConfig startup problem.\n" + "  storeType: ["
                             + storeType + "]\n" + "  keyStoreLocation: ["
                             + keyStoreLocation + "]\n" + "  keyPass: ["
                             + keyPass + "]", e);
-            keyStore = null;
+            return null;
         }
+    }
 
-        // Load truststore
+    /**
+     * Loads the truststore.
+     *
+     * @param emptyIfMissing whether an empty store is returned when the
+     *            truststore cannot be read, as at startup
+     * @return the truststore, or null if it cannot be loaded
+     */
+    private static KeyStore loadTrustStore(boolean emptyIfMissing) {
         try {
-            trustStore = KeyStore.getInstance(storeType);
-            trustStore.load(new FileInputStream(trustStoreLocation), trustPass
-                    .toCharArray());
-
+            KeyStore store = KeyStore.getInstance(storeType);
+            load(store, trustStoreLocation, trustPass);
+            return store;
         } catch (Exception e) {
+            if (!emptyIfMissing) {
+                // Maybe half written, keep the current one and retry
+                log.error("SSLConfig reload problem.\n"
+                        + "  trustStoreLocation: [" + trustStoreLocation
+                        + "]", e);
+                return null;
+            }
             try {
-                trustStore = KeyStore.getInstance(storeType);
-                trustStore.load(null, trustPass.toCharArray());
+                KeyStore store = KeyStore.getInstance(storeType);
+                store.load(null, trustPass.toCharArray());
+                return store;
             } catch (Exception ex) {
                 log.error("SSLConfig startup problem.\n" + "  storeType: ["
                         + storeType + "]\n" + "  trustStoreLocation: ["
                         + trustStoreLocation + "]\n" + "  trustPass: ["
                         + trustPass + "]", e);
-                trustStore = null;
+                return null;
             }
         }
+    }
 
-        // Init factory        
+    private static void load(KeyStore store, String location, String password)
+            throws GeneralSecurityException, IOException {
+        FileInputStream in = new FileInputStream(location);
         try {
-            sslContext = SSLContext.getInstance("TLS");
-
-            KeyManagerFactory keyFactory = KeyManagerFactory
-                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyFactory.init(keyStore, SSLConfig.getKeyPassword().toCharArray());
-
-            TrustManagerFactory c2sTrustFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            c2sTrustFactory.init(trustStore);
+            store.load(in, password.toCharArray());
+        } finally {
+            in.close();
+        }
+    }
 
-            sslContext.init(keyFactory.getKeyManagers(), c2sTrustFactory
-                    .getTrustManagers(), new java.security.SecureRandom());
+    private static X509ExtendedKeyManager getKeyManager(KeyStore store)
+            throws GeneralSecurityException {
+        KeyManagerFactory keyFactory = KeyManagerFactory
+                .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyFactory.init(store, keyPass.toCharArray());
+        for (KeyManager km : keyFactory.getKeyManagers()) {
+            if (km instanceof X509ExtendedKeyManager) {
+                return (X509ExtendedKeyManager) km;
+            }
+        }
+        throw new KeyStoreException("No X.509 key manager");
+    }
 
-        } catch (Exception e) {
-            log.error("SSLConfig factory setup problem." + "  storeType: ["
-                    + storeType + "]\n" + "  keyStoreLocation: ["
-                    + keyStoreLocation + "]\n" + "  keyPass: [" + keyPass
-                    + "]\n" + "  trustStoreLocation: [" + trustStoreLocation
-                    + "]\n" + "  trustPass: [" + trustPass + "]", e);
-            keyStore = null;
-            trustStore = null;
+    private static X509ExtendedTrustManager getTrustManager(KeyStore store)
+            throws GeneralSecurityException {
+        TrustManagerFactory c2sTrustFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        c2sTrustFactory.init(store);
+        for (TrustManager tm : c2sTrustFactory.getTrustManagers()) {
+            if (tm instanceof X509ExtendedTrustManager) {
+                return (X509ExtendedTrustManager) tm;
+            }
         }
+        throw new KeyStoreException("No X.509 trust manager");
     }
 
     /**
@@ -150,6 +290,15 @@ public class SSLConfig {
         return sslContext;
     }
 
+    /**
+     * Get the statistics of the TLS handshakes.
+     *
+     * @return the handshake statistics
+     */
+    public static SSLHandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
     /**
      * Get the Key Store location.
      *
@@ -219,4 +368,25 @@ public class SSLConfig {
         return trustPass;
     }
 
+    /**
+     * Reloads the key material when a store file changes. A store that fails
+     * to load is tried again at every check until it loads.
+     */
+    private static class Watcher implements Runnable {
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(reloadInterval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (new File(keyStoreLocation).lastModified() != keyStoreModified
+                        || new File(trustStoreLocation).lastModified() != trustStoreModified) {
+                    reload();
+                }
+            }
+        }
+    }
+
 }
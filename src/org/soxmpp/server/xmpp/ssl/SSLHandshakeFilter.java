@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.ssl;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
+
+/**
+ * An SSL filter recording the handshakes of its sessions in the
+ * {@link SSLHandshakeStats} of {@link SSLConfig}. A handshake is resumed when
+ * the negotiated session was created before the handshake started.
+ */
+public class SSLHandshakeFilter extends SslFilter {
+
+    /** The nano time and the wall clock time the handshake started at */
+    private static final AttributeKey HANDSHAKE_START = new AttributeKey(
+            SSLHandshakeFilter.class, "handshakeStart");
+
+    private final SSLHandshakeStats stats = SSLConfig.getHandshakeStats();
+
+    /**
+     * Constructor.
+     *
+     * @param sslContext the SSL context of the sessions
+     */
+    public SSLHandshakeFilter(SSLContext sslContext) {
+        super(sslContext);
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session,
+            Object message) throws SSLException {
+        boolean handshaking = session.getAttribute(SSL_SESSION) == null;
+        if (handshaking && !session.containsAttribute(HANDSHAKE_START)) {
+            session.setAttribute(HANDSHAKE_START, new long[] {
+                    System.nanoTime(), System.currentTimeMillis() });
+        }
+        try {
+            super.messageReceived(nextFilter, session, message);
+        } catch (SSLException e) {
+            if (session.removeAttribute(HANDSHAKE_START) != null) {
+                stats.failed();
+            }
+            throw e;
+        }
+        if (handshaking) {
+            SSLSession sslSession = (SSLSession) session
+                    .getAttribute(SSL_SESSION);
+            if (sslSession != null) {
+                long[] start = (long[]) session.removeAttribute(HANDSHAKE_START);
+                if (start != null) {
+                    stats.completed(sslSession.getCreationTime() < start[1],
+                            System.nanoTime() - start[0]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session)
+            throws SSLException {
+        // Closed by the client in the middle of the handshake
+        if (session.removeAttribute(HANDSHAKE_START) != null) {
+            stats.failed();
+        }
+        super.sessionClosed(nextFilter, session);
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.soxmpp.server.xmpp.ssl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the TLS handshakes of the client connections, full or resumed, and
+ * keeps a histogram of their duration. The duration runs from the first
+ * handshake record received to the handshake completion, so it includes the
+ * round trips to the client.
+ */
+public class SSLHandshakeStats {
+
+    /** The upper bounds of the histogram buckets, in milliseconds. */
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100,
+            200, 500, 1000, 2000, 5000, Long.MAX_VALUE };
+
+    private final AtomicLong full = new AtomicLong();
+
+    private final AtomicLong resumed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong totalTime = new AtomicLong();
+
+    private final AtomicLongArray buckets = new AtomicLongArray(
+            BUCKET_BOUNDS.length);
+
+    SSLHandshakeStats() {
+    }
+
+    void completed(boolean resumption, long nanos) {
+        (resumption ? resumed : full).incrementAndGet();
+        totalTime.addAndGet(nanos);
+        long millis = nanos / 1000000;
+        int i = 0;
+        while (millis >= BUCKET_BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of full handshakes.
+     *
+     * @return the number of full handshakes
+     */
+    public long getFullHandshakes() {
+        return full.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed an earlier session, from
+     * the session cache or a session ticket.
+     *
+     * @return the number of resumed handshakes
+     */
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    /**
+     * Returns the number of handshakes that failed or were abandoned by the
+     * client.
+     *
+     * @return the number of failed handshakes
+     */
+    public long getFailedHandshakes() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the fraction of the completed handshakes that were resumed.
+     *
+     * @return the resumption ratio between 0 and 1
+     */
+    public double getResumptionRatio() {
+        long resumed = this.resumed.get();
+        long total = full.get() + resumed;
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * Returns the average duration of the completed handshakes.
+     *
+     * @return the average duration in milliseconds
+     */
+    public double getAverageTime() {
+        long total = full.get() + resumed.get();
+        return total == 0 ? 0 : totalTime.get() / 1000000.0 / total;
+    }
+
+    /**
+     * Returns the upper bounds of the histogram buckets. The last bucket is
+     * unbounded and reported as <tt>Long.MAX_VALUE</tt>.
+     *
+     * @return the bucket bounds in milliseconds
+     */
+    public long[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * Returns the number of completed handshakes in every histogram bucket.
+     *
+     * @return the bucket counts
+     */
+    public long[] getHistogram() {
+        long[] counts = new long[BUCKET_BOUNDS.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile of the
+     * handshake durations, or 0 if no handshake completed yet.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the duration in milliseconds
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getHistogram();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+        return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+    }
+
+    /**
+     * Returns the statistics as a JSON object.
+     *
+     * @return the JSON representation of the statistics
+     */
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"full\":").append(getFullHandshakes());
+        sb.append(",\"resumed\":").append(getResumedHandshakes());
+        sb.append(",\"failed\":").append(getFailedHandshakes());
+        sb.append(",\"resumptionRatio\":").append(
+                Math.round(getResumptionRatio() * 1000) / 1000.0);
+        sb.append(",\"averageTime\":").append(
+                Math.round(getAverageTime() * 10) / 10.0);
+        sb.append(",\"p50\":").append(bound(getPercentile(50)));
+        sb.append(",\"p99\":").append(bound(getPercentile(99)));
+        sb.append(",\"histogram\":[");
+        long[] counts = getHistogram();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("{\"le\":").append(bound(BUCKET_BOUNDS[i]));
+            sb.append(",\"count\":").append(counts[i]).append("}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String bound(long millis) {
+        return millis == Long.MAX_VALUE ? "\"inf\"" : String.valueOf(millis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("full %d, resumed %d, failed %d, p50 %s ms,"
+                + " p99 %s ms", getFullHandshakes(), getResumedHandshakes(),
+                getFailedHandshakes(), bound(getPercentile(50)),
+                bound(getPercentile(99)));
+    }
+
+}